@@ -0,0 +1,70 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.bench;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks with the GC profiler, the merging aggregator with 1
+ * to 32 threads, and writes the results as one JSON file that can be
+ * compared between releases.
+ * Arguments starting with "-" are passed to the JMH command line instead.
+ * <pre>
+ * java -jar target/benchmarks.jar [result file] [benchmark regex]
+ * </pre>
+ */
+public class BenchmarkRunner
+{
+	private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length > 0 && args[0].startsWith("-"))
+		{
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		final String file = args.length > 0 ? args[0] : "jmh-result.json";
+		final String include = args.length > 1 ? args[1] : ".*";
+
+		final List<RunResult> results = new ArrayList<RunResult>();
+
+		//single threaded benchmarks
+		results.addAll(run(new OptionsBuilder()
+			.include(include)
+			.exclude(MergingBenchmark.class.getSimpleName())
+			.addProfiler(GCProfiler.class)
+			.build()));
+
+		//aggregator contention
+		if(MergingBenchmark.class.getName().matches(".*" + include + ".*"))
+		{
+			for(int threads : THREADS)
+			{
+				results.addAll(run(new OptionsBuilder()
+					.include(MergingBenchmark.class.getSimpleName())
+					.threads(threads)
+					.addProfiler(GCProfiler.class)
+					.build()));
+			}
+		}
+
+		ResultFormatFactory.getInstance(ResultFormatType.JSON, file)
+			.writeOut(results);
+		System.out.println("results written to " + file);
+	}
+
+	private static Collection<RunResult> run(Options options) throws Exception
+	{
+		return new Runner(options).run();
+	}
+}
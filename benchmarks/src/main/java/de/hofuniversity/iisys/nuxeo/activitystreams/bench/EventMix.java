@@ -0,0 +1,205 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.bench;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.event.Event;
+
+/**
+ * Synthetic event streams resembling what the plugin sees in production.
+ * Streams are generated from a fixed seed, so every run gets the same
+ * events.
+ */
+public enum EventMix
+{
+	/** create, save and edit bursts on files spread over folders */
+	CRUD,
+	/** tags added and removed by administrators and users */
+	TAGGING,
+	/** comments added to and removed from documents */
+	COMMENTS,
+	/** approval requests, approvals and publications */
+	PUBLICATION,
+	/** all of the above, mostly CRUD */
+	MIXED;
+
+	private static final int USERS = 10;
+	private static final int FOLDERS = 20;
+	private static final int DOCUMENTS = 200;
+
+	private static final String[] TYPES = {"File", "File", "Note", "Picture"};
+
+	private static final String[] SAVE = {"documentModified",
+		"binaryTextUpdated", "documentLocked", "documentUnlocked"};
+
+	/**
+	 * @param count number of events
+	 * @return events in the order they are to be handled
+	 */
+	public Event[] generate(int count)
+	{
+		final Generator generator = new Generator();
+		final List<Event> events = new ArrayList<Event>(count);
+
+		while(events.size() < count)
+		{
+			EventMix mix = this;
+			if(mix == MIXED)
+			{
+				final int dice = generator.fRandom.nextInt(100);
+				mix = dice < 60 ? CRUD : dice < 75 ? COMMENTS
+					: dice < 90 ? TAGGING : PUBLICATION;
+			}
+
+			switch(mix)
+			{
+				case CRUD:
+					generator.crud(events);
+					break;
+
+				case TAGGING:
+					generator.tagging(events);
+					break;
+
+				case COMMENTS:
+					generator.comment(events);
+					break;
+
+				default:
+					generator.publication(events);
+					break;
+			}
+		}
+
+		return events.subList(0, count).toArray(new Event[count]);
+	}
+
+	private static final class Generator
+	{
+		private final Random fRandom = new Random(42);
+
+		private final DocumentModel[] fDocuments;
+		private final Map<String, DocumentModel> fById;
+		private final CoreSession fSession;
+
+		private int fSequence;
+
+		public Generator()
+		{
+			fDocuments = new DocumentModel[DOCUMENTS];
+			fById = new HashMap<String, DocumentModel>();
+
+			for(int i = 0; i < DOCUMENTS; ++i)
+			{
+				final String id = "doc-" + i;
+				fDocuments[i] = Stubs.document(id, TYPES[i % TYPES.length],
+					"/default-domain/workspaces/folder-" + (i % FOLDERS)
+					+ "/document-" + i, "Document " + i);
+				fById.put(id, fDocuments[i]);
+			}
+
+			fSession = Stubs.session(fById);
+		}
+
+		private String user()
+		{
+			return "user" + fRandom.nextInt(USERS);
+		}
+
+		private DocumentModel document()
+		{
+			return fDocuments[fRandom.nextInt(DOCUMENTS)];
+		}
+
+		private Map<String, Serializable> properties()
+		{
+			return new HashMap<String, Serializable>();
+		}
+
+		public void crud(List<Event> events)
+		{
+			final String user = user();
+			final DocumentModel document = document();
+
+			if(fRandom.nextInt(10) == 0)
+			{
+				events.add(Stubs.event("documentCreated", user, document,
+					properties(), fSession));
+			}
+
+			//a save fires several events, often repeated within seconds
+			final int saves = 1 + fRandom.nextInt(3);
+			for(int i = 0; i < saves; ++i)
+			{
+				for(String name : SAVE)
+				{
+					events.add(Stubs.event(name, user, document, properties(),
+						fSession));
+				}
+			}
+		}
+
+		public void tagging(List<Event> events)
+		{
+			final String user = user();
+			final DocumentModel document = document();
+
+			if(fRandom.nextBoolean())
+			{
+				//administrator tagging through relation documents
+				final DocumentModel tagging = Stubs.tagging(
+					"tagging-" + ++fSequence, "tag" + fRandom.nextInt(50),
+					document.getId());
+				events.add(Stubs.event(fRandom.nextInt(4) == 0
+					? "aboutToRemove" : "documentCreated", user, tagging,
+					properties(), fSession));
+			}
+			else
+			{
+				events.add(Stubs.event("documentTagUpdated", user, document,
+					properties(), fSession));
+			}
+		}
+
+		public void comment(List<Event> events)
+		{
+			final DocumentModel document = document();
+			final DocumentModel comment = Stubs.document("comment-"
+				+ ++fSequence, "Comment", document.getPathAsString()
+				+ "/comment", "Comment");
+
+			final Map<String, Serializable> properties = properties();
+			properties.put("comment_document", (Serializable) comment);
+			properties.put("comment_text", "Looks good to me, see the "
+				+ "second section for details.");
+
+			events.add(Stubs.event(fRandom.nextInt(5) == 0 ? "commentRemoved"
+				: "commentAdded", user(), document, properties, fSession));
+		}
+
+		public void publication(List<Event> events)
+		{
+			final String user = user();
+			final DocumentModel document = document();
+
+			final Map<String, Serializable> request = properties();
+			request.put("comment", "Please publish " + document.getTitle()
+				+ " in section news");
+			events.add(Stubs.event("documentWaitingPublication", user,
+				document, request, fSession));
+
+			events.add(Stubs.event(fRandom.nextBoolean()
+				? "documentPublicationApproved" : "documentPublicationRejected",
+				user(), document, properties(), fSession));
+
+			events.add(Stubs.event("documentPublished", user, document,
+				properties(), fSession));
+		}
+	}
+}
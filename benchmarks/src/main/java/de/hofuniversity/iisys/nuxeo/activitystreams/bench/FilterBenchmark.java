@@ -0,0 +1,84 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.bench;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.ecm.core.event.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.ActivityContext;
+import de.hofuniversity.iisys.nuxeo.activitystreams.EventFilter;
+import de.hofuniversity.iisys.nuxeo.activitystreams.agg.IAggregator;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.Activity;
+import de.hofuniversity.iisys.nuxeo.activitystreams.route.Router;
+import de.hofuniversity.iisys.nuxeo.activitystreams.route.RoutingRule;
+
+/**
+ * Filtering and routing of single events with the bundled rules, without
+ * aggregation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark
+{
+	private static final int EVENTS = 4096;
+
+	@Param({"CRUD", "TAGGING", "COMMENTS", "PUBLICATION", "MIXED"})
+	public EventMix fMix;
+
+	private Event[] fEvents;
+	private EventFilter fFilter;
+	private int fNext;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		fEvents = fMix.generate(EVENTS);
+
+		final Router router = new Router(new HashMap<String, String>(),
+			Collections.<RoutingRule>emptyList());
+
+		//aggregation is measured separately
+		fFilter = new EventFilter(router, true, new IAggregator()
+		{
+			@Override
+			public void handleActivity(Activity activity, String user)
+			{
+			}
+
+			@Override
+			public boolean handleAggregation(ActivityContext context,
+				String user)
+			{
+				return true;
+			}
+
+			@Override
+			public void shutdown()
+			{
+			}
+		});
+	}
+
+	@Benchmark
+	public EventFilter.Rule filter()
+	{
+		final Event event = fEvents[fNext++ & (EVENTS - 1)];
+		return fFilter.check(new ActivityContext(event));
+	}
+}
@@ -0,0 +1,651 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.bench;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.event.Event;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.ActivitySender;
+import de.hofuniversity.iisys.nuxeo.activitystreams.EventFilter;
+import de.hofuniversity.iisys.nuxeo.activitystreams.agg.ActivityAggregator;
+import de.hofuniversity.iisys.nuxeo.activitystreams.capture.CaptureRecord;
+import de.hofuniversity.iisys.nuxeo.activitystreams.send.DeliveryQueue;
+import de.hofuniversity.iisys.nuxeo.activitystreams.stats.LagPath;
+import de.hofuniversity.iisys.nuxeo.activitystreams.stats.PipelineMetrics;
+import de.hofuniversity.iisys.nuxeo.activitystreams.stats.StageTimer;
+
+/**
+ * End-to-end load test: replays a captured or synthetic event stream at a
+ * target rate through a real ActivitySender posting to an embedded
+ * ShindigStub, then reports latencies, delivery counts and how many
+ * requests the aggregation saved.
+ * Latency is measured per event, from handing it to the sender until the
+ * first activity naming its document arrives at the stub. Events whose
+ * document never shows up, e.g. because they were filtered, are reported as
+ * unmatched.
+ * <pre>
+ * java -cp target/benchmarks.jar
+ *   de.hofuniversity.iisys.nuxeo.activitystreams.bench.LoadHarness
+ *   [-mix name] [-events n] [-replay file] [-rate n] [-threads n]
+ *   [-aggregate true|false] [-latency ms] [-jitter ms] [-errors rate]
+ *   [-slow rate] [-slowms ms] [-server n] [-drain ms] [-set key=value]...
+ * </pre>
+ */
+public class LoadHarness
+{
+	//ids of the generated and replayed documents
+	private static final Pattern DOC_ID = Pattern.compile("\\bdoc-\\d+\\b");
+
+	private final Event[] fEvents;
+	private final long[] fOffsets;
+
+	private final ConcurrentMap<String, List<Long>> fPending;
+	private long[] fLatencies;
+	private int fLatencyCount;
+
+	private final AtomicLong fFailed, fMaxLag;
+
+	private boolean fIdle;
+
+	/**
+	 * @param events events to submit
+	 * @param offsets time of each event relative to the start in
+	 *        milliseconds
+	 */
+	public LoadHarness(Event[] events, long[] offsets)
+	{
+		fEvents = events;
+		fOffsets = offsets;
+
+		fPending = new ConcurrentHashMap<String, List<Long>>();
+		fLatencies = new long[Math.max(16, events.length)];
+
+		fFailed = new AtomicLong();
+		fMaxLag = new AtomicLong();
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		EventMix mix = EventMix.MIXED;
+		String replay = null;
+		int count = 10000;
+		double rate = 200;
+		int threads = 4;
+		int server = 8;
+		long latency = 20, jitter = 10, slowLatency = 2000, drain = 70000;
+		double errors = 0, slow = 0;
+
+		final Map<String, String> properties = new HashMap<String, String>();
+		properties.put("debug.logging", "false");
+		properties.put("delivery.outbox.dir", "");
+		properties.put("activities.aggregate", "true");
+
+		for(int i = 0; i < args.length; ++i)
+		{
+			final String arg = args[i];
+
+			if(i + 1 >= args.length)
+			{
+				usage();
+				return;
+			}
+			else if("-mix".equals(arg))
+			{
+				mix = EventMix.valueOf(args[++i].toUpperCase());
+			}
+			else if("-events".equals(arg))
+			{
+				count = Integer.parseInt(args[++i]);
+			}
+			else if("-replay".equals(arg))
+			{
+				replay = args[++i];
+			}
+			else if("-rate".equals(arg))
+			{
+				rate = Double.parseDouble(args[++i]);
+			}
+			else if("-threads".equals(arg))
+			{
+				threads = Integer.parseInt(args[++i]);
+			}
+			else if("-aggregate".equals(arg))
+			{
+				properties.put("activities.aggregate", args[++i]);
+			}
+			else if("-latency".equals(arg))
+			{
+				latency = Long.parseLong(args[++i]);
+			}
+			else if("-jitter".equals(arg))
+			{
+				jitter = Long.parseLong(args[++i]);
+			}
+			else if("-errors".equals(arg))
+			{
+				errors = Double.parseDouble(args[++i]);
+			}
+			else if("-slow".equals(arg))
+			{
+				slow = Double.parseDouble(args[++i]);
+			}
+			else if("-slowms".equals(arg))
+			{
+				slowLatency = Long.parseLong(args[++i]);
+			}
+			else if("-server".equals(arg))
+			{
+				server = Integer.parseInt(args[++i]);
+			}
+			else if("-drain".equals(arg))
+			{
+				drain = Long.parseLong(args[++i]);
+			}
+			else if("-set".equals(arg))
+			{
+				final String setting = args[++i];
+				final int split = setting.indexOf('=');
+				if(split < 1)
+				{
+					usage();
+					return;
+				}
+				properties.put(setting.substring(0, split),
+					setting.substring(split + 1));
+			}
+			else
+			{
+				usage();
+				return;
+			}
+		}
+
+		final LoadHarness harness;
+		if(replay != null)
+		{
+			harness = replay(replay, rate);
+		}
+		else
+		{
+			harness = synthetic(mix, count, rate);
+		}
+
+		final ShindigStub stub = new ShindigStub(0, server);
+		stub.setLatency(latency, jitter);
+		stub.setErrorRate(errors);
+		stub.setSlowResponses(slow, slowLatency);
+		stub.setBatchPath(properties.get("delivery.batch.url"));
+		stub.start();
+
+		properties.put("shindig.url", stub.getUrl());
+
+		Stubs.installUserManager();
+
+		try
+		{
+			harness.run(properties, threads, drain, stub, System.out);
+		}
+		finally
+		{
+			stub.stop();
+		}
+	}
+
+	private static void usage()
+	{
+		System.err.println("usage: LoadHarness [-mix name] [-events n]"
+			+ " [-replay file] [-rate n] [-threads n] [-aggregate true|false]"
+			+ " [-latency ms] [-jitter ms] [-errors rate] [-slow rate]"
+			+ " [-slowms ms] [-server n] [-drain ms] [-set key=value]...");
+	}
+
+	/**
+	 * @param mix kind of events
+	 * @param count number of events
+	 * @param rate events per second, 0 for as fast as possible
+	 * @return harness for a generated event stream
+	 */
+	public static LoadHarness synthetic(EventMix mix, int count, double rate)
+	{
+		final Event[] events = mix.generate(count);
+		final long[] offsets = new long[count];
+
+		for(int i = 0; i < count; ++i)
+		{
+			offsets[i] = rate > 0 ? (long) (i * 1000 / rate) : 0;
+		}
+
+		return new LoadHarness(events, offsets);
+	}
+
+	/**
+	 * Reads the events of a capture file. Captures contain neither paths,
+	 * titles, tags nor comments, so documents are renamed to doc-0, doc-1
+	 * and so on, tags point at the tagging document itself and comments get
+	 * a generic text.
+	 *
+	 * @param file capture file
+	 * @param rate events per second, 0 for the captured timing
+	 * @return harness for the captured event stream
+	 * @throws IOException if the file cannot be read
+	 */
+	public static LoadHarness replay(String file, double rate)
+		throws IOException
+	{
+		final List<CaptureRecord> records = new ArrayList<CaptureRecord>();
+
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(file), 65536));
+		try
+		{
+			CaptureRecord record;
+			while((record = CaptureRecord.readFrom(in)) != null)
+			{
+				if(record.getType() == CaptureRecord.TYPE_EVENT)
+				{
+					records.add(record);
+				}
+			}
+		}
+		catch(EOFException e)
+		{
+			System.err.println(file + ": truncated record after "
+				+ records.size() + " events");
+		}
+		finally
+		{
+			in.close();
+		}
+
+		//documents in the order they first appear
+		final Map<String, DocumentModel> documents =
+			new HashMap<String, DocumentModel>();
+		final Map<String, DocumentModel> byId =
+			new HashMap<String, DocumentModel>();
+		final CoreSession session = Stubs.session(byId);
+
+		final Event[] events = new Event[records.size()];
+		final long[] offsets = new long[records.size()];
+		final long start = records.isEmpty() ? 0
+			: records.get(0).getEventTime();
+
+		for(int i = 0; i < events.length; ++i)
+		{
+			final CaptureRecord record = records.get(i);
+
+			DocumentModel document = null;
+			if(record.getDocId() != null)
+			{
+				document = documents.get(record.getDocId());
+				if(document == null)
+				{
+					final int index = documents.size();
+					final String id = "doc-" + index;
+					if("Tagging".equals(record.getDocType()))
+					{
+						document = Stubs.tagging(id, "tag" + index, id);
+					}
+					else
+					{
+						document = Stubs.document(id, record.getDocType(),
+							"/default-domain/workspaces/folder-" + (index % 20)
+							+ "/document-" + index, "Document " + index);
+					}
+					documents.put(record.getDocId(), document);
+					byId.put(id, document);
+				}
+			}
+
+			final Map<String, Serializable> properties =
+				new HashMap<String, Serializable>();
+			if(document != null && record.getName().startsWith("comment"))
+			{
+				properties.put("comment_document", (Serializable) Stubs.document(
+					"comment-" + i, "Comment", document.getPathAsString()
+					+ "/comment", "Comment"));
+				properties.put("comment_text", "Replayed comment");
+			}
+
+			events[i] = Stubs.event(record.getName(), record.getPrincipal(),
+				document, properties, session);
+			offsets[i] = rate > 0 ? (long) (i * 1000 / rate)
+				: Math.max(0, record.getEventTime() - start);
+		}
+
+		return new LoadHarness(events, offsets);
+	}
+
+	/**
+	 * Submits all events on the given number of threads, each at its
+	 * offset, waits for the sender to become idle and prints the results.
+	 *
+	 * @param properties sender configuration overrides
+	 * @param threads number of submitting threads
+	 * @param drain longest time to wait for held back activities
+	 * @param stub server the sender posts to
+	 * @param print stream to print the report to
+	 * @throws Exception if the sender cannot be created
+	 */
+	public void run(Map<String, String> properties, int threads, long drain,
+		ShindigStub stub, PrintStream print) throws Exception
+	{
+		stub.setListener(new ShindigStub.IListener()
+		{
+			@Override
+			public void received(String user, String body, int activities)
+			{
+				delivered(body);
+			}
+		});
+
+		final ActivitySender sender = new ActivitySender(properties);
+
+		final long start = System.nanoTime();
+		submit(sender, threads, start);
+		final long submitted = System.nanoTime();
+
+		final long idle = awaitIdle(sender, drain);
+
+		//flushes whatever aggregation still holds back
+		sender.shutdown();
+		final long end = System.nanoTime();
+
+		print.println(report(sender, stub, submitted - start, idle - start,
+			end - start));
+	}
+
+	private void submit(final ActivitySender sender, int threads,
+		final long start) throws InterruptedException
+	{
+		final AtomicInteger next = new AtomicInteger();
+		final Thread[] workers = new Thread[threads];
+
+		for(int t = 0; t < threads; ++t)
+		{
+			workers[t] = new Thread("load-" + t)
+			{
+				@Override
+				public void run()
+				{
+					int i = next.getAndIncrement();
+					while(i < fEvents.length)
+					{
+						pace(start + TimeUnit.MILLISECONDS.toNanos(
+							fOffsets[i]));
+						submitted(fEvents[i]);
+
+						try
+						{
+							sender.handleEvent(fEvents[i]);
+						}
+						catch(RuntimeException e)
+						{
+							fFailed.incrementAndGet();
+						}
+
+						i = next.getAndIncrement();
+					}
+				}
+			};
+			workers[t].start();
+		}
+
+		for(Thread worker : workers)
+		{
+			worker.join();
+		}
+	}
+
+	private void pace(long due)
+	{
+		final long wait = due - System.nanoTime();
+		if(wait > 0)
+		{
+			try
+			{
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		else
+		{
+			//falling behind the target rate
+			final long lag = -wait;
+			long max = fMaxLag.get();
+			while(lag > max && !fMaxLag.compareAndSet(max, lag))
+			{
+				max = fMaxLag.get();
+			}
+		}
+	}
+
+	private long awaitIdle(ActivitySender sender, long drain)
+		throws InterruptedException
+	{
+		final DeliveryQueue queue = sender.getDeliveryQueue();
+		final ActivityAggregator aggregator = sender.getAggregator();
+		final long deadline = System.currentTimeMillis() + drain;
+
+		while(System.currentTimeMillis() < deadline)
+		{
+			if(queue.getDepth() == 0
+				&& aggregator.getMergingAggregator().getBucketCount() == 0
+				&& aggregator.getTaggingAggregator().getDeltaCount() == 0
+				&& aggregator.getDebouncingAggregator().getPendingCount() == 0)
+			{
+				fIdle = true;
+				break;
+			}
+
+			TimeUnit.MILLISECONDS.sleep(100);
+		}
+
+		return System.nanoTime();
+	}
+
+	private void submitted(Event event)
+	{
+		final Object[] args = event.getContext().getArguments();
+		if(args.length == 0 || !(args[0] instanceof DocumentModel))
+		{
+			return;
+		}
+
+		DocumentModel document = (DocumentModel) args[0];
+		String id = document.getVersionSeriesId();
+		if("Tagging".equals(document.getType()))
+		{
+			//tag activities are about the tagged document
+			id = document.getPart("relation").get("relation:source")
+				.getValue().toString();
+		}
+
+		List<Long> times = fPending.get(id);
+		if(times == null)
+		{
+			times = new ArrayList<Long>();
+			final List<Long> previous = fPending.putIfAbsent(id, times);
+			if(previous != null)
+			{
+				times = previous;
+			}
+		}
+
+		synchronized(times)
+		{
+			times.add(System.nanoTime());
+		}
+	}
+
+	private void delivered(String body)
+	{
+		final long now = System.nanoTime();
+
+		final Matcher matcher = DOC_ID.matcher(body);
+		while(matcher.find())
+		{
+			final List<Long> times = fPending.remove(matcher.group());
+			if(times == null)
+			{
+				continue;
+			}
+
+			synchronized(times)
+			{
+				for(Long time : times)
+				{
+					addLatency(now - time);
+				}
+			}
+		}
+	}
+
+	private synchronized void addLatency(long nanos)
+	{
+		if(fLatencyCount == fLatencies.length)
+		{
+			fLatencies = Arrays.copyOf(fLatencies, fLatencyCount * 2);
+		}
+		fLatencies[fLatencyCount++] = nanos;
+	}
+
+	private synchronized long[] getLatencies()
+	{
+		final long[] latencies = Arrays.copyOf(fLatencies, fLatencyCount);
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	private String report(ActivitySender sender, ShindigStub stub,
+		long submitTime, long idleTime, long totalTime)
+	{
+		final long events = fEvents.length;
+		final DeliveryQueue queue = sender.getDeliveryQueue();
+		final EventFilter filter = sender.getEventFilter();
+
+		long unmatched = 0;
+		for(List<Long> times : fPending.values())
+		{
+			unmatched += times.size();
+		}
+
+		final long[] latencies = getLatencies();
+
+		final StringBuilder report = new StringBuilder();
+		report.append("events:       ").append(events).append(" submitted in ")
+			.append(millis(submitTime)).append(" ms (")
+			.append(rate(events, submitTime)).append("/s), ")
+			.append(fFailed.get()).append(" failed, max lag ")
+			.append(millis(fMaxLag.get())).append(" ms\n");
+		report.append("filter:       ").append(filter.getAcceptedCount())
+			.append(" accepted, dropped ").append(filter.getDroppedCounts())
+			.append('\n');
+		report.append("drain:        ").append(fIdle ? "idle" : "still busy")
+			.append(" after ").append(millis(idleTime))
+			.append(" ms, shut down after ").append(millis(totalTime))
+			.append(" ms\n");
+		report.append("queue:        ").append(queue.getEnqueuedCount())
+			.append(" enqueued, ").append(queue.getDeliveredCount())
+			.append(" delivered, ").append(queue.getFailedCount())
+			.append(" failed, ").append(queue.getDroppedCount())
+			.append(" dropped, ").append(queue.getRetriedCount())
+			.append(" retried, ").append(queue.getSpilledCount())
+			.append(" spilled\n");
+		report.append("stub:         ").append(stub.getRequestCount())
+			.append(" requests, ").append(stub.getActivityCount())
+			.append(" activities, ").append(stub.getByteCount())
+			.append(" bytes, ").append(stub.getErrorCount())
+			.append(" errors, ").append(stub.getSlowCount())
+			.append(" slow, ").append(stub.getRejectedCount())
+			.append(" rejected\n");
+		report.append("aggregation:  ")
+			.append(ratio(stub.getRequestCount(), events))
+			.append(" requests and ")
+			.append(ratio(stub.getActivityCount(), events))
+			.append(" activities per event\n");
+		report.append("latency (ms): ").append(latencies.length)
+			.append(" events, ").append(unmatched).append(" unmatched");
+		if(latencies.length > 0)
+		{
+			report.append(", p50 ").append(percentile(latencies, 0.5))
+				.append(", p90 ").append(percentile(latencies, 0.9))
+				.append(", p99 ").append(percentile(latencies, 0.99))
+				.append(", p99.9 ").append(percentile(latencies, 0.999))
+				.append(", max ").append(millis(
+					latencies[latencies.length - 1]));
+		}
+
+		//lag from event to delivery as seen by the plugin itself
+		final PipelineMetrics metrics = PipelineMetrics.getInstance();
+		for(LagPath path : LagPath.values())
+		{
+			final StageTimer lag = metrics.getLag(path);
+			if(lag.getCount() > 0)
+			{
+				report.append('\n').append(pad("lag " + path.getLabel()
+					+ ":"))
+					.append(lag.getCount()).append(" delivered, p50 ")
+					.append(lag.getP50() / 1000).append(", p99 ")
+					.append(lag.getP99() / 1000).append(", max ")
+					.append(lag.getMax() / 1000).append(" ms");
+			}
+		}
+		report.append("\nlag alerts:   ").append(metrics.getLagAlertCount());
+
+		return report.toString();
+	}
+
+	private static String pad(String label)
+	{
+		final StringBuilder padded = new StringBuilder(label);
+		while(padded.length() < 14)
+		{
+			padded.append(' ');
+		}
+		return padded.toString();
+	}
+
+	private static long percentile(long[] sorted, double quantile)
+	{
+		final int index = (int) Math.ceil(quantile * sorted.length) - 1;
+		return millis(sorted[Math.max(0, index)]);
+	}
+
+	private static long millis(long nanos)
+	{
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	private static long rate(long count, long nanos)
+	{
+		return nanos > 0 ? count * 1000000000L / nanos : 0;
+	}
+
+	private static String ratio(long count, long events)
+	{
+		return events > 0 ? String.format("%.3f", (double) count / events)
+			: "0";
+	}
+}
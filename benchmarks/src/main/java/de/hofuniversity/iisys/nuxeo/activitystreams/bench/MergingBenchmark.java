@@ -0,0 +1,100 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.ActivitySender;
+import de.hofuniversity.iisys.nuxeo.activitystreams.agg.MergingAggregator;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.Activity;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.ActivityObject;
+
+/**
+ * Contention in the merging aggregator: threads adding document activities
+ * for a number of users and folders. BenchmarkRunner runs it with 1 to 32
+ * threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergingBenchmark
+{
+	private static final int ACTIVITIES = 4096;
+
+	private static final String URL =
+		"http://127.0.0.1:8080/nuxeo/nxpath/default/default-domain/workspaces/";
+
+	/** number of distinct user and folder buckets */
+	@Param({"16", "1024"})
+	public int fBuckets;
+
+	private ActivitySender fSender;
+	private MergingAggregator fAggregator;
+	private Activity[] fActivities;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		Stubs.installUserManager();
+
+		fSender = new ActivitySender(PipelineBenchmark.offlineProperties(
+			true));
+		fAggregator = fSender.getAggregator().getMergingAggregator();
+
+		fActivities = new Activity[ACTIVITIES];
+		for(int i = 0; i < ACTIVITIES; ++i)
+		{
+			final int bucket = i % fBuckets;
+
+			final Activity activity = new Activity("update");
+
+			final ActivityObject actor = new ActivityObject("person",
+				"User " + bucket % 10);
+			actor.setId("user" + bucket % 10);
+			activity.setActor(actor);
+
+			final ActivityObject object = new ActivityObject("Document",
+				"Document " + i);
+			object.setId("doc-" + i);
+			object.setUrl(URL + "folder-" + bucket + "/document-" + i
+				+ "/@view_documents");
+			activity.setObject(object);
+
+			fActivities[i] = activity;
+		}
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		fSender.shutdown();
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor
+	{
+		private int fNext = (int) Thread.currentThread().getId() * 31;
+	}
+
+	@Benchmark
+	public void handleActivity(Cursor cursor)
+	{
+		final Activity activity = fActivities[cursor.fNext++
+			& (ACTIVITIES - 1)];
+		fAggregator.handleActivity(activity, activity.getActor().getId());
+	}
+}
@@ -0,0 +1,96 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.ecm.core.event.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.ActivitySender;
+
+/**
+ * Whole handling of single events: filtering, document and user lookup,
+ * building the activity and aggregating or queueing it. Delivery runs in
+ * the background against a closed port and is not measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark
+{
+	private static final int EVENTS = 4096;
+
+	@Param({"CRUD", "TAGGING", "COMMENTS", "PUBLICATION", "MIXED"})
+	public EventMix fMix;
+
+	@Param({"true", "false"})
+	public boolean fAggregate;
+
+	private Event[] fEvents;
+	private ActivitySender fSender;
+
+	/**
+	 * @param aggregate whether to aggregate activities
+	 * @return properties running the sender without Nuxeo and Shindig
+	 */
+	public static Map<String, String> offlineProperties(boolean aggregate)
+	{
+		final Map<String, String> properties = new HashMap<String, String>();
+		properties.put("shindig.url", "http://127.0.0.1:9/shindig/");
+		properties.put("debug.logging", "false");
+		properties.put("delivery.outbox.dir", "");
+		properties.put("delivery.backpressure", "drop-oldest");
+		properties.put("delivery.retry.attempts", "0");
+		properties.put("activities.aggregate", Boolean.toString(aggregate));
+		return properties;
+	}
+
+	@Setup
+	public void setup() throws Exception
+	{
+		Stubs.installUserManager();
+
+		fEvents = fMix.generate(EVENTS);
+		fSender = new ActivitySender(offlineProperties(fAggregate));
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		fSender.shutdown();
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor
+	{
+		private int fNext;
+
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			fNext = 0;
+		}
+	}
+
+	@Benchmark
+	public void handleEvent(Cursor cursor)
+	{
+		fSender.handleEvent(fEvents[cursor.fNext++ & (EVENTS - 1)]);
+	}
+}
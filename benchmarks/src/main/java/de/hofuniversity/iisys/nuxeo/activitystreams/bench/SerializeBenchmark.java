@@ -0,0 +1,112 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.json.ActivityEncoder;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.Activity;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.ActivityObject;
+
+/**
+ * Serializing an activity through the precompiled templates compared to
+ * building a JSONObject tree, as the plugin did before. Run with the GC
+ * profiler to compare allocation per activity.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializeBenchmark
+{
+	private static final String CHARSET = "UTF-8";
+
+	private ActivityObject fGenerator;
+	private ActivityEncoder fEncoder;
+	private Activity fActivity;
+
+	@Setup
+	public void setup()
+	{
+		fGenerator = new ActivityObject("application", "Nuxeo");
+		fGenerator.setId("nuxeo");
+		fGenerator.setUrl("http://127.0.0.1:8080/nuxeo/");
+
+		fEncoder = new ActivityEncoder(fGenerator);
+		fEncoder.precompile("update", "Dokument aktualisiert");
+
+		fActivity = new Activity("update");
+		fActivity.setTitle("Dokument aktualisiert");
+
+		final ActivityObject actor = new ActivityObject("person",
+			"Jane Doe");
+		actor.setId("jdoe");
+		fActivity.setActor(actor);
+
+		final ActivityObject object = new ActivityObject("Document",
+			"Quarterly report \"Q3\" – draft");
+		object.setId("7f3c2a9e-4b1d-4c8e-9a51-2d6f0e8b1c44");
+		object.setUrl("http://127.0.0.1:8080/nuxeo/nxpath/default"
+			+ "/default-domain/workspaces/reports/q3/@view_documents");
+		object.setContent("type: File\nname: q3-report.odt");
+		fActivity.setObject(object);
+
+		final ActivityObject target = new ActivityObject("nuxeoCollection",
+			"Ordner");
+		target.setUrl("http://127.0.0.1:8080/nuxeo/nxpath/default"
+			+ "/default-domain/workspaces/reports/@view_documents");
+		fActivity.setTarget(target);
+	}
+
+	@Benchmark
+	public byte[] template()
+	{
+		return fEncoder.encode(fActivity);
+	}
+
+	@Benchmark
+	public byte[] builder() throws Exception
+	{
+		final JSONObject json = new JSONObject();
+		json.put("verb", fActivity.getVerb());
+		json.put("title", fActivity.getTitle());
+		json.put("actor", toJson(fActivity.getActor()));
+		json.put("object", toJson(fActivity.getObject()));
+		json.put("target", toJson(fActivity.getTarget()));
+		json.put("generator", toJson(fGenerator));
+
+		return json.toString().getBytes(CHARSET);
+	}
+
+	private JSONObject toJson(ActivityObject object) throws Exception
+	{
+		final JSONObject json = new JSONObject();
+		put(json, "id", object.getId());
+		put(json, "displayName", object.getDisplayName());
+		put(json, "objectType", object.getObjectType());
+		put(json, "url", object.getUrl());
+		put(json, "content", object.getContent());
+		return json;
+	}
+
+	private void put(JSONObject json, String key, String value)
+		throws Exception
+	{
+		if(value != null)
+		{
+			json.put(key, value);
+		}
+	}
+}
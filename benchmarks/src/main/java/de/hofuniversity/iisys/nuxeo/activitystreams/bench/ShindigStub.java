@@ -0,0 +1,337 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded stand-in for Shindig's activity stream endpoint
+ * social/rest/activitystreams/{user}/@self, accepting single activities and
+ * JSON arrays. Answers can be delayed, made to fail or made slow at random.
+ */
+public class ShindigStub
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String NODELAY_PROP = "sun.net.httpserver.nodelay";
+
+	private static final String CONTEXT = "/shindig/";
+	private static final String ACT_STR_FRAG = "social/rest/activitystreams/";
+	private static final String SELF = "/@self";
+
+	private static final byte[] OK = "{\"entry\":{}}".getBytes(UTF8);
+	private static final byte[] ERROR = "{\"error\":\"injected\"}".getBytes(
+		UTF8);
+
+	/**
+	 * Receives every accepted request body.
+	 */
+	public interface IListener
+	{
+		/**
+		 * @param user user of the stream, null for cross-user batches
+		 * @param body request body
+		 * @param activities number of activities in the body
+		 */
+		public void received(String user, String body, int activities);
+	}
+
+	private final HttpServer fServer;
+	private final ExecutorService fExecutor;
+
+	private volatile long fLatency, fJitter, fSlowLatency;
+	private volatile double fErrorRate, fSlowRate;
+	private volatile String fBatchPath;
+	private volatile IListener fListener;
+
+	private final AtomicLong fRequests, fActivities, fBytes, fErrors, fSlow,
+		fRejected;
+
+	/**
+	 * @param port port to listen on, 0 for any free one
+	 * @param threads number of requests answered concurrently
+	 * @throws IOException if the port cannot be bound
+	 */
+	public ShindigStub(int port, int threads) throws IOException
+	{
+		//headers and body are written separately, without this every answer
+		//waits for the client's delayed ACK
+		if(System.getProperty(NODELAY_PROP) == null)
+		{
+			System.setProperty(NODELAY_PROP, "true");
+		}
+
+		fServer = HttpServer.create(new InetSocketAddress("127.0.0.1", port),
+			0);
+		fExecutor = Executors.newFixedThreadPool(threads);
+
+		fServer.setExecutor(fExecutor);
+		fServer.createContext(CONTEXT, new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				try
+				{
+					answer(exchange);
+				}
+				finally
+				{
+					exchange.close();
+				}
+			}
+		});
+
+		fRequests = new AtomicLong();
+		fActivities = new AtomicLong();
+		fBytes = new AtomicLong();
+		fErrors = new AtomicLong();
+		fSlow = new AtomicLong();
+		fRejected = new AtomicLong();
+	}
+
+	public void start()
+	{
+		fServer.start();
+	}
+
+	public void stop()
+	{
+		fServer.stop(0);
+		fExecutor.shutdownNow();
+	}
+
+	/**
+	 * @return value for shindig.url pointing at this stub
+	 */
+	public String getUrl()
+	{
+		return "http://127.0.0.1:" + fServer.getAddress().getPort()
+			+ CONTEXT;
+	}
+
+	/**
+	 * @param latency time every answer takes in milliseconds
+	 * @param jitter random extra time of up to this many milliseconds
+	 */
+	public void setLatency(long latency, long jitter)
+	{
+		fLatency = latency;
+		fJitter = jitter;
+	}
+
+	/**
+	 * @param rate share of requests answered with status 500, 0 to 1
+	 */
+	public void setErrorRate(double rate)
+	{
+		fErrorRate = rate;
+	}
+
+	/**
+	 * @param rate share of requests taking the slow latency instead, 0 to 1
+	 * @param latency time slow answers take in milliseconds
+	 */
+	public void setSlowResponses(double rate, long latency)
+	{
+		fSlowRate = rate;
+		fSlowLatency = latency;
+	}
+
+	/**
+	 * @param path value of delivery.batch.url to accept cross-user batches
+	 *        at, null for none
+	 */
+	public void setBatchPath(String path)
+	{
+		fBatchPath = path;
+	}
+
+	public void setListener(IListener listener)
+	{
+		fListener = listener;
+	}
+
+	private void answer(HttpExchange exchange) throws IOException
+	{
+		fRequests.incrementAndGet();
+
+		//drain the body in any case to keep the connection usable
+		final byte[] body = read(exchange.getRequestBody());
+		fBytes.addAndGet(body.length);
+
+		final String path = exchange.getRequestURI().getPath().substring(
+			CONTEXT.length());
+
+		String user = null;
+		if(path.startsWith(ACT_STR_FRAG) && path.endsWith(SELF))
+		{
+			user = path.substring(ACT_STR_FRAG.length(),
+				path.length() - SELF.length());
+		}
+		else if(fBatchPath == null || !fBatchPath.equals(path))
+		{
+			fRejected.incrementAndGet();
+			respond(exchange, 404, ERROR);
+			return;
+		}
+
+		if(!"POST".equals(exchange.getRequestMethod()))
+		{
+			fRejected.incrementAndGet();
+			respond(exchange, 405, ERROR);
+			return;
+		}
+
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		long delay = fLatency;
+		if(fSlowRate > 0 && random.nextDouble() < fSlowRate)
+		{
+			fSlow.incrementAndGet();
+			delay = fSlowLatency;
+		}
+		if(fJitter > 0)
+		{
+			delay += random.nextLong(fJitter + 1);
+		}
+		sleep(delay);
+
+		if(fErrorRate > 0 && random.nextDouble() < fErrorRate)
+		{
+			fErrors.incrementAndGet();
+			respond(exchange, 500, ERROR);
+			return;
+		}
+
+		final String json = new String(body, UTF8);
+		final int activities = count(json);
+		fActivities.addAndGet(activities);
+
+		final IListener listener = fListener;
+		if(listener != null)
+		{
+			listener.received(user, json, activities);
+		}
+
+		respond(exchange, 200, OK);
+	}
+
+	private static int count(String json)
+	{
+		//every activity has exactly one verb
+		int count = 0;
+		int index = json.indexOf("\"verb\"");
+		while(index >= 0)
+		{
+			++count;
+			index = json.indexOf("\"verb\"", index + 6);
+		}
+		return count;
+	}
+
+	private static byte[] read(InputStream in) throws IOException
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[8192];
+
+		int read = in.read(buffer);
+		while(read >= 0)
+		{
+			out.write(buffer, 0, read);
+			read = in.read(buffer);
+		}
+		in.close();
+
+		return out.toByteArray();
+	}
+
+	private static void respond(HttpExchange exchange, int status,
+		byte[] body) throws IOException
+	{
+		exchange.getResponseHeaders().set("Content-Type",
+			"application/json; charset=UTF-8");
+		exchange.sendResponseHeaders(status, body.length);
+
+		final OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	private static void sleep(long millis)
+	{
+		if(millis <= 0)
+		{
+			return;
+		}
+
+		try
+		{
+			TimeUnit.MILLISECONDS.sleep(millis);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return number of requests received, including failed ones
+	 */
+	public long getRequestCount()
+	{
+		return fRequests.get();
+	}
+
+	/**
+	 * @return number of activities in successfully answered requests
+	 */
+	public long getActivityCount()
+	{
+		return fActivities.get();
+	}
+
+	/**
+	 * @return number of request body bytes received
+	 */
+	public long getByteCount()
+	{
+		return fBytes.get();
+	}
+
+	/**
+	 * @return number of injected errors
+	 */
+	public long getErrorCount()
+	{
+		return fErrors.get();
+	}
+
+	/**
+	 * @return number of slow answers
+	 */
+	public long getSlowCount()
+	{
+		return fSlow.get();
+	}
+
+	/**
+	 * @return number of requests to unknown paths or with other methods
+	 */
+	public long getRejectedCount()
+	{
+		return fRejected.get();
+	}
+}
@@ -0,0 +1,245 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.bench;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.ecm.core.api.model.DocumentPart;
+import org.nuxeo.ecm.core.api.model.Property;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.platform.usermanager.UserManager;
+import org.nuxeo.runtime.api.DefaultServiceProvider;
+import org.nuxeo.runtime.api.ServiceProvider;
+
+/**
+ * In-memory stand-ins for the Nuxeo interfaces the plugin uses. Each stub
+ * answers the methods it is given by name and returns null, false or 0 for
+ * everything else.
+ */
+public final class Stubs
+{
+	/**
+	 * Answer depending on the call's arguments.
+	 */
+	public interface IAnswer
+	{
+		public Object answer(Object[] args);
+	}
+
+	private Stubs()
+	{
+	}
+
+	/**
+	 * @param type interface to implement
+	 * @param answers return values or IAnswers by method name
+	 * @return stub
+	 */
+	public static <T> T stub(Class<T> type, final Map<String, Object> answers)
+	{
+		return type.cast(Proxy.newProxyInstance(Stubs.class.getClassLoader(),
+			new Class<?>[] {type}, new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				final String name = method.getName();
+				Object value = answers.get(name);
+
+				if(value instanceof IAnswer)
+				{
+					value = ((IAnswer) value).answer(args);
+				}
+				else if(value == null && "equals".equals(name))
+				{
+					value = proxy == args[0];
+				}
+				else if(value == null && "hashCode".equals(name))
+				{
+					value = System.identityHashCode(proxy);
+				}
+				else if(value == null && "toString".equals(name))
+				{
+					value = "stub " + answers.get("getName");
+				}
+
+				if(value == null && method.getReturnType().isPrimitive())
+				{
+					value = defaultValue(method.getReturnType());
+				}
+				return value;
+			}
+		}));
+	}
+
+	private static Object defaultValue(Class<?> type)
+	{
+		if(type == boolean.class)
+		{
+			return false;
+		}
+		if(type == int.class)
+		{
+			return 0;
+		}
+		if(type == long.class)
+		{
+			return 0L;
+		}
+		return null;
+	}
+
+	/**
+	 * @param id document id, also used as version series id
+	 * @param type document type
+	 * @param path repository path including the name
+	 * @param title document title
+	 * @return document stub
+	 */
+	public static DocumentModel document(String id, String type, String path,
+		String title)
+	{
+		final Map<String, Object> answers = new HashMap<String, Object>();
+		answers.put("getId", id);
+		answers.put("getVersionSeriesId", id);
+		answers.put("getType", type);
+		answers.put("getName", path.substring(path.lastIndexOf('/') + 1));
+		answers.put("getTitle", title);
+		answers.put("getPathAsString", path);
+		answers.put("getRepositoryName", "default");
+		answers.put("isFolder", false);
+		return stub(DocumentModel.class, answers);
+	}
+
+	/**
+	 * @param id document id
+	 * @param tag name of the tag
+	 * @param source id of the tagged document
+	 * @return "Tagging" relation document
+	 */
+	public static DocumentModel tagging(String id, String tag, String source)
+	{
+		final Map<String, Object> value = new HashMap<String, Object>();
+		value.put("getValue", source);
+		final Property property = stub(Property.class, value);
+
+		final Map<String, Object> part = new HashMap<String, Object>();
+		part.put("get", property);
+		final DocumentPart relation = stub(DocumentPart.class, part);
+
+		final Map<String, Object> answers = new HashMap<String, Object>();
+		answers.put("getId", id);
+		answers.put("getVersionSeriesId", id);
+		answers.put("getType", "Tagging");
+		answers.put("getName", tag);
+		answers.put("getTitle", tag);
+		answers.put("getPathAsString", "/tags/" + id);
+		answers.put("getRepositoryName", "default");
+		answers.put("getPart", relation);
+		return stub(DocumentModel.class, answers);
+	}
+
+	/**
+	 * @param name event name
+	 * @param user principal name
+	 * @param document primary document, may be null
+	 * @param properties context properties
+	 * @param session session returned by the context, may be null
+	 * @return event stub
+	 */
+	public static Event event(String name, String user, DocumentModel document,
+		final Map<String, Serializable> properties, CoreSession session)
+	{
+		final Map<String, Object> principal = new HashMap<String, Object>();
+		principal.put("getName", user);
+
+		final Map<String, Object> context = new HashMap<String, Object>();
+		context.put("getArguments", document != null
+			? new Object[] {document} : new Object[0]);
+		context.put("getProperties", properties);
+		context.put("getProperty", new IAnswer()
+		{
+			@Override
+			public Object answer(Object[] args)
+			{
+				return properties.get(args[0]);
+			}
+		});
+		context.put("hasProperty", new IAnswer()
+		{
+			@Override
+			public Object answer(Object[] args)
+			{
+				return properties.containsKey(args[0]);
+			}
+		});
+		context.put("getPrincipal", stub(Principal.class, principal));
+		context.put("getCoreSession", session);
+		context.put("getRepositoryName", "default");
+
+		final Map<String, Object> answers = new HashMap<String, Object>();
+		answers.put("getName", name);
+		answers.put("getTime", System.currentTimeMillis());
+		answers.put("getContext", stub(EventContext.class, context));
+		return stub(Event.class, answers);
+	}
+
+	/**
+	 * @param documents documents by id
+	 * @return session looking up the given documents
+	 */
+	public static CoreSession session(final Map<String, DocumentModel> documents)
+	{
+		final Map<String, Object> answers = new HashMap<String, Object>();
+		answers.put("getDocument", new IAnswer()
+		{
+			@Override
+			public Object answer(Object[] args)
+			{
+				return documents.get(args[0].toString());
+			}
+		});
+		return stub(CoreSession.class, answers);
+	}
+
+	/**
+	 * Makes Framework.getService return a user manager knowing every user,
+	 * with the user id as first and last name.
+	 */
+	public static void installUserManager()
+	{
+		final Map<String, Object> answers = new HashMap<String, Object>();
+		answers.put("getPrincipal", new IAnswer()
+		{
+			@Override
+			public Object answer(Object[] args)
+			{
+				final Map<String, Object> principal =
+					new HashMap<String, Object>();
+				principal.put("getName", args[0]);
+				principal.put("getFirstName", args[0]);
+				principal.put("getLastName", "Benchmark");
+				return stub(NuxeoPrincipal.class, principal);
+			}
+		});
+		final UserManager users = stub(UserManager.class, answers);
+
+		DefaultServiceProvider.setProvider(new ServiceProvider()
+		{
+			@Override
+			public <T> T getService(Class<T> serviceClass)
+			{
+				return serviceClass == UserManager.class
+					? serviceClass.cast(users) : null;
+			}
+		});
+	}
+}
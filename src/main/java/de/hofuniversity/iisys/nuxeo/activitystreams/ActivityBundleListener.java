@@ -0,0 +1,28 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.event.EventBundle;
+import org.nuxeo.ecm.core.event.PostCommitEventListener;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Post commit listener receiving all events of a transaction at once and
+ * handing them to the ActivityComponent's sender, which collapses events on
+ * the same document. Registering the ActivityEventListener instead handles
+ * events one at a time.
+ * It is registered via the OSGI-INF/extensions/....ActivityComponent.xml file.
+ */
+public class ActivityBundleListener implements PostCommitEventListener
+{
+	@Override
+	public void handleEvent(EventBundle events) throws ClientException
+	{
+		//not started yet or already shut down
+		final ActivitySender sender = Framework.getService(
+			ActivitySender.class);
+		if(sender != null)
+		{
+			sender.handleBundle(events);
+		}
+	}
+}
@@ -1,24 +1,52 @@
 package de.hofuniversity.iisys.nuxeo.activitystreams;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.DefaultComponent;
 import org.osgi.framework.Bundle;
 
+import de.hofuniversity.iisys.nuxeo.activitystreams.stats.ILagAlert;
+import de.hofuniversity.iisys.nuxeo.activitystreams.stats.LagPath;
+import de.hofuniversity.iisys.nuxeo.activitystreams.stats.PipelineMetrics;
+
 
 /**
- * Instantiates the ActivitySender as part of an OSGi bundle.
+ * Instantiates the one ActivitySender as part of an OSGi bundle, provides it
+ * to the event listeners as a service and publishes the pipeline statistics
+ * as MBeans.
  */
 public class ActivityComponent extends DefaultComponent
 {
+    //server log, independent of the plugin's debug log settings
+    private static final Log LOG = LogFactory.getLog(ActivityComponent.class);
+    
     protected Bundle bundle;
     
-    private ActivitySender fSender = null;
+    private volatile ActivitySender fSender = null;
+    
+    private ILagAlert fLagAlert = null;
     
     public Bundle getBundle()
     {
         return bundle;
     }
     
+    /**
+     * Provides the sender for Framework.getService(ActivitySender.class),
+     * null while the application has not started yet.
+     */
+    @Override
+    public <T> T getAdapter(Class<T> adapter)
+    {
+        if(adapter == ActivitySender.class)
+        {
+            return adapter.cast(fSender);
+        }
+        
+        return super.getAdapter(adapter);
+    }
+    
     /**
      * Component activated notification. 
      * Called when the component is activated. All component dependencies are resolved at that moment.
@@ -47,18 +75,28 @@ public class ActivityComponent extends DefaultComponent
     @Override
     public void deactivate(ComponentContext context)
     {
-        if(fSender != null)
+        final PipelineMetrics metrics = PipelineMetrics.getInstance();
+        if(metrics != null)
+        {
+            metrics.unregisterMBeans();
+            metrics.removeLagAlert(fLagAlert);
+        }
+        fLagAlert = null;
+        
+        //listeners stop receiving the sender before it shuts down
+        final ActivitySender sender = fSender;
+        fSender = null;
+        
+        if(sender != null)
         {
         	try
         	{
-//            	fSender.detach();
+            	sender.shutdown();
         	}
         	catch(Exception e)
         	{
         		e.printStackTrace();
         	}
-        	
-        	fSender = null;
         }
         
         this.bundle = null;
@@ -77,6 +115,29 @@ public class ActivityComponent extends DefaultComponent
     public void applicationStarted(ComponentContext context) throws Exception
     {
         fSender = new ActivitySender();
+        
+        //deliver whatever was left in the outbox by the last run
+        fSender.recover();
+        
+        //stage timings and counters of all senders
+        final PipelineMetrics metrics = PipelineMetrics.getInstance();
+        metrics.registerMBeans();
+        
+        //report activities reaching their streams too late
+        fLagAlert = new ILagAlert()
+        {
+            @Override
+            public void lagExceeded(LagPath path, String verb, long lag,
+                int suppressed)
+            {
+                final String msg = "activity stream lag of " + lag
+                    + " ms on path " + path.getLabel() + " (verb " + verb
+                    + ", " + suppressed + " more since last alert)";
+                
+                LOG.warn(msg);
+            }
+        };
+        metrics.addLagAlert(fLagAlert);
     }
 
 }
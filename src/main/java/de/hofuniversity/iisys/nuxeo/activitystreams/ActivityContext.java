@@ -0,0 +1,191 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams;
+
+import java.io.Serializable;
+import java.security.Principal;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.route.Route;
+
+/**
+ * State of one event on its way through filtering, aggregation and activity
+ * generation. Everything derived from the event is looked up once on first
+ * use, so later stages do not touch the document model again.
+ * Only used by the thread handling the event.
+ */
+public class ActivityContext
+{
+	private final Event fEvent;
+	private final EventContext fContext;
+	private final String fName;
+
+	private String fPrincipal;
+	private String fUserName;
+
+	private boolean fResolved;
+	private DocumentModel fDocument;
+	private String fDocType;
+
+	private Route fRoute;
+
+	private int fNumber;
+
+	public ActivityContext(Event event)
+	{
+		fEvent = event;
+		fContext = event.getContext();
+		fName = event.getName();
+	}
+
+	public Event getEvent()
+	{
+		return fEvent;
+	}
+
+	/**
+	 * @return event name
+	 */
+	public String getName()
+	{
+		return fName;
+	}
+
+	/**
+	 * @return name of the principal that caused the event
+	 */
+	public String getPrincipal()
+	{
+		if(fPrincipal == null)
+		{
+			final Principal principal = fContext.getPrincipal();
+			fPrincipal = principal.getName();
+		}
+
+		return fPrincipal;
+	}
+
+	/**
+	 * @return display name of the principal, null if not looked up yet
+	 */
+	public String getUserName()
+	{
+		return fUserName;
+	}
+
+	public void setUserName(String name)
+	{
+		fUserName = name;
+	}
+
+	/**
+	 * Takes over what has already been looked up for the same principal,
+	 * e.g. for the previous event of a transaction.
+	 *
+	 * @param other context of another event, may be null
+	 */
+	public void shareWith(ActivityContext other)
+	{
+		if(other == null || other.fUserName == null || fUserName != null)
+		{
+			return;
+		}
+
+		final Principal principal = fContext.getPrincipal();
+		if(principal != null && principal.getName().equals(other.fPrincipal))
+		{
+			fPrincipal = other.fPrincipal;
+			fUserName = other.fUserName;
+		}
+	}
+
+	public boolean hasProperty(String key)
+	{
+		return fContext.getProperties().containsKey(key);
+	}
+
+	public Serializable getProperty(String key)
+	{
+		return fContext.getProperty(key);
+	}
+
+	/**
+	 * @return whether the event has a document, without touching it
+	 */
+	public boolean hasDocument()
+	{
+		return getDocument() != null;
+	}
+
+	/**
+	 * @return the event's primary document, null if there is none
+	 */
+	public DocumentModel getDocument()
+	{
+		if(!fResolved)
+		{
+			//TODO: multiple attached files?
+			final Object[] args = fContext.getArguments();
+			if(args.length > 0 && args[0] instanceof DocumentModel)
+			{
+				fDocument = (DocumentModel) args[0];
+			}
+			fResolved = true;
+		}
+
+		return fDocument;
+	}
+
+	/**
+	 * Shows the document as a later event on it left it, keeping this
+	 * event's name and principal.
+	 *
+	 * @param later context of a later event on the same document
+	 */
+	void takeDocument(ActivityContext later)
+	{
+		fDocument = later.getDocument();
+		fDocType = later.getDocType();
+		fResolved = true;
+	}
+
+	/**
+	 * @return type of the primary document, null if there is none
+	 */
+	public String getDocType()
+	{
+		if(fDocType == null && getDocument() != null)
+		{
+			fDocType = fDocument.getType();
+		}
+
+		return fDocType;
+	}
+
+	/**
+	 * @return routing decision for the event, available once filtered
+	 */
+	public Route getRoute()
+	{
+		return fRoute;
+	}
+
+	void setRoute(Route route)
+	{
+		fRoute = route;
+	}
+
+	/**
+	 * @return sequence number of the event in the debug log
+	 */
+	public int getNumber()
+	{
+		return fNumber;
+	}
+
+	public void setNumber(int number)
+	{
+		fNumber = number;
+	}
+}
@@ -0,0 +1,25 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Listener handing events one at a time to the ActivityComponent's sender,
+ * without collapsing events of the same transaction.
+ */
+public class ActivityEventListener implements EventListener
+{
+	@Override
+	public void handleEvent(Event event) throws ClientException
+	{
+		//not started yet or already shut down
+		final ActivitySender sender = Framework.getService(
+			ActivitySender.class);
+		if(sender != null)
+		{
+			sender.handleEvent(event);
+		}
+	}
+}
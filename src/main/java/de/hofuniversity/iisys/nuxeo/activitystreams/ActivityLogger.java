@@ -1,14 +1,16 @@
 package de.hofuniversity.iisys.nuxeo.activitystreams;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
 import java.security.Principal;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.model.DocumentPart;
@@ -17,56 +19,296 @@ import org.nuxeo.ecm.core.event.EventContext;
 import org.nuxeo.ecm.user.center.profile.UserProfileService;
 import org.nuxeo.runtime.api.Framework;
 
+import de.hofuniversity.iisys.nuxeo.activitystreams.capture.CaptureRecord;
+
+/**
+ * Debug log of events and activities. Messages are formatted on the calling
+ * thread and written asynchronously through a shared {@link LogChannel}, so
+ * logging never blocks or fails the event thread.
+ * With capture enabled, events and activities are written as compact binary
+ * {@link CaptureRecord}s to a separate file instead of the full text dump.
+ * What is written is decided by a {@link CapturePolicy}, which can be
+ * changed at runtime; files are only opened once something is written.
+ */
 public class ActivityLogger
 {
-	private final String fOutputFile;
-	private final boolean fActive;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	
+	private static final String SEPARATOR = System.getProperty(
+		"line.separator");
+	
+	private static final String LOGGING_PROP = "debug.logging";
+	private static final String CAPTURE_PROP = "debug.capture";
+	private static final String CAPTURE_FILE_PROP = "debug.capture.file";
+	
+	private final Map<String, String> fProperties;
+	private final String fOutputFile, fCaptureFile;
+	
+	private final CapturePolicy fPolicy;
+	
+	private volatile LogChannel fChannel, fCapture;
+	private boolean fClosed;
+	
+	//counts of the log channel once released, and messages after that
+	private volatile long fFinalWritten, fFinalDropped;
+	private final AtomicLong fDroppedClosed;
 	
 	public ActivityLogger(String outputFile, boolean active)
 	{
-		fOutputFile = outputFile;
-		fActive = active;
+		this(outputFile, active, Collections.<String, String>emptyMap());
+	}
+	
+	public ActivityLogger(String outputFile, boolean active,
+		Map<String, String> properties)
+	{
+		fProperties = new HashMap<String, String>(properties);
+		fProperties.put(LOGGING_PROP, Boolean.toString(active));
+		
+		fOutputFile = outputFile != null && !outputFile.isEmpty()
+			? outputFile : null;
+		
+		final String captureFile = properties.get(CAPTURE_FILE_PROP);
+		fCaptureFile = Boolean.parseBoolean(properties.get(CAPTURE_PROP))
+			&& captureFile != null && !captureFile.isEmpty()
+			? captureFile : null;
+		
+		fPolicy = new CapturePolicy(fProperties);
+		
+		fDroppedClosed = new AtomicLong();
+	}
+	
+	private LogChannel getChannel()
+	{
+		if(fChannel == null)
+		{
+			synchronized(this)
+			{
+				if(fClosed)
+				{
+					//nothing writes the messages any more
+					fDroppedClosed.incrementAndGet();
+					return null;
+				}
+				
+				if(fChannel == null)
+				{
+					fChannel = LogChannel.acquire(fOutputFile, fProperties);
+				}
+			}
+		}
+		
+		return fChannel;
+	}
+	
+	private LogChannel getCapture()
+	{
+		if(fCapture == null)
+		{
+			synchronized(this)
+			{
+				if(fClosed)
+				{
+					fDroppedClosed.incrementAndGet();
+					return null;
+				}
+				
+				if(fCapture == null)
+				{
+					fCapture = LogChannel.acquire(fCaptureFile, fProperties);
+				}
+			}
+		}
+		
+		return fCapture;
+	}
+	
+	public CapturePolicy getPolicy()
+	{
+		return fPolicy;
+	}
+	
+	private boolean isEnabled(CapturePolicy.Level level)
+	{
+		return fOutputFile != null && fPolicy.isEnabled(level);
+	}
+	
+	public boolean isActive()
+	{
+		return isEnabled(CapturePolicy.Level.FAILURES);
 	}
 	
-	public void logString(String msg) throws ClientException
+	public boolean isCapturing()
 	{
-		if(!fActive)
+		return fCaptureFile != null;
+	}
+	
+	/**
+	 * Checks for changed settings and decides whether an event is logged in
+	 * full, to be called once per event.
+	 * 
+	 * @param eventName name of the event
+	 * @return whether the event and its activity should be logged
+	 */
+	public boolean sample(String eventName)
+	{
+		fPolicy.refresh();
+		return fOutputFile != null && fPolicy.sample(eventName);
+	}
+	
+	/**
+	 * Logs a debug message if everything is logged.
+	 */
+	public void logString(String msg)
+	{
+		if(isEnabled(CapturePolicy.Level.ALL))
+		{
+			write(msg);
+		}
+	}
+	
+	/**
+	 * Logs an error message unless logging is off.
+	 */
+	public void logError(String msg)
+	{
+		if(isEnabled(CapturePolicy.Level.FAILURES))
+		{
+			write(msg);
+		}
+	}
+	
+	private void write(String msg)
+	{
+		final LogChannel channel = getChannel();
+		if(channel != null)
+		{
+			channel.offer((msg + SEPARATOR + SEPARATOR + SEPARATOR)
+				.getBytes(CHARSET));
+		}
+	}
+	
+	/**
+	 * Logs an exception's message and stack trace unless logging is off.
+	 */
+	public void logException(Exception exception)
+	{
+		if(!isEnabled(CapturePolicy.Level.FAILURES))
 		{
 			return;
 		}
 		
-		try
+		final StringBuilder msg = new StringBuilder();
+		msg.append("Exception: ").append(exception.getMessage());
+		msg.append(SEPARATOR).append("stack trace: ");
+		for(StackTraceElement element : exception.getStackTrace())
 		{
-			final PrintWriter writer = new PrintWriter(new BufferedWriter(
-				new FileWriter(fOutputFile, true)));
-
-			writer.println(msg);
-			
-			writer.println();
-			writer.println();
-			
-			writer.flush();
-			writer.close();
+			msg.append(SEPARATOR).append(element);
 		}
-		catch(Exception e)
+		
+		write(msg.toString());
+	}
+	
+	/**
+	 * Logs an event that could not be handled together with the exception
+	 * unless logging is off.
+	 * 
+	 * @param event failed event, null if it has already been logged
+	 * @param number event number
+	 * @param exception cause of the failure
+	 */
+	public void logFailure(Event event, int number, Exception exception)
+	{
+		if(!isEnabled(CapturePolicy.Level.FAILURES))
+		{
+			return;
+		}
+		
+		if(event != null)
 		{
-			//TODO: activate for production
-			throw new ClientException(e);
-//			e.printStackTrace();
+			writeEvent(event, number);
 		}
+		logException(exception);
 	}
 	
-	public void logEvent(final Event event, int number) throws ClientException
+	/**
+	 * Logs an activity that was generated for the event with the given
+	 * number.
+	 * 
+	 * @param number event number
+	 * @param user user whose stream the activity goes to
+	 * @param json encoded activity
+	 */
+	public void logActivity(int number, String user, byte[] json)
 	{
-		if(!fActive)
+		if(!isEnabled(CapturePolicy.Level.ALL))
 		{
 			return;
 		}
 		
+		if(fCaptureFile != null)
+		{
+			final LogChannel capture = getCapture();
+			if(capture != null)
+			{
+				capture.offer(CaptureRecord.activity(number,
+					System.currentTimeMillis(), user, json).toByteArray());
+			}
+		}
+		else
+		{
+			write("activity " + number + ":" + SEPARATOR
+				+ new String(json, CHARSET));
+		}
+	}
+	
+	/**
+	 * Logs an activity aggregated from several events. Having no event of
+	 * its own, it only goes to the text log and never to the capture file.
+	 * 
+	 * @param user user whose stream the activity goes to
+	 * @param json encoded activity
+	 */
+	public void logAggregate(String user, byte[] json)
+	{
+		if(isEnabled(CapturePolicy.Level.ALL))
+		{
+			write("aggregated activity for " + user + ":" + SEPARATOR
+				+ new String(json, CHARSET));
+		}
+	}
+	
+	/**
+	 * Logs an event in full, callers should check {@link #sample(String)}
+	 * first.
+	 */
+	public void logEvent(final Event event, int number)
+	{
+		if(isEnabled(CapturePolicy.Level.ALL))
+		{
+			writeEvent(event, number);
+		}
+	}
+	
+	private void writeEvent(final Event event, int number)
+	{
+		if(fCaptureFile != null)
+		{
+			captureEvent(event, number);
+			return;
+		}
+		
+		final LogChannel channel = getChannel();
+		if(channel == null)
+		{
+			return;
+		}
+		
+		//the event is only valid now, so it is formatted right away
+		final StringWriter buffer = new StringWriter(4096);
+		
 		try
 		{
-			final PrintWriter writer = new PrintWriter(new BufferedWriter(
-				new FileWriter(fOutputFile, true)));
+			final PrintWriter writer = new PrintWriter(buffer);
 			
 			writer.println("event " + number + ":");
 			writer.println("class: " + event.getClass().getName());
@@ -280,13 +522,96 @@ public class ActivityLogger
 			writer.println();
 			
 			writer.flush();
-			writer.close();
 		}
 		catch(Exception e)
 		{
-			//TODO: activate for production
-			throw new ClientException(e);
-//			e.printStackTrace();
+			//log what could be formatted, never fail the event
+			buffer.write("\tfailed to log event: " + e + SEPARATOR + SEPARATOR);
+		}
+		
+		channel.offer(buffer.toString().getBytes(CHARSET));
+	}
+	
+	private void captureEvent(Event event, int number)
+	{
+		final LogChannel capture = getCapture();
+		if(capture == null)
+		{
+			return;
+		}
+		
+		try
+		{
+			final EventContext context = event.getContext();
+			
+			//the document is the first model among the arguments
+			DocumentModel model = null;
+			for(Object arg : context.getArguments())
+			{
+				if(arg instanceof DocumentModel)
+				{
+					model = (DocumentModel) arg;
+					break;
+				}
+			}
+			
+			final Principal principal = context.getPrincipal();
+			
+			capture.offer(CaptureRecord.event(number,
+				System.currentTimeMillis(), event.getTime(), event.getFlags(),
+				event.getName(),
+				model != null ? model.getId() : null,
+				model != null ? model.getType() : null,
+				principal != null ? principal.getName() : null).toByteArray());
+		}
+		catch(Exception e)
+		{
+			//never fail the event
+			logError("failed to capture event " + number + ": " + e);
 		}
 	}
+	
+	/**
+	 * Writes pending messages and releases the log files. Messages logged
+	 * afterwards are counted as dropped.
+	 */
+	public void close()
+	{
+		final LogChannel channel, capture;
+		synchronized(this)
+		{
+			fClosed = true;
+			
+			channel = fChannel;
+			capture = fCapture;
+			fChannel = null;
+			fCapture = null;
+		}
+		
+		if(channel != null)
+		{
+			channel.release();
+			
+			fFinalWritten = channel.getWrittenCount();
+			fFinalDropped = channel.getDroppedCount();
+		}
+		
+		if(capture != null)
+		{
+			capture.release();
+		}
+	}
+	
+	public long getDroppedCount()
+	{
+		final LogChannel channel = fChannel;
+		return (channel != null ? channel.getDroppedCount() : fFinalDropped)
+			+ fDroppedClosed.get();
+	}
+	
+	public long getWrittenCount()
+	{
+		final LogChannel channel = fChannel;
+		return channel != null ? channel.getWrittenCount() : fFinalWritten;
+	}
 }
@@ -1,39 +1,46 @@
 package de.hofuniversity.iisys.nuxeo.activitystreams;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.io.Serializable;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.ResourceBundle;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONObject;
 import org.nuxeo.ecm.core.api.ClientException;
-import org.nuxeo.ecm.core.api.CoreInstance;
-import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.IdRef;
 import org.nuxeo.ecm.core.api.NuxeoPrincipal;
 import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventBundle;
 import org.nuxeo.ecm.core.event.EventListener;
 import org.nuxeo.ecm.platform.usermanager.UserManager;
 import org.nuxeo.runtime.api.Framework;
-import org.nuxeo.runtime.transaction.TransactionHelper;
 
 import de.hofuniversity.iisys.nuxeo.activitystreams.agg.ActivityAggregator;
+import de.hofuniversity.iisys.nuxeo.activitystreams.agg.TagDelta;
+import de.hofuniversity.iisys.nuxeo.activitystreams.json.ActivityEncoder;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.Activity;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.ActivityObject;
+import de.hofuniversity.iisys.nuxeo.activitystreams.route.Route;
+import de.hofuniversity.iisys.nuxeo.activitystreams.route.Router;
+import de.hofuniversity.iisys.nuxeo.activitystreams.route.RoutingRule;
+import de.hofuniversity.iisys.nuxeo.activitystreams.send.ActivityOutbox;
+import de.hofuniversity.iisys.nuxeo.activitystreams.send.ActivityOutbox.Record;
+import de.hofuniversity.iisys.nuxeo.activitystreams.send.Delivery;
+import de.hofuniversity.iisys.nuxeo.activitystreams.send.DeliveryQueue;
+import de.hofuniversity.iisys.nuxeo.activitystreams.send.ShindigClient;
+import de.hofuniversity.iisys.nuxeo.activitystreams.send.ShindigDelivery;
+import de.hofuniversity.iisys.nuxeo.activitystreams.stats.LagPath;
+import de.hofuniversity.iisys.nuxeo.activitystreams.stats.PipelineMetrics;
+import de.hofuniversity.iisys.nuxeo.activitystreams.stats.Stage;
 
 /**
  * Event listener sending internal activities to an Apache Shindig instance.
@@ -44,7 +51,6 @@ public class ActivitySender	implements EventListener
 	private static final String PROPERTIES = "activitystreams";
 	private static final String LANG_PROPS = "activitystreams_lang";
 	
-	private static final String SHINDIG_URL_PROP = "shindig.url";
 	private static final String NUXEO_URL_PROP = "nuxeo.url";
 	private static final String OUTPUT_FILE_PROP = "debug.logfile";
 	
@@ -62,8 +68,6 @@ public class ActivitySender	implements EventListener
 	private static final String BLOCK_NONSNAPS_PROP =
 			"updates.nonsnapshots.ignore";
 	
-	private static final String ACT_STR_FRAG = "social/rest/activitystreams/";
-	
 	private static final String ACT_OBJ_ID_PROP = "nuxeo.activityobject.id";
 	private static final String ACT_OBJ_NAME_PROP =
 			"nuxeo.activityobject.displayName";
@@ -80,11 +84,11 @@ public class ActivitySender	implements EventListener
 	
 	private final Map<String, String> fProperties;
 	
-	private final Set<String> fBlackList, fObjectBlackList;
 	private final Map<String, String> fVerbMap, fTitleMap;
-	private final JSONObject fGenerator;
+	private final ActivityObject fGenerator;
+	
+	private final ActivityEncoder fEncoder;
 
-	private final String fShindigUrl;
 	private final String fNuxeoUrl;
 	private final String fOutputFile;
 
@@ -101,9 +105,29 @@ public class ActivitySender	implements EventListener
 
 	private final ActivityAggregator fAggregator;
 	
+	private final DeliveryQueue fDelivery;
+	
+	private final ActivityOutbox fOutbox;
+	
+	private final ShindigClient fClient;
+	
 	private UserManager fUserService;
 	
-	private int fNumber = 0;
+	private final UserNameCache fUserNames;
+	private final UserNameCache.ILoader fNameLoader;
+	
+	private final DocumentResolver fResolver;
+	
+	private final Router fRouter;
+	
+	private final EventFilter fFilter;
+	
+	private final EventCollapser fCollapser;
+	
+	private final PipelineMetrics fMetrics;
+	
+	//incremented by concurrent asynchronous listeners
+	private final AtomicInteger fNumber;
 	
 	/**
 	 * Reads the sender's properties file and starts its internal threads.
@@ -111,21 +135,35 @@ public class ActivitySender	implements EventListener
 	 * @throws Exception if anything goes wrong
 	 */
 	public ActivitySender() throws Exception
+	{
+		this(Collections.<String, String>emptyMap());
+	}
+	
+	/**
+	 * Reads the sender's properties file, replacing the given entries, and
+	 * starts its internal threads. Used to run the sender outside of a
+	 * Nuxeo instance, e.g. against a local Shindig.
+	 * 
+	 * @param overrides properties replacing those from the file
+	 * @throws Exception if anything goes wrong
+	 */
+	public ActivitySender(Map<String, String> overrides) throws Exception
 	{
 		fProperties = new HashMap<String, String>();
+		fNumber = new AtomicInteger();
 		fTitleMap = new HashMap<String, String>();
 		fVerbMap = new HashMap<String, String>();
 		
 		//TODO: internationalization
 		
 		readConfig();
+		fProperties.putAll(overrides);
 
 		fProfileName = fProperties.get(PROFILE_NAME);
 		fCommentName = fProperties.get(COMMENT_NAME);
 		fApprovalName = fProperties.get(APPROVAL_NAME);
         
         //set general parameters
-        fShindigUrl = fProperties.get(SHINDIG_URL_PROP);
         fNuxeoUrl = fProperties.get(NUXEO_URL_PROP);
         fOutputFile = fProperties.get(OUTPUT_FILE_PROP);
         
@@ -153,28 +191,39 @@ public class ActivitySender	implements EventListener
         fDownloadUrls = downloadUrls;
 		
 		//initialize logging if configured
-		fActLogger = new ActivityLogger(fOutputFile, fLogging);
-		if(fLogging)
-		{
-			
-			try
-			{
-				final PrintWriter writer = new PrintWriter(new BufferedWriter(
-					new FileWriter(fOutputFile, true)));
-				
-				writer.println("initialized activtity stream logger");
-				
-				writer.println();
-				writer.println();
-				
-				writer.flush();
-				writer.close();
-			}
-			catch(Exception e)
-			{
-				e.printStackTrace();
-			}
-		}
+		fActLogger = new ActivityLogger(fOutputFile, fLogging, fProperties);
+		fActLogger.logString("initialized activtity stream logger");
+		
+		//stage timers, shared with the delivery queue and other senders
+		fMetrics = PipelineMetrics.getInstance(fProperties);
+        
+        ActivityOutbox outbox = null;
+        try
+        {
+        	outbox = ActivityOutbox.open(fProperties, fActLogger);
+        }
+        catch(Exception e)
+        {
+        	fActLogger.logError("outbox unavailable: " + e.getLocalizedMessage());
+        	e.printStackTrace();
+        }
+        fOutbox = outbox;
+        
+        fUserNames = UserNameCache.getInstance(fProperties);
+        fNameLoader = new UserNameCache.ILoader()
+        {
+        	@Override
+        	public String load(String userId) throws Exception
+        	{
+        		return loadUserName(userId);
+        	}
+        };
+        
+        fResolver = new DocumentResolver(this, fProperties);
+        
+        fClient = new ShindigClient(fProperties);
+        fDelivery = new DeliveryQueue(fProperties, new ShindigDelivery(
+        		fProperties, fClient, fActLogger), fOutbox);
         
         fAggregator = new ActivityAggregator(fProperties, this, fActLogger);
         
@@ -187,17 +236,29 @@ public class ActivitySender	implements EventListener
         	e.printStackTrace();
         }
 		
-		//blacklisted types
-		fBlackList = new HashSet<String>();
-		fObjectBlackList = new HashSet<String>();
-		fillBlacklists();
+		//routing rules, after the blacklisted types
+		fRouter = new Router(fProperties, createFixedRules());
+		
+		fFilter = new EventFilter(fRouter, fIgnoreFolders, fAggregator);
+		
+		fCollapser = new EventCollapser(fProperties);
 		
 		//create fixed generator activity object
-		fGenerator = new JSONObject();
-		fGenerator.put("id", fProperties.get(ACT_OBJ_ID_PROP));
-		fGenerator.put("displayName", fProperties.get(ACT_OBJ_NAME_PROP));
-		fGenerator.put("objectType", fProperties.get(ACT_OBJ_TYPE_PROP));
-		fGenerator.put("url", fNuxeoUrl);
+		fGenerator = new ActivityObject(fProperties.get(ACT_OBJ_TYPE_PROP),
+			fProperties.get(ACT_OBJ_NAME_PROP));
+		fGenerator.setId(fProperties.get(ACT_OBJ_ID_PROP));
+		fGenerator.setUrl(fNuxeoUrl);
+		
+		//precompile activity templates for all configured event types
+		fEncoder = new ActivityEncoder(fGenerator);
+		for(Entry<String, String> verb : fVerbMap.entrySet())
+		{
+			fEncoder.precompile(verb.getValue(),
+				fTitleMap.get(verb.getKey()));
+		}
+		
+		//publish statistics over JMX
+		fMetrics.addSender(this);
 	}
 	
 	private void readConfig()
@@ -269,70 +330,90 @@ public class ActivitySender	implements EventListener
         }
 	}
 	
-	private void fillBlacklists()
+	private List<RoutingRule> createFixedRules()
 	{
+		final List<RoutingRule> rules = new ArrayList<RoutingRule>();
+		
 		//event type based blacklisting
 		String blackListProp = fProperties.get("events.blacklist");
-		if(blackListProp.contains(","))
-		{
-			String[] entries = blackListProp.split(",");
-			fBlackList.addAll(Arrays.asList(entries));
-		}
-		else
+		for(String entry : blackListProp.split(","))
 		{
-			fBlackList.add(blackListProp);
+			addFixedRule(rules, entry.trim(), RoutingRule.ANY, "drop");
 		}
 		
 		//object type based blacklisting
 		//block collections in general if configured
 		if(fBlockColls)
 		{
-			fObjectBlackList.add("Collection");
+			addFixedRule(rules, RoutingRule.ANY, "Collection", "drop");
 		}
 		
 		//block favorites in general if configured
 		if(fBlockFavorites)
 		{
-			fObjectBlackList.add("Favorites");
+			addFixedRule(rules, RoutingRule.ANY, "Favorites", "drop");
 		}
 		
 		//block route nodes if configured
 		if(fBlockRouteNodes)
 		{
-			fObjectBlackList.add("RouteNode");
+			addFixedRule(rules, RoutingRule.ANY, "RouteNode", "drop");
 		}
 		
 		//block task documents if configured
 		if(fBlockTaskDocs)
 		{
-			fObjectBlackList.add("TaskDoc");
+			addFixedRule(rules, RoutingRule.ANY, "TaskDoc", "drop");
 		}
 		
 		//the tag itself being created, not a "Tagging"
-		fObjectBlackList.add("Tag");
+		addFixedRule(rules, RoutingRule.ANY, "Tag", "drop");
+		
+		//block changes that will not be snapshotted
+		if(fBlockNonSnapshots)
+		{
+			addFixedRule(rules, RoutingRule.ANY, RoutingRule.ANY,
+				"reject=CREATE_SNAPSHOT_ON_SAVE");
+		}
+		
+		return rules;
 	}
 	
-	public JSONObject getGenerator()
+	private void addFixedRule(List<RoutingRule> rules, String event,
+		String type, String setting)
+	{
+		final RoutingRule rule = new RoutingRule(PROPERTIES + ".properties",
+			event, type);
+		rule.set(setting);
+		rules.add(rule);
+	}
+	
+	public ActivityObject getGenerator()
 	{
 		return fGenerator;
 	}
 	
-	public void sendTagAggAct(String docId, String user, List<String> tags, boolean add)
+	public void sendTagAggAct(String docId, String user, Collection<String> tags, boolean add,
+		TagDelta delta)
 	{
 		try
 		{
 			//activity
-			JSONObject activity = new JSONObject();
+			Activity activity = new Activity();
+			
+			//tagging events collected, for lag statistics
+			activity.setOrigin(Activity.Origin.TAG);
+			activity.addEventTime(delta.getEventTime());
+			activity.addEventTime(delta.getLastEventTime());
 			
 			//user
-			JSONObject actor = new JSONObject();
-			actor.put("id", user);
-			actor.put("displayName", getUserName(user));
-			actor.put("objectType", "person");
-			activity.put("actor", actor);
+			ActivityObject actor = new ActivityObject("person",
+				getUserName(user));
+			actor.setId(user);
+			activity.setActor(actor);
 
 			//prepare document
-			JSONObject document = getDocumentObjectById(docId);
+			ActivityObject document = getDocumentObjectById(docId);
 			if(document == null)
 			{
 				//abort if document is gone
@@ -342,16 +423,17 @@ public class ActivitySender	implements EventListener
 			if(tags != null && !tags.isEmpty())
 			{
 				//tag list available
-				JSONObject tagList = new JSONObject();
+				ActivityObject tagList = new ActivityObject();
 				
 				//list of tags
-				String tagString = "";
+				StringBuilder tagNames = new StringBuilder();
 				//list available
 				for(String tag : tags)
 				{
-					tagString += tag + ", ";
+					tagNames.append(tag).append(", ");
 				}
-				tagString = tagString.substring(0, tagString.lastIndexOf(","));
+				String tagString = tagNames.substring(0,
+					tagNames.lastIndexOf(","));
 				if(tags.size() > 1)
 				{
 					tagString = "Tags " + "(" + tagString + ")";
@@ -360,69 +442,53 @@ public class ActivitySender	implements EventListener
 				{
 					tagString = "Tag " + "\"" + tagString + "\"";
 				}
-				tagList.put("displayName", tagString);
-				tagList.put("objectType", "nuxeoTag");
-				activity.put("object", tagList);
+				tagList.setDisplayName(tagString);
+				tagList.setObjectType("nuxeoTag");
+				activity.setObject(tagList);
 				
 				//appropriate verb
 				if(add)
 				{
-					activity.put("verb", "add");
+					activity.setVerb("add");
 				}
 				else
 				{
-					activity.put("verb", "remove");
+					activity.setVerb("remove");
 				}
 				
 				//add document as target
-				activity.put("target", document);
+				activity.setTarget(document);
 			}
 			else
 			{
 				//generic tagging event
-				activity.put("verb", "tag");
-				activity.put("object", document);
+				activity.setVerb("tag");
+				activity.setObject(document);
 			}
 			
 			//send to shindig
 			fAggregator.handleActivity(activity, user);
 			
-			if(fLogging)
-			{
-				logActivity(activity, user);
-			}
+			logActivity(activity, user);
 		}
 		catch(Exception e)
 		{
 			//TODO?
-			fActLogger.logString("Exception: " + e.getLocalizedMessage());
+			fActLogger.logError("Exception: " + e.getLocalizedMessage());
 			e.printStackTrace();
 		}
 	}
 	
-	private JSONObject getDocumentObjectById(String docId) throws Exception
+	private ActivityObject getDocumentObjectById(String docId) throws Exception
 	{
-		CoreSession session = CoreInstance.openCoreSessionSystem("default");
-		
-		boolean tx = false;
-		if(TransactionHelper.isNoTransaction())
-		{
-			TransactionHelper.startTransaction();
-			tx = true;
-		}
-		DocumentModel model = session.getDocument(new IdRef(docId));
-		if(tx)
-		{
-			TransactionHelper.commitOrRollbackTransaction();
-		}
-
-		if(model != null)
+		final long start = fMetrics.start();
+		try
 		{
-			return getDocument(model);
+			return fResolver.resolve(docId);
 		}
-		else
+		finally
 		{
-			return null;
+			fMetrics.record(Stage.RESOLVE, null, null, start);
 		}
 	}
 	
@@ -436,7 +502,7 @@ public class ActivitySender	implements EventListener
 			}
 			catch(Exception e)
 			{
-				fActLogger.logString("user service unavailable: " + e.getLocalizedMessage());
+				fActLogger.logError("user service unavailable: " + e.getLocalizedMessage());
 				e.printStackTrace();
 			}
 		}
@@ -447,22 +513,71 @@ public class ActivitySender	implements EventListener
 	@Override
 	public void handleEvent(final Event event) throws ClientException
 	{
-		final String eventType = event.getName();
+		handleEvent(new ActivityContext(event));
+	}
+	
+	/**
+	 * Handles all events of a committed transaction, collapsing events on
+	 * the same document into one if configured. Events are handled even if
+	 * an earlier one fails; the first failure is thrown afterwards.
+	 * 
+	 * @param bundle events of one transaction
+	 */
+	public void handleBundle(final EventBundle bundle) throws ClientException
+	{
+		final List<ActivityContext> contexts = fCollapser.collapse(bundle);
+		
+		ClientException failure = null;
+		ActivityContext previous = null;
+		for(ActivityContext context : contexts)
+		{
+			//the same user is usually behind all events of a transaction
+			context.shareWith(previous);
+			previous = context;
+			
+			try
+			{
+				handleEvent(context);
+			}
+			catch(ClientException e)
+			{
+				if(failure == null)
+				{
+					failure = e;
+				}
+			}
+		}
+		
+		if(failure != null)
+		{
+			throw failure;
+		}
+	}
+	
+	private void handleEvent(final ActivityContext context)
+		throws ClientException
+	{
+		final Event event = context.getEvent();
+		final String eventType = context.getName();
 		boolean send = true;
 		String user = null;
 		
 		//check whether an activity should be generated
+		final long filterStart = fMetrics.start();
 		try
 		{
-			user = event.getContext().getPrincipal().getName();
+			user = context.getPrincipal();
+			
+			final EventFilter.Rule rule = fFilter.check(context);
+			fMetrics.record(Stage.FILTER, eventType, null, filterStart);
 			
 			//filter out system events
-			if("system".equals(user))
+			if(rule == EventFilter.Rule.SYSTEM_USER)
 			{
 				return;
 			}
 			
-			send = sendingEnabled(event, user);
+			send = rule == null;
 		}
 		catch(Exception e)
 		{
@@ -470,332 +585,234 @@ public class ActivitySender	implements EventListener
 			throw new ClientException(e);
 		}
 		
+		//increment counter
+		final int number = fNumber.incrementAndGet();
+		context.setNumber(number);
+		
+		//log data in full if activated and sampled
+		final boolean capture = fActLogger.sample(eventType);
+		if(capture)
+		{
+			fActLogger.logEvent(event, number);
+		}
+		
 		//generate activity
-		final JSONObject activity = new JSONObject();
+		final Activity activity = new Activity();
+		activity.addEventTime(event.getTime());
 		if(send) try
 		{
 			//verb
-			final String verb = getVerb(event);
-			activity.put("verb", verb);
+			final String verb = getVerb(context);
+			activity.setVerb(verb);
 			
 			//title
-			String title = getTitle(event);
-			if(title != null)
-			{
-				activity.put("title", title);
-			}
+			activity.setTitle(getTitle(context));
 			
 			//actor
-			final JSONObject actor = new JSONObject();
-			actor.put("id", user);
-			actor.put("displayName", getUserName(event));
-			actor.put("objectType", "person");
-			activity.put("actor", actor);
+			long start = fMetrics.start();
+			final String userName = getUserName(context);
+			fMetrics.record(Stage.USER, eventType, verb, start);
+			
+			final ActivityObject actor = new ActivityObject("person",
+				userName);
+			actor.setId(user);
+			activity.setActor(actor);
 			
 			//object
-			JSONObject object = null;
+			ActivityObject object = null;
 			
-			//TODO: multiple attached files?
-			final DocumentModel model = getPrimaryDocument(event);
-			String modelType = null;
+			start = fMetrics.start();
+			final DocumentModel model = context.getDocument();
+			final String modelType = context.getDocType();
 			
 			if(model != null)
 			{
 				object = getDocument(model);
-				modelType = model.getType();
 			}
+			fMetrics.record(Stage.RESOLVE, eventType, verb, start);
 			
-			if(object != null)
-			{
-				activity.put("object", object);
-			}
+			activity.setObject(object);
 			
 			//special treatment for some types
-			if("commentAdded".equals(eventType)
-					|| "commentRemoved".equals(eventType))
+			final Route.Handler handler = context.getRoute().getHandler();
+			if(handler == null || handler == Route.Handler.COLLECTION)
 			{
-				//comments
-				handleComment(event, activity, object);
-			}
-			else if("documentTagUpdated".equals(eventType))
-			{
-				//tagging for non-admins
-				//TODO
-			}
-			else if("Tagging".equals(modelType))
-			{
-				//tagging
-				if("documentCreated".equals(eventType))
+				if(context.hasProperty("replacedProxyRefs"))
 				{
-					handleTagging(event, activity, object, true);
+					//document published in a new section?
+					handleSectionOperation(context, activity, object, true);
 				}
-				//untagging
-				else if("aboutToRemove".equals(eventType))
+				else if("aboutToRemove".equals(eventType)
+					&& model.getPathAsString().contains("/sections/"))
 				{
-					handleTagging(event, activity, object, false);
+					//removal from sections
+					handleSectionOperation(context, activity, object, false);
+				}
+				else if(handler == Route.Handler.COLLECTION)
+				{
+					//special collection type
+					object.setObjectType("nuxeoCollection");
 				}
 			}
-			else if("UserProfile".equals(modelType))
-			{
-				//editing of user profiles
-				handleUserProfile(event, activity, object);
-			}
-			else if("documentWaitingPublication".equals(eventType))
-			{
-				//request for a document's approval
-				handleWaitingApproval(event, activity, object);
-			}
-			else if(event.getContext().getProperties().containsKey(
-				"replacedProxyRefs"))
-			{
-				//document published in a new section?
-				handleSectionOperation(event, activity, object, true);
-			}
-			else if("aboutToRemove".equals(eventType)
-				&& model.getPathAsString().contains("/sections/"))
-			{
-				//removal from sections
-				handleSectionOperation(event, activity, object, false);
-			}
-			else if("Collection".equals(modelType)
-				|| "Favorites".equals(modelType))
+			else switch(handler)
 			{
-				//special collection type
-				object.put("objectType", "nuxeoCollection");
-				activity.put("object", object);
+				case COMMENT:
+					//comments
+					handleComment(context, activity, object);
+					break;
+					
+				case TAG_ADD:
+					//tagging
+					handleTagging(context, activity, object, true);
+					break;
+					
+				case TAG_REMOVE:
+					//untagging
+					handleTagging(context, activity, object, false);
+					break;
+					
+				case PROFILE:
+					//editing of user profiles
+					handleUserProfile(context, activity, object);
+					break;
+					
+				case APPROVAL:
+					//request for a document's approval
+					handleWaitingApproval(context, activity, object);
+					break;
+					
+				default:
+					//tagging for non-admins
+					//TODO
+					break;
 			}
 			
-			//generator
-			activity.put("generator", fGenerator);
+			//generator is added by the template when encoding
 		}
 		catch(Exception e)
 		{
 			send = false;
 			
-			//log exception if activated
-			if(fLogging)
-			{
-				logException(e);
-			}
+			//log failure and the event if it has not been logged yet
+			fActLogger.logFailure(capture ? null : event, number, e);
 			
 			throw new ClientException(e);
 		}
 		
-		//increment counter
-		++fNumber;
-		
-		//log data if activated
-		if(fLogging)
-		{
-			fActLogger.logEvent(event, fNumber);
-		}
-		
 		//send activity to Shindig server
 		if(send)
 		{
-			//log activity if activated
-			if(fLogging)
+			//log activity if the event was logged
+			if(capture)
 			{
-				logActivity(activity, user);
+				fActLogger.logActivity(number, user,
+					fEncoder.encode(activity));
 			}
 			
+			final long start = fMetrics.start();
 			try
 			{
-				fAggregator.handleActivity(activity, user);
+				fAggregator.handleActivity(activity, user, context);
 			}
 			catch(ClientException e)
 			{
-				//log exception if activated
-				if(fLogging)
-				{
-					logException(e);
-				}
+				//log failure and the event if it has not been logged yet
+				fActLogger.logFailure(capture ? null : event, number, e);
 				
 				throw e;
 			}
+			fMetrics.record(Stage.AGGREGATE, eventType, activity.getVerb(),
+				start);
 		}
 	}
 	
-	private boolean sendingEnabled(final Event event, String user) throws ClientException
-	{
-		boolean send = true;
-		final String eventType = event.getName();
-		if(fBlackList.contains(eventType))
-		{
-			send = false;
-		}
-		
-		//don't even retrieve document if type is blacklisted
-		if(!send)
-		{
-			return send;
-		}
-
-		final DocumentModel model = getPrimaryDocument(event);
-		if(model != null)
-		{
-			final String modelType = model.getType();
-			
-			//filter out generally blocked types
-			if(fObjectBlackList.contains(modelType))
-			{
-				send = false;
-			}
-			
-			//filter out not yet created documents 
-			else if(model.getName() == null)
-			{
-				send = false;
-			}
-			
-			//block folders
-			else if(fIgnoreFolders && model.isFolder())
-			{
-				send = false;
-			}
-			
-			//block changes that will not be snapshotted
-			else if(fBlockNonSnapshots
-				&& event.getContext().getProperties().containsKey(
-				"CREATE_SNAPSHOT_ON_SAVE"))
-			{
-				send = false;
-			}
-			
-			//separate documents moved to and from trash
-			else if("documentCreated".equals(eventType)
-					&& event.getContext()
-					.getProperty("versionLabel") != null)
-			{
-				//filter out "new version created" in favor of
-				//"file updated"
-				//TODO: may not work every time
-				send = false;
-			}
-			
-			//filter out comments added to comments
-			else if("commentAdded".equals(eventType)
-				&& "Comment".equals(modelType))
-			{
-				//a duplicate for the document itself should be created
-				send = false;
-			}
-			
-			//filter waiting approvals without comments
-			else if("documentWaitingPublication".equals(eventType)
-				&& event.getContext().getProperty("comment") == null)
-			{
-				send = false;
-			}
-			
-			//handle aggregation
-			else
-			{
-				send = fAggregator.handleAggregation(event, model, user);
-				
-				//TODO: actually aggregate and not just block for everything?
-			}
-		}
-		
-		return send;
-	}
-	
-	private void handleComment(final Event event, final JSONObject activity,
-		JSONObject object) throws Exception
+	private void handleComment(final ActivityContext context,
+		final Activity activity, ActivityObject object) throws Exception
 	{
 		//document is the new target
 		if(object != null)
 		{
-			activity.remove("object");
-			activity.put("target", object);
+			activity.setTarget(object);
 		}
 		
 		//construct comment activity object
-		object = new JSONObject();
+		object = new ActivityObject("nuxeoComment", fCommentName);
 		
 		try
 		{
 			//try retrieving the comment document model
-			final DocumentModel comMod = (DocumentModel) event.getContext()
-					.getProperties().get("comment_document");
+			final DocumentModel comMod = (DocumentModel) context.getProperty(
+					"comment_document");
 			//TODO: version series ID?
-			object.put("id", "nuxeoComment:" + comMod.getId());
-			object.put("content", event.getContext().getProperties()
-					.get("comment_text"));
+			object.setId("nuxeoComment:" + comMod.getId());
 		}
 		catch(Exception e)
 		{
 			//comment document not available anymore (deletion)
-			fActLogger.logString("comment document unavailable: " + e.getLocalizedMessage());
+			fActLogger.logError("comment document unavailable: " + e.getLocalizedMessage());
 			e.printStackTrace();
 		}
 		
-		object.put("displayName", fCommentName);
-		object.put("objectType", "nuxeoComment");
-		
 		//generate URL
-		DocumentModel docMod =
-			(DocumentModel) event.getContext().getArguments()[0];
+		DocumentModel docMod = context.getDocument();
 		String commentUrl = fNuxeoUrl + "nxpath/"
 			+ docMod.getRepositoryName() + docMod.getPathAsString()
 			+ "@view_documents?tabIds=%3Aview_comments";
-		object.put("url", commentUrl);
+		object.setUrl(commentUrl);
 		
 		Serializable comment =
-			event.getContext().getProperty("comment_text");
+			context.getProperty("comment_text");
 		
 		if(comment != null)
 		{
-			object.put("content", comment.toString());
+			object.setContent(comment.toString());
 		}
 		
-		activity.put("object", object);
+		activity.setObject(object);
 	}
 	
-	private void handleTagging(final Event event, final JSONObject activity,
-			JSONObject object, boolean creation) throws Exception
+	private void handleTagging(final ActivityContext context,
+			final Activity activity, ActivityObject object, boolean creation)
+			throws Exception
 	{
 		//generate better tag object
 		if(object != null)
 		{
-			String title = "Tag (" + object.optString("displayName") + ")";
-			object.put("displayName", title);
-			
-			object.put("objectType", "nuxeoTag");
-			object.remove("url");
+			String title = "Tag (" + object.getDisplayName() + ")";
+			object.setDisplayName(title);
 			
-			activity.put("object", object);
+			object.setObjectType("nuxeoTag");
+			object.setUrl(null);
 		}
 		
 		//get target document by ID
-		String targetId = getPrimaryDocument(event).getPart("relation")
+		String targetId = context.getDocument().getPart("relation")
 			.get("relation:source").getValue().toString();
-		DocumentModel tarMod = event.getContext().getCoreSession().getDocument(
-				new IdRef(targetId));
+		DocumentModel tarMod = context.getEvent().getContext()
+				.getCoreSession().getDocument(new IdRef(targetId));
 		
-		JSONObject target = getDocument(tarMod);
-		activity.put("target", target);
+		activity.setTarget(getDocument(tarMod));
 		
 		//set more appropriate verb and title
 		if(creation)
 		{
-			activity.put("verb", "add");
-			activity.put("title", fTitleMap.get("titles.tagAdded"));
+			activity.setVerb("add");
+			activity.setTitle(fTitleMap.get("titles.tagAdded"));
 		}
 		else
 		{
-			activity.put("verb", "remove");
-			activity.put("title", fTitleMap.get("titles.tagRemoved"));
+			activity.setVerb("remove");
+			activity.setTitle(fTitleMap.get("titles.tagRemoved"));
 		}
 	}
 	
-	private void handleUserProfile(final Event event, final JSONObject activity,
-			JSONObject object) throws Exception
+	private void handleUserProfile(final ActivityContext context,
+			final Activity activity, ActivityObject object) throws Exception
 	{
 		//generate a better profile object
 		if(object != null)
 		{
-			DocumentModel model = getPrimaryDocument(event);
+			DocumentModel model = context.getDocument();
 			
 			//get person's name
 			//TODO: more appropriate source?
@@ -804,59 +821,54 @@ public class ActivitySender	implements EventListener
 			String userName = getUserName(userId);
 			
 			String title = fProfileName + " (" + userName + ")";
-			object.put("displayName", title);
+			object.setDisplayName(title);
 			
 			//generate proper URL
 			String url = fNuxeoUrl + "user/" + userId;
-			object.put("url", url);
+			object.setUrl(url);
 			
 			//TODO: special type?
-			
-			activity.put("object", object);
 		}
 	}
 	
-	private void handleWaitingApproval(final Event event, final JSONObject activity,
-			JSONObject object) throws Exception
+	private void handleWaitingApproval(final ActivityContext context,
+			final Activity activity, ActivityObject object) throws Exception
 	{
 		//document is the new target
 		if(object != null)
 		{
-			activity.remove("object");
-			activity.put("target", object);
+			activity.setTarget(object);
 		}
 		
 		//generate approval object
-		object = new JSONObject();
-		object.put("objectType", "nuxeoApproval");
-		object.put("displayName", fApprovalName);
-		activity.put("object", object);
+		object = new ActivityObject("nuxeoApproval", fApprovalName);
+		activity.setObject(object);
 		
 		//use comment as title (what is waiting where)
-		String comment = event.getContext().getProperty("comment").toString();
-		activity.remove("title");
-		activity.put("title", comment);
+		String comment = context.getProperty("comment").toString();
+		activity.setTitle(comment);
 	}
 	
-	private void handleSectionOperation(final Event event, final JSONObject activity,
-			JSONObject object, boolean adding) throws Exception
+	private void handleSectionOperation(final ActivityContext context,
+			final Activity activity, ActivityObject object, boolean adding)
+			throws Exception
 	{
 		//special title
 		if(adding)
 		{
-			activity.put("title", fTitleMap.get("addedToSection"));
+			activity.setTitle(fTitleMap.get("addedToSection"));
 		}
 		else
 		{
-			activity.put("title", fTitleMap.get("removedFromSection"));
+			activity.setTitle(fTitleMap.get("removedFromSection"));
 		}
 		
 		//section as target
-		JSONObject target = new JSONObject();
-		target.put("objectType", "nuxeoSection");
+		ActivityObject target = new ActivityObject();
+		target.setObjectType("nuxeoSection");
 		
 		//extract name and create URL
-		DocumentModel model = getPrimaryDocument(event);
+		DocumentModel model = context.getDocument();
 		
 		//get section path by removing the document from the url
 		String sectionPath = model.getPathAsString();
@@ -864,14 +876,14 @@ public class ActivitySender	implements EventListener
 		
 		String sectionUrl = fNuxeoUrl + "nxpath/"
 			+ model.getRepositoryName() + sectionPath + "/@view_documents";
-		target.put("url", sectionUrl);
+		target.setUrl(sectionUrl);
 		
 		//extract name from URL
 		String name = sectionPath.substring(sectionPath.lastIndexOf('/') + 1);
-		target.put("displayName", name);
+		target.setDisplayName(name);
 		
 		//add target
-		activity.put("target", target);
+		activity.setTarget(target);
 	}
 	
 	public DocumentModel getPrimaryDocument(final Event event)
@@ -891,44 +903,46 @@ public class ActivitySender	implements EventListener
 		return model;
 	}
 	
-	private String getUserName(final Event event) throws ClientException
+	/**
+	 * @return display name of the event's principal, looked up once
+	 */
+	private String getUserName(final ActivityContext context)
+		throws ClientException
 	{
-		String name = event.getContext().getPrincipal().getName();
+		String name = context.getUserName();
+		if(name == null)
+		{
+			name = findUserName(context.getPrincipal());
+			context.setUserName(name);
+		}
 		
-		return getUserName(name);
+		return name;
 	}
 	
 	public String getUserName(String userId) throws ClientException
 	{
+		final long start = fMetrics.start();
 		try
 		{
-			final NuxeoPrincipal principal =
-					getUserManager().getPrincipal(userId);
-			
-			//TODO: evaluate
+			return findUserName(userId);
+		}
+		finally
+		{
+			fMetrics.record(Stage.USER, null, null, start);
+		}
+	}
+	
+	private String findUserName(String userId) throws ClientException
+	{
+		try
+		{
+			final String name = fUserNames.get(userId, fNameLoader);
 			
-			if(principal != null)
+			//fall back to the id for unknown users
+			if(name != null)
 			{
-				String firstName = principal.getFirstName();
-				String lastName = principal.getLastName();
-				
-				if(firstName != null)
-				{
-					if(lastName != null)
-					{
-						userId = firstName + " " + lastName;
-					}
-					else
-					{
-						userId = firstName;
-					}
-				}
-				else if(lastName != null)
-				{
-					userId = lastName;
-				}
+				userId = name;
 			}
-			
 		}
 		catch(Exception e)
 		{
@@ -940,10 +954,89 @@ public class ActivitySender	implements EventListener
 		return userId;
 	}
 	
-	private String getVerb(final Event event)
+	/**
+	 * @return display name from the user directory or null if unknown
+	 */
+	private String loadUserName(String userId) throws Exception
 	{
-		final DocumentModel model = getPrimaryDocument(event);
-		final String type = event.getName();
+		final NuxeoPrincipal principal =
+				getUserManager().getPrincipal(userId);
+		
+		String name = null;
+		
+		//TODO: evaluate
+		
+		if(principal != null)
+		{
+			String firstName = principal.getFirstName();
+			String lastName = principal.getLastName();
+			
+			if(firstName != null)
+			{
+				if(lastName != null)
+				{
+					name = firstName + " " + lastName;
+				}
+				else
+				{
+					name = firstName;
+				}
+			}
+			else if(lastName != null)
+			{
+				name = lastName;
+			}
+			else
+			{
+				name = userId;
+			}
+		}
+		
+		return name;
+	}
+	
+	public UserNameCache getUserNameCache()
+	{
+		return fUserNames;
+	}
+	
+	public DocumentResolver getDocumentResolver()
+	{
+		return fResolver;
+	}
+	
+	public EventFilter getEventFilter()
+	{
+		return fFilter;
+	}
+	
+	/**
+	 * @return number of events that passed the system user check
+	 */
+	public int getEventCount()
+	{
+		return fNumber.get();
+	}
+	
+	public ActivityLogger getActivityLogger()
+	{
+		return fActLogger;
+	}
+	
+	public EventCollapser getEventCollapser()
+	{
+		return fCollapser;
+	}
+	
+	public Router getRouter()
+	{
+		return fRouter;
+	}
+	
+	private String getVerb(final ActivityContext context)
+	{
+		final DocumentModel model = context.getDocument();
+		final String type = context.getName();
 		
 		String verb = fVerbMap.get(type);
 		if(verb == null)
@@ -953,14 +1046,14 @@ public class ActivitySender	implements EventListener
 		
 		if(model != null)
 		{
-			if("documentMoved".equals(type))
+			if(context.getRoute().isTrash())
 			{
 				if(model.getName() != null
 						&& model.getName().endsWith(".trashed"))
 				{
 					verb = "remove";
 				}
-				else if("deleted".equals(event.getContext().getProperty(
+				else if("deleted".equals(context.getProperty(
 						"documentLifeCycle")))
 				{
 					verb = "update";
@@ -971,16 +1064,16 @@ public class ActivitySender	implements EventListener
 		return verb;
 	}
 	
-	private String getTitle(final Event event)
+	private String getTitle(final ActivityContext context)
 	{
-		final DocumentModel model = getPrimaryDocument(event);
-		final String type = event.getName();
+		final DocumentModel model = context.getDocument();
+		final String type = context.getName();
 		
 		String title = fTitleMap.get(type);
 		
 		if(model != null)
 		{
-			if("documentMoved".equals(type))
+			if(context.getRoute().isTrash())
 			{
 				if(model.getName() != null
 						&& model.getName().endsWith(".trashed"))
@@ -995,7 +1088,7 @@ public class ActivitySender	implements EventListener
 //							title = fTitleMap.get(DOC_VERSION_TO_TRASH);
 //						}
 				}
-				else if("deleted".equals(event.getContext().getProperty(
+				else if("deleted".equals(context.getProperty(
 						"documentLifeCycle")))
 				{
 					title = fTitleMap.get("documentRestored");
@@ -1006,9 +1099,9 @@ public class ActivitySender	implements EventListener
 		return title;
 	}
 	
-	public JSONObject getDocument(final DocumentModel model) throws ClientException
+	public ActivityObject getDocument(final DocumentModel model) throws ClientException
 	{
-		final JSONObject object = new JSONObject();
+		final ActivityObject object = new ActivityObject();
 		
 		try
 		{
@@ -1026,15 +1119,15 @@ public class ActivitySender	implements EventListener
 				type = "Document";
 			}
 
-			object.put("objectType", type);
+			object.setObjectType(type);
 
-			object.put("displayName", model.getTitle());
+			object.setDisplayName(model.getTitle());
 
 			//TODO: use normal ID instead? -> makes tracking nearly
 			//      impossible
 			//TODO: avoid collisions by prefixing IDs?
-			object.put("id", model.getVersionSeriesId());
-			object.put("content", "type: " + model.getType()
+			object.setId(model.getVersionSeriesId());
+			object.setContent("type: " + model.getType()
 					+ "\nname: " + model.getName());
 			
 			
@@ -1046,7 +1139,7 @@ public class ActivitySender	implements EventListener
 						+ model.getRepositoryName()
 						+ model.getPathAsString()
 						+ "/@view_documents";
-				object.put("url", documentUrl);
+				object.setUrl(documentUrl);
 			}
 			else
 			{
@@ -1055,7 +1148,7 @@ public class ActivitySender	implements EventListener
 				String downloadUrl = fNuxeoUrl + "nxfile/"
 				+ model.getRepositoryName() + "/" + model.getId()
 				+ "/blobholder:0/" + model.getTitle();
-				object.put("url", downloadUrl);
+				object.setUrl(downloadUrl);
 			}
 			
 			//TODO: additional data based on action
@@ -1074,118 +1167,169 @@ public class ActivitySender	implements EventListener
 	
 	public void logMessage(String message)
 	{
-		try
+		fActLogger.logString(message);
+	}
+	
+	/**
+	 * Logs an aggregated activity, which has no event number of its own.
+	 */
+	public void logActivity(final Activity activity, String user)
+	{
+		fActLogger.logAggregate(user, fEncoder.encode(activity));
+	}
+	
+	public void logException(Exception exception)
+	{
+		fActLogger.logException(exception);
+	}
+
+	/**
+	 * Queues an activity for asynchronous delivery to the given user's
+	 * activity stream.
+	 * 
+	 * @param activity activity to send
+	 * @param user ID of the user whose stream to post to
+	 */
+	public void send(final Activity activity, String user)
+			throws ClientException
+	{
+		final long start = fMetrics.start();
+		final Delivery delivery = new Delivery(user,
+			fEncoder.encode(activity));
+		fMetrics.record(Stage.JSON, null, activity.getVerb(), start);
+		
+		delivery.setVerb(activity.getVerb());
+		delivery.setOrigin(getLagPath(activity.getOrigin()),
+			activity.getEventTime());
+		fDelivery.enqueue(delivery);
+	}
+	
+	private static LagPath getLagPath(Activity.Origin origin)
+	{
+		switch(origin)
 		{
-			final PrintWriter writer = new PrintWriter(new BufferedWriter(
-					new FileWriter(fOutputFile, true)));
+			case MERGED:
+				return LagPath.MERGED;
 			
-			writer.println(message);
+			case TAG:
+				return LagPath.TAG;
 			
-			writer.println();
-			writer.println();
-			
-			writer.flush();
-			writer.close();
-		}
-		catch(Exception e)
-		{
-			throw new ClientException(e);
+			default:
+				return LagPath.DIRECT;
 		}
 	}
 	
-	public void logActivity(final JSONObject activity, String user)
-			throws ClientException
+	public DeliveryQueue getDeliveryQueue()
 	{
-		try
+		return fDelivery;
+	}
+	
+	public ShindigClient getHttpClient()
+	{
+		return fClient;
+	}
+	
+	/**
+	 * @return write-ahead journal for activities or null if not configured
+	 */
+	public ActivityOutbox getOutbox()
+	{
+		return fOutbox;
+	}
+	
+	public ActivityAggregator getAggregator()
+	{
+		return fAggregator;
+	}
+	
+	/**
+	 * Replays activities and aggregation entries a previous run left in the
+	 * outbox without delivering them.
+	 */
+	public void recover()
+	{
+		if(fOutbox == null)
 		{
-			//log activities being sent to file
-			final PrintWriter writer = new PrintWriter(new BufferedWriter(
-					new FileWriter(fOutputFile, true)));
-			
-			writer.println("activity " + fNumber + ":");
-			writer.println(activity);
-			
-			writer.println();
-			writer.println();
-			
-			writer.flush();
-			writer.close();
+			return;
 		}
-		catch(Exception e)
+		
+		final List<Record> records = fOutbox.recover();
+		
+		for(Record record : records)
 		{
-			throw new ClientException(e);
+			try
+			{
+				if(record.getType() == ActivityOutbox.TYPE_ACTIVITY)
+				{
+					fDelivery.enqueue(new Delivery(record.getField(0),
+						record.getField(1), record.getId()));
+				}
+				else if(record.getType() == ActivityOutbox.TYPE_AGGREGATE)
+				{
+					fAggregator.restoreEntry(record.getField(0),
+						record.getField(1), toActivityObject(new JSONObject(
+						record.getField(2))), record.getId());
+				}
+			}
+			catch(Exception e)
+			{
+				fActLogger.logError("could not recover outbox record "
+					+ record.getId() + ": " + e.getLocalizedMessage());
+			}
 		}
+		
+		fActLogger.logString("recovered " + records.size()
+			+ " outbox records");
 	}
 	
-	public void logException(Exception exception) throws ClientException
+	/**
+	 * Converts a journalled activity object back into a record.
+	 */
+	private ActivityObject toActivityObject(JSONObject json) throws Exception
 	{
-		try
+		final ActivityObject object = new ActivityObject();
+		
+		if(json.has("id"))
 		{
-			//log activities being sent to file
-			final PrintWriter writer = new PrintWriter(new BufferedWriter(
-					new FileWriter(fOutputFile, true)));
-			
-			writer.println("Exception: " + exception.getMessage());
-			writer.println("stack trace: ");
-			for(StackTraceElement element : exception.getStackTrace())
-			{
-				writer.println(element);
-			}
-			
-			writer.println();
-			writer.println();
-			
-			writer.flush();
-			writer.close();
+			object.setId(json.getString("id"));
 		}
-		catch(Exception e)
+		if(json.has("displayName"))
 		{
-			throw new ClientException(e);
+			object.setDisplayName(json.getString("displayName"));
+		}
+		if(json.has("objectType"))
+		{
+			object.setObjectType(json.getString("objectType"));
+		}
+		if(json.has("url"))
+		{
+			object.setUrl(json.getString("url"));
+		}
+		if(json.has("content"))
+		{
+			object.setContent(json.getString("content"));
 		}
+		
+		return object;
 	}
-
-	public void send(final JSONObject activity, String user)
-			throws ClientException
+	
+	/**
+	 * Flushes open aggregation windows and stops the delivery workers after
+	 * sending all queued activities.
+	 */
+	public void shutdown()
 	{
-		final String json = activity.toString();
+		fMetrics.removeSender(this);
 		
-		try
-		{
-			URL shindigUrl = new URL(fShindigUrl + ACT_STR_FRAG + user +
-	                "/@self");
-            final HttpURLConnection connection =
-                (HttpURLConnection) shindigUrl.openConnection();
-            
-            connection.setRequestMethod("POST");
-            connection.setDoInput(true);
-            connection.setDoOutput(true);
-            connection.setUseCaches(false);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Content-Length", String.valueOf(
-                json.length()));
-            
-            OutputStreamWriter writer = new OutputStreamWriter(
-                connection.getOutputStream(), "UTF-8");
-            writer.write(json);
-            writer.flush();
-            
-            BufferedReader reader = new BufferedReader(new InputStreamReader(
-                connection.getInputStream()));
-            
-            String line = reader.readLine();
-            while(line != null)
-            {
-                line = reader.readLine();
-            }
-            //TODO: evaluate answer?
-            
-            reader.close();
-		}
-		catch(Exception e)
+		fAggregator.shutdown();
+		fDelivery.shutdown();
+		fClient.shutdown();
+		
+		if(fOutbox != null)
 		{
-			//TODO: activate for production
-			throw new ClientException(e);
-//			e.printStackTrace();
+			fOutbox.close();
 		}
+		
+		fActLogger.close();
 	}
 }
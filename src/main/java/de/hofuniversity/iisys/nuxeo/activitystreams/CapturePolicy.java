@@ -0,0 +1,272 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides what the debug log captures. The level selects between nothing,
+ * failures only and everything; at the full level events are sampled with
+ * a default rate that can be overridden per event name.
+ * Settings can be changed at runtime through an optional control file in
+ * the format of the plugin's properties, which is checked for changes
+ * periodically, or through the setters, which PipelineMXBean exposes.
+ * A changed control file replaces settings made through the setters.
+ */
+public class CapturePolicy
+{
+	public enum Level
+	{
+		OFF, FAILURES, ALL
+	}
+
+	private static final String LOGGING_PROP = "debug.logging";
+	private static final String LEVEL_PROP = "debug.level";
+	private static final String RATE_PROP = "debug.sample.rate";
+	private static final String RATE_PREFIX = "debug.sample.rate.";
+	private static final String CONTROL_FILE_PROP = "debug.control.file";
+	private static final String CONTROL_INTERVAL_PROP =
+		"debug.control.interval";
+
+	private final Map<String, String> fDefaults;
+
+	private final File fControlFile;
+	private final long fControlInterval;
+	private volatile long fNextCheck;
+	private long fControlModified;
+
+	//replaced as a whole on changes
+	private volatile Level fLevel;
+	private volatile double fDefaultRate;
+	private volatile Map<String, Double> fRates;
+
+	private final AtomicLong fSampled, fSkipped, fReloads;
+
+	public CapturePolicy(Map<String, String> properties)
+	{
+		fDefaults = new HashMap<String, String>(properties);
+
+		final String control = properties.get(CONTROL_FILE_PROP);
+		fControlFile = control != null && !control.isEmpty()
+			? new File(control) : null;
+
+		final String interval = properties.get(CONTROL_INTERVAL_PROP);
+		fControlInterval = interval != null && !interval.isEmpty()
+			? Long.parseLong(interval) : 10000;
+
+		fSampled = new AtomicLong();
+		fSkipped = new AtomicLong();
+		fReloads = new AtomicLong();
+
+		apply(fDefaults);
+		refresh();
+	}
+
+	private synchronized void apply(Map<String, String> properties)
+	{
+		Level level = Level.OFF;
+		if(Boolean.parseBoolean(properties.get(LOGGING_PROP)))
+		{
+			final String name = properties.get(LEVEL_PROP);
+			level = name != null && !name.isEmpty()
+				? Level.valueOf(name.trim().toUpperCase()) : Level.ALL;
+		}
+
+		final String rate = properties.get(RATE_PROP);
+		final double defaultRate = rate != null && !rate.isEmpty()
+			? Double.parseDouble(rate) : 1.0;
+
+		final Map<String, Double> rates = new HashMap<String, Double>();
+		for(Map.Entry<String, String> entry : properties.entrySet())
+		{
+			if(entry.getKey().startsWith(RATE_PREFIX))
+			{
+				rates.put(entry.getKey().substring(RATE_PREFIX.length()),
+					Double.parseDouble(entry.getValue()));
+			}
+		}
+
+		fDefaultRate = defaultRate;
+		fRates = Collections.unmodifiableMap(rates);
+		fLevel = level;
+	}
+
+	/**
+	 * Reloads the control file if it has changed, at most once per check
+	 * interval. Cheap enough to be called for every event.
+	 */
+	public void refresh()
+	{
+		if(fControlFile == null)
+		{
+			return;
+		}
+
+		final long now = System.currentTimeMillis();
+		if(now < fNextCheck)
+		{
+			return;
+		}
+
+		synchronized(this)
+		{
+			if(now < fNextCheck)
+			{
+				return;
+			}
+			fNextCheck = now + fControlInterval;
+
+			final long modified = fControlFile.lastModified();
+			if(modified == fControlModified)
+			{
+				return;
+			}
+			fControlModified = modified;
+
+			//settings from the control file override the defaults
+			final Map<String, String> properties =
+				new HashMap<String, String>(fDefaults);
+
+			if(modified != 0)
+			{
+				try
+				{
+					final Properties control = new Properties();
+					final InputStream in = new FileInputStream(fControlFile);
+					try
+					{
+						control.load(in);
+					}
+					finally
+					{
+						in.close();
+					}
+
+					for(String key : control.stringPropertyNames())
+					{
+						properties.put(key, control.getProperty(key).trim());
+					}
+				}
+				catch(Exception e)
+				{
+					//keep the current settings
+					e.printStackTrace();
+					return;
+				}
+			}
+
+			try
+			{
+				apply(properties);
+				fReloads.incrementAndGet();
+			}
+			catch(IllegalArgumentException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return whether messages of the given level are written
+	 */
+	public boolean isEnabled(Level level)
+	{
+		return level != Level.OFF && fLevel.compareTo(level) >= 0;
+	}
+
+	/**
+	 * Decides whether an event is captured in full.
+	 *
+	 * @param eventName name of the event
+	 * @return true if everything is captured and the event was sampled
+	 */
+	public boolean sample(String eventName)
+	{
+		if(fLevel != Level.ALL)
+		{
+			return false;
+		}
+
+		final Double override = fRates.get(eventName);
+		final double rate = override != null ? override : fDefaultRate;
+
+		final boolean sampled = rate >= 1.0
+			|| rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+
+		if(sampled)
+		{
+			fSampled.incrementAndGet();
+		}
+		else
+		{
+			fSkipped.incrementAndGet();
+		}
+		return sampled;
+	}
+
+	public Level getLevel()
+	{
+		return fLevel;
+	}
+
+	public void setLevel(Level level)
+	{
+		fLevel = level;
+	}
+
+	public double getRate(String eventName)
+	{
+		final Double override = fRates.get(eventName);
+		return override != null ? override : fDefaultRate;
+	}
+
+	public double getDefaultRate()
+	{
+		return fDefaultRate;
+	}
+
+	public void setDefaultRate(double rate)
+	{
+		fDefaultRate = rate;
+	}
+
+	/**
+	 * @param eventName event to sample differently
+	 * @param rate share of events captured, negative to use the default
+	 */
+	public synchronized void setRate(String eventName, double rate)
+	{
+		final Map<String, Double> rates = new HashMap<String, Double>(fRates);
+		if(rate < 0)
+		{
+			rates.remove(eventName);
+		}
+		else
+		{
+			rates.put(eventName, rate);
+		}
+		fRates = Collections.unmodifiableMap(rates);
+	}
+
+	public long getSampledCount()
+	{
+		return fSampled.get();
+	}
+
+	public long getSkippedCount()
+	{
+		return fSkipped.get();
+	}
+
+	public long getReloadCount()
+	{
+		return fReloads.get();
+	}
+}
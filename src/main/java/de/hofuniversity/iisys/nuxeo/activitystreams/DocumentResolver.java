@@ -0,0 +1,325 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.ActivityObject;
+
+/**
+ * Resolves document ids to activity objects for aggregates sent outside of
+ * an event. Within a cycle all lookups of a thread share one system
+ * session, and ids due together can be fetched with a single query.
+ * Resolved objects are cached briefly since the same documents tend to be
+ * flushed repeatedly; they are shared and must not be modified.
+ */
+public class DocumentResolver
+{
+	private static final String REPOSITORY = "default";
+
+	private static final String TTL_PROP = "documents.cache.ttl";
+
+	//ids per query, keeps the statement at a reasonable length
+	private static final int BATCH_SIZE = 100;
+
+	private final ActivitySender fSender;
+
+	private final long fTtl;
+
+	private final Map<String, CachedDocument> fCache;
+
+	private final ThreadLocal<Cycle> fCycle;
+
+	private final AtomicLong fSessions, fQueries, fHits, fMisses;
+
+	public DocumentResolver(ActivitySender sender,
+		Map<String, String> properties)
+	{
+		fSender = sender;
+
+		final String ttl = properties.get(TTL_PROP);
+		fTtl = ttl != null && !ttl.isEmpty() ? Long.parseLong(ttl) : 5000;
+
+		fCache = new ConcurrentHashMap<String, CachedDocument>();
+		fCycle = new ThreadLocal<Cycle>();
+
+		fSessions = new AtomicLong();
+		fQueries = new AtomicLong();
+		fHits = new AtomicLong();
+		fMisses = new AtomicLong();
+	}
+
+	/**
+	 * Opens a system session for the calling thread that is used by all
+	 * lookups until {@link #endCycle()}. Cycles do not nest.
+	 */
+	public void beginCycle()
+	{
+		if(fCycle.get() != null)
+		{
+			return;
+		}
+
+		purge();
+		fCycle.set(new Cycle());
+	}
+
+	/**
+	 * Closes the calling thread's session and commits its transaction if
+	 * it started one.
+	 */
+	public void endCycle()
+	{
+		final Cycle cycle = fCycle.get();
+		fCycle.remove();
+
+		if(cycle != null)
+		{
+			cycle.close();
+		}
+	}
+
+	/**
+	 * Fetches all given documents that are not cached with a single query per
+	 * batch.
+	 *
+	 * @param docIds ids of documents to resolve soon
+	 */
+	public void prefetch(Collection<String> docIds) throws Exception
+	{
+		final long now = System.currentTimeMillis();
+
+		final List<String> missing = new ArrayList<String>();
+		for(String id : new HashSet<String>(docIds))
+		{
+			final CachedDocument cached = fCache.get(id);
+			if(cached == null || cached.fExpires <= now)
+			{
+				missing.add(id);
+			}
+		}
+
+		if(missing.isEmpty())
+		{
+			return;
+		}
+
+		final boolean ownCycle = fCycle.get() == null;
+		if(ownCycle)
+		{
+			beginCycle();
+		}
+
+		try
+		{
+			final CoreSession session = fCycle.get().getSession();
+
+			for(int start = 0; start < missing.size(); start += BATCH_SIZE)
+			{
+				final List<String> batch = missing.subList(start,
+					Math.min(start + BATCH_SIZE, missing.size()));
+
+				final Set<String> found = new HashSet<String>();
+
+				fQueries.incrementAndGet();
+				for(DocumentModel model : session.query(buildQuery(batch)))
+				{
+					cache(model.getId(), fSender.getDocument(model), now);
+					found.add(model.getId());
+				}
+
+				//remember ids that are gone, so they are not fetched again
+				for(String id : batch)
+				{
+					if(!found.contains(id))
+					{
+						cache(id, null, now);
+					}
+				}
+			}
+		}
+		finally
+		{
+			if(ownCycle)
+			{
+				endCycle();
+			}
+		}
+	}
+
+	private String buildQuery(List<String> ids)
+	{
+		final StringBuilder query = new StringBuilder(
+			"SELECT * FROM Document WHERE ecm:uuid IN (");
+
+		final Iterator<String> iter = ids.iterator();
+		while(iter.hasNext())
+		{
+			query.append('\'').append(iter.next().replace("'", "\\'"))
+				.append('\'');
+			if(iter.hasNext())
+			{
+				query.append(", ");
+			}
+		}
+
+		return query.append(')').toString();
+	}
+
+	/**
+	 * @param docId document to resolve
+	 * @return activity object for the document or null if it does not exist
+	 */
+	public ActivityObject resolve(String docId) throws Exception
+	{
+		final long now = System.currentTimeMillis();
+
+		final CachedDocument cached = fCache.get(docId);
+		if(cached != null && cached.fExpires > now)
+		{
+			fHits.incrementAndGet();
+			return cached.fObject;
+		}
+
+		fMisses.incrementAndGet();
+
+		final boolean ownCycle = fCycle.get() == null;
+		if(ownCycle)
+		{
+			beginCycle();
+		}
+
+		try
+		{
+			final CoreSession session = fCycle.get().getSession();
+			final IdRef ref = new IdRef(docId);
+
+			ActivityObject object = null;
+			if(session.exists(ref))
+			{
+				object = fSender.getDocument(session.getDocument(ref));
+			}
+
+			cache(docId, object, now);
+			return object;
+		}
+		finally
+		{
+			if(ownCycle)
+			{
+				endCycle();
+			}
+		}
+	}
+
+	private void cache(String docId, ActivityObject object, long now)
+	{
+		fCache.put(docId, new CachedDocument(object, now + fTtl));
+	}
+
+	private void purge()
+	{
+		final long now = System.currentTimeMillis();
+
+		final Iterator<CachedDocument> iter = fCache.values().iterator();
+		while(iter.hasNext())
+		{
+			if(iter.next().fExpires <= now)
+			{
+				iter.remove();
+			}
+		}
+	}
+
+	public long getSessionCount()
+	{
+		return fSessions.get();
+	}
+
+	public long getQueryCount()
+	{
+		return fQueries.get();
+	}
+
+	public long getHitCount()
+	{
+		return fHits.get();
+	}
+
+	public long getMissCount()
+	{
+		return fMisses.get();
+	}
+
+	public int getCacheSize()
+	{
+		return fCache.size();
+	}
+
+	/**
+	 * Session and transaction of one thread's cycle, opened on first use.
+	 */
+	private class Cycle
+	{
+		private CoreSession fSession;
+		private boolean fTransaction;
+
+		public CoreSession getSession()
+		{
+			if(fSession == null)
+			{
+				if(TransactionHelper.isNoTransaction())
+				{
+					fTransaction = TransactionHelper.startTransaction();
+				}
+
+				fSession = CoreInstance.openCoreSessionSystem(REPOSITORY);
+				fSessions.incrementAndGet();
+			}
+
+			return fSession;
+		}
+
+		public void close()
+		{
+			try
+			{
+				if(fSession != null)
+				{
+					fSession.close();
+				}
+			}
+			finally
+			{
+				if(fTransaction)
+				{
+					TransactionHelper.commitOrRollbackTransaction();
+				}
+			}
+		}
+	}
+
+	private static class CachedDocument
+	{
+		private final ActivityObject fObject;
+		private final long fExpires;
+
+		public CachedDocument(ActivityObject object, long expires)
+		{
+			fObject = object;
+			fExpires = expires;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventBundle;
+
+/**
+ * Reduces the events of one transaction to one net event per document. Of
+ * the configured events on the same document only the one listed first is
+ * kept, at the position of the first of them, but with the document of the
+ * last of them since it is the newest. All other events are passed through
+ * in their original order.
+ */
+public class EventCollapser
+{
+	private static final String COLLAPSE_PROP = "events.bundle.collapse";
+
+	//rank of each collapsible event, lower ranks replace higher ones
+	private final Map<String, Integer> fRanks;
+
+	private final AtomicLong fBundles, fEvents, fCollapsed;
+
+	public EventCollapser(Map<String, String> properties)
+	{
+		fRanks = new HashMap<String, Integer>();
+
+		final String collapse = properties.get(COLLAPSE_PROP);
+		if(collapse != null && !collapse.isEmpty())
+		{
+			for(String name : collapse.split(","))
+			{
+				name = name.trim();
+				if(!name.isEmpty() && !fRanks.containsKey(name))
+				{
+					fRanks.put(name, fRanks.size());
+				}
+			}
+		}
+
+		fBundles = new AtomicLong();
+		fEvents = new AtomicLong();
+		fCollapsed = new AtomicLong();
+	}
+
+	/**
+	 * @param bundle events of one transaction
+	 * @return contexts of the remaining events, in order
+	 */
+	public List<ActivityContext> collapse(EventBundle bundle)
+	{
+		final List<ActivityContext> contexts = new ArrayList<ActivityContext>(
+			bundle.size());
+
+		//position of the kept event by document
+		final Map<String, Integer> kept = new HashMap<String, Integer>();
+		int collapsed = 0;
+
+		for(Event event : bundle)
+		{
+			final ActivityContext context = new ActivityContext(event);
+
+			final Integer rank = fRanks.get(context.getName());
+			final String docId = rank != null && context.hasDocument()
+				? context.getDocument().getId() : null;
+
+			if(docId == null)
+			{
+				contexts.add(context);
+				continue;
+			}
+
+			final Integer index = kept.get(docId);
+			if(index == null)
+			{
+				kept.put(docId, contexts.size());
+				contexts.add(context);
+				continue;
+			}
+
+			//replace the kept event unless it ranks higher
+			++collapsed;
+			final ActivityContext previous = contexts.get(index);
+			if(rank <= fRanks.get(previous.getName()))
+			{
+				contexts.set(index, context);
+			}
+			else
+			{
+				previous.takeDocument(context);
+			}
+		}
+
+		fBundles.incrementAndGet();
+		fEvents.addAndGet(contexts.size() + collapsed);
+		fCollapsed.addAndGet(collapsed);
+
+		return contexts;
+	}
+
+	/**
+	 * @return number of bundles processed
+	 */
+	public long getBundleCount()
+	{
+		return fBundles.get();
+	}
+
+	/**
+	 * @return number of events in all processed bundles
+	 */
+	public long getEventCount()
+	{
+		return fEvents.get();
+	}
+
+	/**
+	 * @return number of events dropped in favor of another one on the same
+	 *         document
+	 */
+	public long getCollapsedCount()
+	{
+		return fCollapsed.get();
+	}
+}
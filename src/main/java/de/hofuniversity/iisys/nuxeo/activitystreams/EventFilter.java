@@ -0,0 +1,187 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.agg.IAggregator;
+import de.hofuniversity.iisys.nuxeo.activitystreams.route.Route;
+import de.hofuniversity.iisys.nuxeo.activitystreams.route.Router;
+import de.hofuniversity.iisys.nuxeo.activitystreams.route.RoutingTable;
+
+/**
+ * Decides whether an event leads to an activity. Rules are checked from the
+ * cheapest signals to the most expensive ones: the principal and the route
+ * for the event name, including its context properties, come before anything
+ * that needs the document model, and aggregation comes last. Every drop is
+ * counted for the rule that caused it.
+ */
+public class EventFilter
+{
+	public enum Rule
+	{
+		SYSTEM_USER, ROUTE, PROPERTY, NOT_CREATED, FOLDER, AGGREGATED
+	}
+
+	private final Router fRouter;
+	private final boolean fIgnoreFolders;
+
+	private final IAggregator fAggregator;
+
+	private final AtomicLongArray fDropped;
+	private final AtomicLong fAccepted;
+
+	/**
+	 * @param router routing rules for event names and document types
+	 * @param ignoreFolders whether to drop events on folders
+	 * @param aggregator aggregation stage, drops events it aggregates
+	 */
+	public EventFilter(Router router, boolean ignoreFolders,
+		IAggregator aggregator)
+	{
+		fRouter = router;
+		fIgnoreFolders = ignoreFolders;
+
+		fAggregator = aggregator;
+
+		fDropped = new AtomicLongArray(Rule.values().length);
+		fAccepted = new AtomicLong();
+	}
+
+	/**
+	 * Runs all rules on an event.
+	 *
+	 * @param context event to check
+	 * @return the rule that dropped the event, null if it is to be sent
+	 */
+	public Rule check(ActivityContext context)
+	{
+		final Rule rule = findRule(context);
+
+		if(rule != null)
+		{
+			fDropped.incrementAndGet(rule.ordinal());
+		}
+		else
+		{
+			fAccepted.incrementAndGet();
+		}
+
+		return rule;
+	}
+
+	private Rule findRule(ActivityContext context)
+	{
+		if("system".equals(context.getPrincipal()))
+		{
+			return Rule.SYSTEM_USER;
+		}
+
+		//one table for the whole event, even if the rules are reloaded
+		fRouter.refresh();
+		final RoutingTable table = fRouter.getTable();
+
+		//rules for the event name, without touching the document
+		Route route = table.lookup(context.getName(), null);
+		context.setRoute(route);
+
+		if(route.isDrop())
+		{
+			route.hit();
+			return Rule.ROUTE;
+		}
+
+		//only events on documents are filtered any further
+		if(!context.hasDocument())
+		{
+			route.hit();
+			return null;
+		}
+
+		if(!checkProperties(context, route))
+		{
+			route.hit();
+			return Rule.PROPERTY;
+		}
+
+		//rules for the document type
+		route = table.lookup(context.getName(), context.getDocType());
+		context.setRoute(route);
+		route.hit();
+
+		if(route.isDrop())
+		{
+			return Rule.ROUTE;
+		}
+
+		if(!checkProperties(context, route))
+		{
+			return Rule.PROPERTY;
+		}
+
+		if(context.getDocument().getName() == null)
+		{
+			//filter out not yet created documents
+			return Rule.NOT_CREATED;
+		}
+
+		if(fIgnoreFolders && context.getDocument().isFolder())
+		{
+			return Rule.FOLDER;
+		}
+
+		//TODO: actually aggregate and not just block for everything?
+		if(!fAggregator.handleAggregation(context, context.getPrincipal()))
+		{
+			return Rule.AGGREGATED;
+		}
+
+		return null;
+	}
+
+	private boolean checkProperties(ActivityContext context, Route route)
+	{
+		for(String key : route.getRequired())
+		{
+			if(context.getProperty(key) == null)
+			{
+				return false;
+			}
+		}
+
+		//present at all, some flags are set without a value
+		for(String key : route.getRejected())
+		{
+			if(context.hasProperty(key))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public long getAcceptedCount()
+	{
+		return fAccepted.get();
+	}
+
+	public long getDroppedCount(Rule rule)
+	{
+		return fDropped.get(rule.ordinal());
+	}
+
+	/**
+	 * @return number of dropped events per rule, in rule order
+	 */
+	public Map<String, Long> getDroppedCounts()
+	{
+		final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for(Rule rule : Rule.values())
+		{
+			counts.put(rule.name(), fDropped.get(rule.ordinal()));
+		}
+		return counts;
+	}
+}
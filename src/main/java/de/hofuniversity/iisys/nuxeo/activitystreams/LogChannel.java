@@ -0,0 +1,375 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only log file kept open for the lifetime of the plugin. Records are
+ * handed over through a bounded lock-free ring and written by a single
+ * background thread, which flushes once per drained batch. Producers never
+ * block or fail; records that do not fit into the ring are dropped and
+ * counted. The file is rotated by size and age.
+ * Channels are shared by file path so that all loggers writing to the same
+ * file go through one writer.
+ */
+class LogChannel implements Runnable
+{
+	private static final String BUFFER_PROP = "debug.log.buffer";
+	private static final String FLUSH_PROP = "debug.log.flush";
+	private static final String ROTATE_SIZE_PROP = "debug.log.rotate.size";
+	private static final String ROTATE_TIME_PROP = "debug.log.rotate.time";
+	private static final String ROTATE_KEEP_PROP = "debug.log.rotate.keep";
+
+	private static final Map<String, LogChannel> CHANNELS =
+		new HashMap<String, LogChannel>();
+
+	private final File fFile;
+
+	private final long fFlushDelay, fMaxSize, fMaxAge;
+	private final int fKeep;
+
+	//ring of pending records, claimed by producers through the head
+	private final AtomicReferenceArray<byte[]> fSlots;
+	private final int fMask;
+	private final AtomicLong fHead, fTail;
+
+	private final Thread fThread;
+	private volatile boolean fWaiting, fRunning;
+
+	private int fReferences;
+
+	//only touched by the writer thread
+	private OutputStream fOut;
+	private long fSize, fOpened;
+
+	private final AtomicLong fWritten, fDropped, fFlushes, fRotations,
+		fErrors;
+
+	/**
+	 * @param path log file
+	 * @param properties configuration, only used by the first caller
+	 * @return shared channel for the file, to be released once unused
+	 */
+	public static LogChannel acquire(String path,
+		Map<String, String> properties)
+	{
+		final String key = new File(path).getAbsolutePath();
+
+		synchronized(CHANNELS)
+		{
+			LogChannel channel = CHANNELS.get(key);
+			if(channel == null)
+			{
+				channel = new LogChannel(new File(key), properties);
+				CHANNELS.put(key, channel);
+			}
+
+			++channel.fReferences;
+			return channel;
+		}
+	}
+
+	private LogChannel(File file, Map<String, String> properties)
+	{
+		fFile = file;
+
+		fFlushDelay = parse(properties.get(FLUSH_PROP), 1000);
+		fMaxSize = parse(properties.get(ROTATE_SIZE_PROP), 0);
+		fMaxAge = parse(properties.get(ROTATE_TIME_PROP), 0);
+		fKeep = (int) parse(properties.get(ROTATE_KEEP_PROP), 5);
+
+		//round up to a power of two for masking
+		final int requested = (int) Math.max(2,
+			parse(properties.get(BUFFER_PROP), 8192));
+		final int capacity = Integer.highestOneBit(requested - 1) << 1;
+
+		fSlots = new AtomicReferenceArray<byte[]>(capacity);
+		fMask = capacity - 1;
+		fHead = new AtomicLong();
+		fTail = new AtomicLong();
+
+		fWritten = new AtomicLong();
+		fDropped = new AtomicLong();
+		fFlushes = new AtomicLong();
+		fRotations = new AtomicLong();
+		fErrors = new AtomicLong();
+
+		fRunning = true;
+		fThread = new Thread(this, "activitystreams-log");
+		fThread.setDaemon(true);
+		fThread.start();
+	}
+
+	private long parse(String value, long def)
+	{
+		return value != null && !value.isEmpty() ? Long.parseLong(value)
+			: def;
+	}
+
+	/**
+	 * Queues a record for writing without blocking.
+	 *
+	 * @param record bytes to append to the file as they are
+	 * @return false if the record was dropped because the ring is full or
+	 *         the channel has been released
+	 */
+	public boolean offer(byte[] record)
+	{
+		//released by the last user, nothing drains the ring any more
+		if(!fRunning)
+		{
+			fDropped.incrementAndGet();
+			return false;
+		}
+
+		long head;
+		do
+		{
+			head = fHead.get();
+			if(head - fTail.get() > fMask)
+			{
+				fDropped.incrementAndGet();
+				return false;
+			}
+		}
+		while(!fHead.compareAndSet(head, head + 1));
+
+		fSlots.set((int) head & fMask, record);
+
+		if(fWaiting)
+		{
+			fWaiting = false;
+			LockSupport.unpark(fThread);
+		}
+
+		return true;
+	}
+
+	@Override
+	public void run()
+	{
+		while(fRunning)
+		{
+			if(drain() == 0)
+			{
+				//announce waiting before checking again, avoids lost wakeups
+				fWaiting = true;
+				if(fSlots.get((int) fTail.get() & fMask) == null && fRunning)
+				{
+					LockSupport.parkNanos(this, fFlushDelay * 1000000L);
+				}
+				fWaiting = false;
+
+				checkAge();
+			}
+		}
+
+		drain();
+		closeFile();
+	}
+
+	/**
+	 * Writes all published records and flushes once.
+	 *
+	 * @return number of records written
+	 */
+	private int drain()
+	{
+		long tail = fTail.get();
+		int count = 0;
+
+		try
+		{
+			byte[] record;
+			while((record = fSlots.get((int) tail & fMask)) != null)
+			{
+				fSlots.set((int) tail & fMask, null);
+				fTail.lazySet(++tail);
+				++count;
+
+				write(record);
+			}
+
+			if(count > 0 && fOut != null)
+			{
+				fOut.flush();
+				fFlushes.incrementAndGet();
+			}
+		}
+		catch(IOException e)
+		{
+			//buffered records are lost, reopen on the next batch
+			if(fErrors.getAndIncrement() == 0)
+			{
+				e.printStackTrace();
+			}
+			closeFile();
+		}
+
+		return count;
+	}
+
+	private void write(byte[] record) throws IOException
+	{
+		if(fOut == null)
+		{
+			openFile();
+		}
+		else if(fMaxSize > 0 && fSize > 0 && fSize + record.length > fMaxSize)
+		{
+			rotate();
+		}
+
+		fOut.write(record);
+		fSize += record.length;
+		fWritten.incrementAndGet();
+	}
+
+	private void checkAge()
+	{
+		if(fMaxAge > 0 && fOut != null && fSize > 0
+			&& System.currentTimeMillis() - fOpened >= fMaxAge)
+		{
+			try
+			{
+				rotate();
+			}
+			catch(IOException e)
+			{
+				fErrors.incrementAndGet();
+				closeFile();
+			}
+		}
+	}
+
+	private void openFile() throws IOException
+	{
+		fOut = new BufferedOutputStream(new FileOutputStream(fFile, true),
+			65536);
+		fSize = fFile.length();
+		fOpened = System.currentTimeMillis();
+	}
+
+	private void closeFile()
+	{
+		if(fOut == null)
+		{
+			return;
+		}
+
+		try
+		{
+			fOut.close();
+		}
+		catch(IOException e)
+		{
+			fErrors.incrementAndGet();
+		}
+		fOut = null;
+	}
+
+	/**
+	 * Renames the file to name.1, shifting older files up to the number
+	 * kept, and starts a new one.
+	 */
+	private void rotate() throws IOException
+	{
+		closeFile();
+
+		final String path = fFile.getPath();
+		new File(path + "." + fKeep).delete();
+		for(int i = fKeep - 1; i > 0; --i)
+		{
+			new File(path + "." + i).renameTo(new File(path + "." + (i + 1)));
+		}
+
+		if(fKeep > 0)
+		{
+			fFile.renameTo(new File(path + ".1"));
+		}
+		else
+		{
+			fFile.delete();
+		}
+
+		fRotations.incrementAndGet();
+		openFile();
+	}
+
+	/**
+	 * Drops a reference, writing what is left and closing the file once the
+	 * last user is gone.
+	 */
+	public void release()
+	{
+		synchronized(CHANNELS)
+		{
+			if(--fReferences > 0)
+			{
+				return;
+			}
+
+			CHANNELS.remove(fFile.getPath());
+		}
+
+		fRunning = false;
+		LockSupport.unpark(fThread);
+
+		try
+		{
+			fThread.join(10000);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public String getPath()
+	{
+		return fFile.getPath();
+	}
+
+	public int getCapacity()
+	{
+		return fMask + 1;
+	}
+
+	public long getPendingCount()
+	{
+		return fHead.get() - fTail.get();
+	}
+
+	public long getWrittenCount()
+	{
+		return fWritten.get();
+	}
+
+	public long getDroppedCount()
+	{
+		return fDropped.get();
+	}
+
+	public long getFlushCount()
+	{
+		return fFlushes.get();
+	}
+
+	public long getRotationCount()
+	{
+		return fRotations.get();
+	}
+
+	public long getErrorCount()
+	{
+		return fErrors.get();
+	}
+}
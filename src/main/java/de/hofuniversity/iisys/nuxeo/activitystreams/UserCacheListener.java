@@ -0,0 +1,35 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams;
+
+import java.io.Serializable;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventListener;
+
+/**
+ * Drops cached display names when users are changed or deleted in the
+ * directory.
+ */
+public class UserCacheListener implements EventListener
+{
+	@Override
+	public void handleEvent(Event event) throws ClientException
+	{
+		final UserNameCache cache = UserNameCache.getInstance();
+		if(cache == null)
+		{
+			return;
+		}
+		
+		//the user manager passes the changed user's id
+		final Serializable id = event.getContext().getProperty("id");
+		if(id != null)
+		{
+			cache.invalidate(id.toString());
+		}
+		else
+		{
+			cache.invalidateAll();
+		}
+	}
+}
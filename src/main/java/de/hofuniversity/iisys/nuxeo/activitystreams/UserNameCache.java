@@ -0,0 +1,289 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of user display names in front of the user directory. Entries
+ * expire after a TTL; ids the directory does not know are cached as well,
+ * with a shorter TTL. A single instance is shared by all listeners so that
+ * directory change events invalidate every user of it.
+ */
+public class UserNameCache
+{
+	private static final String SIZE_PROP = "users.cache.size";
+	private static final String TTL_PROP = "users.cache.ttl";
+	private static final String NEGATIVE_TTL_PROP = "users.cache.ttl.negative";
+
+	private static UserNameCache fInstance;
+
+	/**
+	 * Resolves a user id against the directory.
+	 */
+	public interface ILoader
+	{
+		/**
+		 * @return display name or null if the user is unknown
+		 */
+		public String load(String userId) throws Exception;
+	}
+
+	private final int fMaxSize;
+	private final long fTtl, fNegativeTtl;
+
+	private final LinkedHashMap<String, CacheEntry> fEntries;
+
+	//changed by every invalidation, guarded by fEntries
+	private long fGeneration;
+
+	private final AtomicLong fHits, fMisses, fNegativeHits, fEvictions,
+		fInvalidations, fFailures, fLoadTime;
+
+	/**
+	 * @param properties configuration, only used by the first caller
+	 * @return shared cache instance
+	 */
+	public static synchronized UserNameCache getInstance(
+		Map<String, String> properties)
+	{
+		if(fInstance == null)
+		{
+			fInstance = new UserNameCache(properties);
+		}
+
+		return fInstance;
+	}
+
+	/**
+	 * @return shared cache instance or null if none has been created yet
+	 */
+	public static synchronized UserNameCache getInstance()
+	{
+		return fInstance;
+	}
+
+	public UserNameCache(Map<String, String> properties)
+	{
+		fMaxSize = parse(properties.get(SIZE_PROP), 10000);
+		fTtl = parse(properties.get(TTL_PROP), 600000);
+		fNegativeTtl = parse(properties.get(NEGATIVE_TTL_PROP), 60000);
+
+		//access order for LRU eviction
+		fEntries = new LinkedHashMap<String, CacheEntry>(256, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+				Map.Entry<String, CacheEntry> eldest)
+			{
+				if(size() > fMaxSize)
+				{
+					fEvictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+
+		fHits = new AtomicLong();
+		fMisses = new AtomicLong();
+		fNegativeHits = new AtomicLong();
+		fEvictions = new AtomicLong();
+		fInvalidations = new AtomicLong();
+		fFailures = new AtomicLong();
+		fLoadTime = new AtomicLong();
+	}
+
+	private int parse(String value, int def)
+	{
+		return value != null && !value.isEmpty() ? Integer.parseInt(value)
+			: def;
+	}
+
+	/**
+	 * Returns the display name for a user, loading it on a miss. The
+	 * directory is queried outside the cache lock, so concurrent misses for
+	 * the same id may load it twice. A name loaded while the cache was
+	 * invalidated is returned but not cached, since it may be outdated.
+	 *
+	 * @param userId user to resolve
+	 * @param loader directory lookup used on a miss
+	 * @return display name or null if the user is unknown
+	 * @throws Exception if the lookup failed, failures are not cached
+	 */
+	public String get(String userId, ILoader loader) throws Exception
+	{
+		final long now = System.currentTimeMillis();
+		final long generation;
+
+		synchronized(fEntries)
+		{
+			generation = fGeneration;
+			final CacheEntry entry = fEntries.get(userId);
+
+			if(entry != null && entry.fExpires > now)
+			{
+				fHits.incrementAndGet();
+				if(entry.fName == null)
+				{
+					fNegativeHits.incrementAndGet();
+				}
+
+				return entry.fName;
+			}
+		}
+
+		final long start = System.nanoTime();
+		final String name;
+		try
+		{
+			name = loader.load(userId);
+		}
+		catch(Exception e)
+		{
+			fFailures.incrementAndGet();
+			throw e;
+		}
+		fLoadTime.addAndGet(System.nanoTime() - start);
+		fMisses.incrementAndGet();
+
+		final long ttl = name != null ? fTtl : fNegativeTtl;
+		synchronized(fEntries)
+		{
+			if(fGeneration == generation)
+			{
+				fEntries.put(userId, new CacheEntry(name, now + ttl));
+			}
+		}
+
+		return name;
+	}
+
+	/**
+	 * Drops a user's cached name, e.g. after it was changed in the directory.
+	 */
+	public void invalidate(String userId)
+	{
+		synchronized(fEntries)
+		{
+			++fGeneration;
+			if(fEntries.remove(userId) != null)
+			{
+				fInvalidations.incrementAndGet();
+			}
+		}
+	}
+
+	public void invalidateAll()
+	{
+		synchronized(fEntries)
+		{
+			++fGeneration;
+			fInvalidations.addAndGet(fEntries.size());
+			fEntries.clear();
+		}
+	}
+
+	/**
+	 * Removes expired entries, which would otherwise only be replaced on
+	 * their next lookup.
+	 */
+	public void purge()
+	{
+		final long now = System.currentTimeMillis();
+
+		synchronized(fEntries)
+		{
+			final Iterator<CacheEntry> iter = fEntries.values().iterator();
+			while(iter.hasNext())
+			{
+				if(iter.next().fExpires <= now)
+				{
+					iter.remove();
+				}
+			}
+		}
+	}
+
+	public int getSize()
+	{
+		synchronized(fEntries)
+		{
+			return fEntries.size();
+		}
+	}
+
+	public int getMaxSize()
+	{
+		return fMaxSize;
+	}
+
+	public long getHitCount()
+	{
+		return fHits.get();
+	}
+
+	public long getMissCount()
+	{
+		return fMisses.get();
+	}
+
+	/**
+	 * @return number of failed directory lookups, not counted as misses
+	 */
+	public long getFailureCount()
+	{
+		return fFailures.get();
+	}
+
+	public long getNegativeHitCount()
+	{
+		return fNegativeHits.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return fEvictions.get();
+	}
+
+	public long getInvalidationCount()
+	{
+		return fInvalidations.get();
+	}
+
+	/**
+	 * @return share of lookups answered from the cache
+	 */
+	public double getHitRate()
+	{
+		final long hits = fHits.get();
+		final long total = hits + fMisses.get();
+
+		return total > 0 ? (double) hits / total : 0;
+	}
+
+	/**
+	 * @return average directory lookup time in milliseconds
+	 */
+	public double getAverageLoadTime()
+	{
+		final long misses = fMisses.get();
+
+		return misses > 0 ? fLoadTime.get() / 1000000.0 / misses : 0;
+	}
+
+	private static class CacheEntry
+	{
+		private final String fName;
+		private final long fExpires;
+
+		public CacheEntry(String name, long expires)
+		{
+			fName = name;
+			fExpires = expires;
+		}
+	}
+}
@@ -2,23 +2,30 @@ package de.hofuniversity.iisys.nuxeo.activitystreams.agg;
 
 import java.util.Map;
 
-import org.json.JSONObject;
 import org.nuxeo.ecm.core.api.ClientException;
-import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.event.Event;
 
+import de.hofuniversity.iisys.nuxeo.activitystreams.ActivityContext;
 import de.hofuniversity.iisys.nuxeo.activitystreams.ActivityLogger;
 import de.hofuniversity.iisys.nuxeo.activitystreams.ActivitySender;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.Activity;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.ActivityObject;
+import de.hofuniversity.iisys.nuxeo.activitystreams.route.Route;
 
-public class ActivityAggregator implements Runnable, IAggregator
+public class ActivityAggregator implements IAggregator
 {
 	private static final String AGGREGATE_PROP = "activities.aggregate";
 	private static final String AGGREGATE_LAZY_PROP =
 			"activities.aggregate.lazy";
+	private static final String AGGREGATE_LAZY_MAX_PROP =
+			"activities.aggregate.lazy.max";
 	private static final String AGGREGATE_INT_PROP =
 			"activities.aggregate.interval";
 	private static final String TAG_AGGREGATE_INT_PROP =
 			"activities.tags.aggregate.interval";
+	private static final String AGGREGATE_TICK_PROP =
+			"activities.aggregate.tick";
+	private static final String AGGREGATE_THREADS_PROP =
+			"activities.aggregate.flush.threads";
 	
 	private final Map<String, String> fProperties;
 	
@@ -35,6 +42,12 @@ public class ActivityAggregator implements Runnable, IAggregator
 	
 	private final TimeoutAggregator fTimeoutAgg;
 	
+	private final DebouncingAggregator fDebouncingAgg;
+	
+	private final TimerWheel fTimer;
+	
+	private final AggregationWindows fWindows;
+	
 	public ActivityAggregator(Map<String, String> properties, ActivitySender actSender,
 			ActivityLogger actLogger)
 	{
@@ -49,20 +62,43 @@ public class ActivityAggregator implements Runnable, IAggregator
         fAggregateTime = Long.parseLong(fProperties.get(AGGREGATE_INT_PROP));
         fTagAggregateTime = Long.parseLong(fProperties.get(TAG_AGGREGATE_INT_PROP));
 
-		fMergingAgg = new MergingAggregator(fActSender, fAggregateTime);
+		//expires aggregation windows, sized for the longest one
+		String tick = fProperties.get(AGGREGATE_TICK_PROP);
+		String threads = fProperties.get(AGGREGATE_THREADS_PROP);
+		fTimer = new TimerWheel("activitystreams-aggregation",
+			tick != null ? Long.parseLong(tick) : 100,
+			Math.max(fAggregateTime, fTagAggregateTime),
+			threads != null ? Integer.parseInt(threads) : 2);
+
+		//caps on held back state
+		final AggregationLimits limits = new AggregationLimits(fProperties);
+
+		//window lengths, per type and event if set by the routing rules
+		fWindows = new AggregationWindows(fAggregateTime, fTagAggregateTime);
+
+		fMergingAgg = new MergingAggregator(fActSender, fTimer, fWindows,
+			limits);
 		
-		fTaggingAgg = new TaggingAggregator(fActSender, fAggregateTime, fTagAggregateTime);
+		fTaggingAgg = new TaggingAggregator(fActSender, fTimer, fWindows,
+			limits);
 		
-		fTimeoutAgg = new TimeoutAggregator(fActSender, fAggregateTime);
+		fTimeoutAgg = new TimeoutAggregator(fActSender, fTimer, fWindows);
 		
-		//initialize aggregation time stamp cleanup
+		//lazy mode holds back the newest activity per document instead
+		String lazyMax = fProperties.get(AGGREGATE_LAZY_MAX_PROP);
+		fDebouncingAgg = new DebouncingAggregator(fActSender, fTimer, fWindows,
+			lazyMax != null && !lazyMax.isEmpty()
+			? Long.parseLong(lazyMax) : 6 * fAggregateTime);
+		
+		//initialize aggregation window expiry, the sender's shutdown sends
+		//what is left
 		if(fAggregate)
 		{
-			new Thread(this).start();
+			fTimer.start();
 		}
 	}
 	
-	public void handleActivity(JSONObject activity, String user)
+	public void handleActivity(Activity activity, String user)
 	{
 		if(!fAggregate)
 		{
@@ -75,107 +111,127 @@ public class ActivityAggregator implements Runnable, IAggregator
 		}
 	}
 	
-	public boolean handleAggregation(final Event event,
-			final DocumentModel model, String user) throws ClientException
+	/**
+	 * @param activity activity generated for the event
+	 * @param user ID of the user whose stream to post to
+	 * @param context routed event, selects the aggregation window
+	 */
+	public void handleActivity(Activity activity, String user,
+		ActivityContext context)
 	{
-		// always send if deactivated
 		if(!fAggregate)
 		{
-			return true;
+			fActSender.send(activity, user);
 		}
-		
-		
-		final String eventType = event.getName();
-		final String modelType = model.getType();
-		
-		//TODO: per-type timeouts
-		
-		//ignore most event types
-		if(!"documentCreated".equals(eventType)
-			&& !"documentCreatedByCopy".equals(eventType)
-			&& !"documentModified".equals(eventType)
-			&& !"documentSecurityUpdated".equals(eventType)
-			&& !"documentWaitingPublication".equals(eventType)
-			&& !"documentTagUpdated".equals(eventType)
-			&& !"Tagging".equals(modelType))
+		else if(fAggregateLazy && isTimed(context)
+			&& context.getDocument() != null)
+		{
+			// pass on the newest version once the document is quiet
+			fDebouncingAgg.hold(context, activity, user);
+		}
+		else
+		{
+			// nothing held for the document may show up after this event
+			if(fAggregateLazy && context.getDocument() != null)
+			{
+				fDebouncingAgg.release(
+					context.getDocument().getVersionSeriesId());
+			}
+			
+			// aggregate CRUD operations
+			fMergingAgg.handleActivity(activity, user,
+				fWindows.getWindow(context), fWindows.getKey(context));
+		}
+	}
+	
+	private boolean isTimed(ActivityContext context)
+	{
+		return context.getRoute() != null
+			&& (context.getRoute().getAggregation() == Route.Aggregation.UPDATE
+			|| context.getRoute().getAggregation()
+			== Route.Aggregation.PUBLICATION);
+	}
+	
+	public boolean handleAggregation(final ActivityContext context,
+			String user) throws ClientException
+	{
+		// always send if deactivated
+		if(!fAggregate)
 		{
 			return true;
 		}
 		
-		//handle aggregation and timeouts
-		boolean send = true;
-		
-		//TODO: lazy sending
 		
-		send = fTimeoutAgg.handleAggregation(event, model, user);
-		
-		if("Tagging".equals(modelType)
-			|| "documentTagUpdated".equals(eventType))
+		//handle aggregation and timeouts
+		switch(context.getRoute().getAggregation())
 		{
-			//tagging events
-			send = fTaggingAgg.handleAggregation(event, model, user);
+			case UPDATE:
+			case PUBLICATION:
+				//lazy: held back after the activity has been generated
+				if(fAggregateLazy)
+				{
+					return fDebouncingAgg.handleAggregation(context, user);
+				}
+				return fTimeoutAgg.handleAggregation(context, user);
+				
+			case TAG:
+				//tagging events
+				return fTaggingAgg.handleAggregation(context, user);
+				
+			default:
+				//most event types are not aggregated
+				return true;
 		}
-		
-		return send;
 	}
 
-	@Override
-	public void run()
+	/**
+	 * Puts back an aggregation entry recovered from the outbox.
+	 * 
+	 * @param verb verb of the aggregated activity
+	 * @param key user and folder path the entry was collected for
+	 * @param entry document object
+	 * @param outboxId id of the outbox record journalling the entry
+	 */
+	public void restoreEntry(String verb, String key, ActivityObject entry,
+		long outboxId)
 	{
-		// aggregation cleanup
-		boolean active = true;
+		fMergingAgg.restoreEntry(verb, key, entry, outboxId);
 		
-		addShutdownHook();
-		
-		while(active)
+		//no cleanup thread, send right away
+		if(!fAggregate)
 		{
-			try
-			{
-				cleanup();
-				
-				Thread.sleep(fAggregateTime);
-			}
-			catch(Exception e)
-			{
-				fActLogger.logString("cleanup stopped: " + e.getLocalizedMessage());
-				active = false;
-			}
+			fMergingAgg.shutdown();
 		}
 	}
 
-	@Override
-	public void cleanup() throws Exception
+	public AggregationWindows getWindows()
 	{
-		//merging
-		fMergingAgg.cleanup();
-		
-		//tagging
-		fTaggingAgg.cleanup();
-		
-		//timeouts
-		fTimeoutAgg.cleanup();
+		return fWindows;
+	}
+	
+	public MergingAggregator getMergingAggregator()
+	{
+		return fMergingAgg;
+	}
+	
+	public DebouncingAggregator getDebouncingAggregator()
+	{
+		return fDebouncingAgg;
+	}
+	
+	public TaggingAggregator getTaggingAggregator()
+	{
+		return fTaggingAgg;
 	}
 
 	@Override
 	public void shutdown()
 	{
-		// TODO: doesn't really work like this
+		fTimer.stop();
 		
+		fDebouncingAgg.shutdown();
 		fMergingAgg.shutdown();
 		fTaggingAgg.shutdown();
 		fTimeoutAgg.shutdown();
 	}
-
-	private void addShutdownHook()
-	{
-		//add shutdown listener to send remaining tag aggregations
-		Runtime.getRuntime().addShutdownHook(new Thread()
-		{
-			@Override
-			public void run()
-			{
-				shutdown();
-			}
-		});
-	}
 }
@@ -0,0 +1,58 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.agg;
+
+import java.util.Map;
+
+/**
+ * Caps on the state aggregators may hold back between flushes. Going over a
+ * cap flushes buckets early instead of letting them grow until their
+ * window closes.
+ */
+public class AggregationLimits
+{
+	private static final String ENTRIES_PROP =
+			"activities.aggregate.bucket.entries";
+	private static final String BUCKETS_PROP =
+			"activities.aggregate.buckets.max";
+	private static final String BYTES_PROP =
+			"activities.aggregate.bytes.max";
+
+	private final int fMaxEntries, fMaxBuckets;
+	private final long fMaxBytes;
+
+	public AggregationLimits(Map<String, String> properties)
+	{
+		fMaxEntries = parse(properties.get(ENTRIES_PROP), 500);
+		fMaxBuckets = parse(properties.get(BUCKETS_PROP), 10000);
+		fMaxBytes = parse(properties.get(BYTES_PROP), 16 * 1024 * 1024);
+	}
+
+	private int parse(String value, int def)
+	{
+		return value != null && !value.isEmpty() ? Integer.parseInt(value)
+			: def;
+	}
+
+	/**
+	 * @return maximum number of entries in a single bucket
+	 */
+	public int getMaxEntries()
+	{
+		return fMaxEntries;
+	}
+
+	/**
+	 * @return maximum number of open buckets per aggregator
+	 */
+	public int getMaxBuckets()
+	{
+		return fMaxBuckets;
+	}
+
+	/**
+	 * @return maximum approximate heap retained by held back entries
+	 */
+	public long getMaxBytes()
+	{
+		return fMaxBytes;
+	}
+}
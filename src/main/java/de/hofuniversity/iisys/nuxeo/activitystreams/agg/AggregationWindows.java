@@ -0,0 +1,109 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.agg;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.ActivityContext;
+import de.hofuniversity.iisys.nuxeo.activitystreams.route.Route;
+
+/**
+ * Aggregation window lengths per document type and event name. A window
+ * set by the routing rules takes precedence over the configured interval
+ * for the kind of aggregation. Windows are counted per type and event when
+ * they are flushed.
+ */
+public class AggregationWindows
+{
+	//key for windows not opened by an event, e.g. recovered ones
+	public static final String ANY = "*";
+
+	private final long fAggregateTime, fTagAggregateTime;
+
+	private final ConcurrentMap<String, AtomicLong> fFlushes;
+
+	/**
+	 * @param aggTime default window for updates and publications
+	 * @param tagAggTime default window for tagging
+	 */
+	public AggregationWindows(long aggTime, long tagAggTime)
+	{
+		fAggregateTime = aggTime;
+		fTagAggregateTime = tagAggTime;
+
+		fFlushes = new ConcurrentHashMap<String, AtomicLong>();
+	}
+
+	/**
+	 * @param context routed event
+	 * @return window length in milliseconds
+	 */
+	public long getWindow(ActivityContext context)
+	{
+		final Route route = context.getRoute();
+
+		if(route.getWindow() > 0)
+		{
+			return route.getWindow();
+		}
+
+		return route.getAggregation() == Route.Aggregation.TAG
+			? fTagAggregateTime : fAggregateTime;
+	}
+
+	/**
+	 * @param context routed event
+	 * @return key to count flushes of a window opened by the event under
+	 */
+	public String getKey(ActivityContext context)
+	{
+		final String type = context.getDocType();
+		return (type != null ? type : ANY) + "/" + context.getName();
+	}
+
+	/**
+	 * Counts a flushed window.
+	 *
+	 * @param key key of the event that opened the window
+	 */
+	public void flushed(String key)
+	{
+		AtomicLong count = fFlushes.get(key);
+		if(count == null)
+		{
+			final AtomicLong created = new AtomicLong();
+			count = fFlushes.putIfAbsent(key, created);
+			if(count == null)
+			{
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	public long getAggregateTime()
+	{
+		return fAggregateTime;
+	}
+
+	public long getTagAggregateTime()
+	{
+		return fTagAggregateTime;
+	}
+
+	/**
+	 * @return number of flushed windows by "type/event", sorted
+	 */
+	public Map<String, Long> getFlushCounts()
+	{
+		final Map<String, Long> counts = new TreeMap<String, Long>();
+		for(Entry<String, AtomicLong> entry : fFlushes.entrySet())
+		{
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+}
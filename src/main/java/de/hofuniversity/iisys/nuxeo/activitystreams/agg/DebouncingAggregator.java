@@ -0,0 +1,381 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.agg;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.ActivityContext;
+import de.hofuniversity.iisys.nuxeo.activitystreams.ActivitySender;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.Activity;
+
+/**
+ * Lazy aggregation: instead of dropping repeated changes to a document
+ * by one user within the window, the newest activity is held back and
+ * passed on once the document has been quiet for a whole window, or once it
+ * has been held for the maximum delay. The first event of a burst decides
+ * verb and title, the last one the state of the document. Changes by other
+ * users are held separately, so each keeps their own actor.
+ * Held activities are sent as they are, without another merging window.
+ * Any other event on the document releases them first, so e.g. an update
+ * never shows up after the document's removal.
+ * Timers are not moved for every change; an expired timer checks whether
+ * the document is quiet and is scheduled again for the rest otherwise.
+ */
+public class DebouncingAggregator extends TimeoutAggregator
+{
+	private final ActivitySender fActSender;
+
+	private final TimerWheel fTimer;
+
+	private final AggregationWindows fWindows;
+
+	private final long fMaxDelay;
+
+	private final ConcurrentMap<String, Pending> fPending;
+
+	//keys of the held activities by document
+	private final ConcurrentMap<String, DocumentKeys> fDocuments;
+
+	private final AtomicInteger fPendingCount;
+	private final AtomicLong fReplaced, fCapped;
+
+	/**
+	 * @param actSender sender passing on held activities
+	 * @param timer timer checking held activities
+	 * @param windows quiet periods per type and event
+	 * @param maxDelay longest time to hold an activity in milliseconds
+	 */
+	public DebouncingAggregator(ActivitySender actSender, TimerWheel timer,
+		AggregationWindows windows, long maxDelay)
+	{
+		super(actSender, timer, windows);
+
+		fActSender = actSender;
+		fTimer = timer;
+		fWindows = windows;
+		fMaxDelay = maxDelay;
+
+		fPending = new ConcurrentHashMap<String, Pending>();
+		fDocuments = new ConcurrentHashMap<String, DocumentKeys>();
+
+		fPendingCount = new AtomicInteger();
+		fReplaced = new AtomicLong();
+		fCapped = new AtomicLong();
+	}
+
+	@Override
+	public boolean handleAggregation(ActivityContext context, String user)
+	{
+		//the activity is needed in any case, held back afterwards
+		return true;
+	}
+
+	/**
+	 * Holds back the activity for an event, replacing an older one held for
+	 * the same user, document and kind of aggregation.
+	 *
+	 * @param context routed event
+	 * @param activity activity generated for the event
+	 * @param user ID of the user whose stream to post to
+	 */
+	public void hold(ActivityContext context, Activity activity, String user)
+	{
+		final String docId = context.getDocument().getVersionSeriesId();
+		final String key = context.getRoute().getAggregation() + ":" + user
+			+ ":" + docId;
+		final long window = fWindows.getWindow(context);
+
+		while(true)
+		{
+			Pending pending = fPending.get(key);
+
+			if(pending == null)
+			{
+				final Pending created = new Pending(activity, user, docId,
+					window, fWindows.getKey(context));
+				pending = fPending.putIfAbsent(key, created);
+
+				if(pending == null)
+				{
+					index(docId, key);
+					fPendingCount.incrementAndGet();
+					schedule(key, created, window);
+					return;
+				}
+			}
+
+			if(pending.replace(activity))
+			{
+				fReplaced.incrementAndGet();
+				return;
+			}
+
+			//passed on concurrently, hold with a fresh entry
+		}
+	}
+
+	/**
+	 * Sends everything held for a document right away, before an event on
+	 * it that is not held is handled.
+	 *
+	 * @param docId version series ID of the document
+	 */
+	public void release(String docId)
+	{
+		final DocumentKeys keys = fDocuments.get(docId);
+		if(keys == null)
+		{
+			return;
+		}
+
+		for(String key : keys.copy())
+		{
+			final Pending pending = fPending.get(key);
+			if(pending != null)
+			{
+				emit(key, pending);
+			}
+		}
+	}
+
+	private void index(String docId, String key)
+	{
+		while(true)
+		{
+			DocumentKeys keys = fDocuments.get(docId);
+			if(keys == null)
+			{
+				final DocumentKeys created = new DocumentKeys();
+				keys = fDocuments.putIfAbsent(docId, created);
+				if(keys == null)
+				{
+					keys = created;
+				}
+			}
+
+			if(keys.add(key))
+			{
+				return;
+			}
+
+			//emptied and removed concurrently, use a fresh set
+		}
+	}
+
+	private void unindex(String docId, String key)
+	{
+		final DocumentKeys keys = fDocuments.get(docId);
+		if(keys != null && keys.remove(key))
+		{
+			fDocuments.remove(docId, keys);
+		}
+	}
+
+	private void schedule(final String key, final Pending pending, long delay)
+	{
+		fTimer.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				check(key, pending);
+			}
+		}, delay);
+	}
+
+	private void check(String key, Pending pending)
+	{
+		final long now = System.currentTimeMillis();
+		final long quiet = pending.getLastUpdate() + pending.fWindow;
+		final long cap = pending.fFirstUpdate + fMaxDelay;
+
+		final long due = Math.min(quiet, cap);
+		if(now + fTimer.getTickDuration() < due)
+		{
+			//changed since, check again once it could be quiet
+			schedule(key, pending, due - now);
+			return;
+		}
+
+		if(cap <= quiet)
+		{
+			fCapped.incrementAndGet();
+		}
+
+		emit(key, pending);
+	}
+
+	private void emit(String key, Pending pending)
+	{
+		fPending.remove(key, pending);
+
+		if(!pending.detach())
+		{
+			return;
+		}
+
+		unindex(pending.fDocId, key);
+		fPendingCount.decrementAndGet();
+		fWindows.flushed(pending.fType);
+
+		try
+		{
+			fActSender.send(pending.getActivity(), pending.fUser);
+		}
+		catch(Exception e)
+		{
+			fActSender.logException(e);
+		}
+	}
+
+	@Override
+	public void shutdown()
+	{
+		//send everything held back
+		for(Entry<String, Pending> entry : fPending.entrySet())
+		{
+			emit(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * @return number of documents with a held back activity
+	 */
+	public int getPendingCount()
+	{
+		return fPendingCount.get();
+	}
+
+	/**
+	 * @return number of held back activities replaced by newer ones
+	 */
+	public long getReplacedCount()
+	{
+		return fReplaced.get();
+	}
+
+	/**
+	 * @return number of activities passed on because of the maximum delay
+	 */
+	public long getCappedCount()
+	{
+		return fCapped.get();
+	}
+
+	/**
+	 * Newest activity held back for one user and document. Once detached for passing
+	 * on it no longer accepts replacements and can be read without locking.
+	 */
+	private static final class Pending
+	{
+		private final long fFirstUpdate, fWindow;
+		private final String fType, fUser, fDocId;
+
+		private Activity fActivity;
+		private long fLastUpdate;
+
+		private boolean fDetached;
+
+		public Pending(Activity activity, String user, String docId,
+			long window, String type)
+		{
+			fFirstUpdate = System.currentTimeMillis();
+			fLastUpdate = fFirstUpdate;
+			fWindow = window;
+			fType = type;
+
+			fActivity = activity;
+			fUser = user;
+			fDocId = docId;
+		}
+
+		/**
+		 * @return false if the entry has already been detached
+		 */
+		public synchronized boolean replace(Activity activity)
+		{
+			if(fDetached)
+			{
+				return false;
+			}
+
+			//keep what happened first, but show the current document
+			activity.setVerb(fActivity.getVerb());
+			activity.setTitle(fActivity.getTitle());
+			activity.addEventTime(fActivity.getEventTime());
+
+			fActivity = activity;
+			fLastUpdate = System.currentTimeMillis();
+
+			return true;
+		}
+
+		public synchronized long getLastUpdate()
+		{
+			return fLastUpdate;
+		}
+
+		public synchronized Activity getActivity()
+		{
+			return fActivity;
+		}
+
+		/**
+		 * @return false if the entry has already been detached
+		 */
+		public synchronized boolean detach()
+		{
+			final boolean attached = !fDetached;
+			fDetached = true;
+
+			return attached;
+		}
+	}
+
+	/**
+	 * Keys held for one document. Once emptied it is removed and accepts no
+	 * more keys.
+	 */
+	private static final class DocumentKeys
+	{
+		private final Set<String> fKeys = new HashSet<String>();
+
+		private boolean fRemoved;
+
+		/**
+		 * @return false if the set has already been removed
+		 */
+		public synchronized boolean add(String key)
+		{
+			if(fRemoved)
+			{
+				return false;
+			}
+
+			fKeys.add(key);
+			return true;
+		}
+
+		/**
+		 * @return true if the set is empty now and has to be removed
+		 */
+		public synchronized boolean remove(String key)
+		{
+			fKeys.remove(key);
+			fRemoved = fKeys.isEmpty();
+
+			return fRemoved;
+		}
+
+		public synchronized List<String> copy()
+		{
+			return new ArrayList<String>(fKeys);
+		}
+	}
+}
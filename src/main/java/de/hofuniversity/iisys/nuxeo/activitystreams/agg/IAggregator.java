@@ -1,16 +1,13 @@
 package de.hofuniversity.iisys.nuxeo.activitystreams.agg;
 
-import org.json.JSONObject;
-import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.event.Event;
+import de.hofuniversity.iisys.nuxeo.activitystreams.ActivityContext;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.Activity;
 
 public interface IAggregator
 {
-	public void handleActivity(JSONObject activity, String user);
+	public void handleActivity(Activity activity, String user);
 	
-	public boolean handleAggregation(final Event event, final DocumentModel model, String user);
-	
-	public void cleanup() throws Exception;
+	public boolean handleAggregation(final ActivityContext context, String user);
 	
 	public void shutdown();
 }
@@ -1,72 +1,106 @@
 package de.hofuniversity.iisys.nuxeo.activitystreams.agg;
 
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-
-import org.json.JSONObject;
-import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.event.Event;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import de.hofuniversity.iisys.nuxeo.activitystreams.ActivityContext;
 import de.hofuniversity.iisys.nuxeo.activitystreams.ActivitySender;
+import de.hofuniversity.iisys.nuxeo.activitystreams.json.ActivityTemplate;
+import de.hofuniversity.iisys.nuxeo.activitystreams.json.JsonBuffer;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.Activity;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.ActivityObject;
+import de.hofuniversity.iisys.nuxeo.activitystreams.send.ActivityOutbox;
 
 public class MergingAggregator extends TimeoutAggregator
 {
+	private static final String KEY_SEP = "¶";
+	
+	//expected number of concurrently updating threads; only a sizing hint
+	//on Java 8, where the map locks per bin rather than per segment
+	private static final int WRITERS = 64;
+	
 	private final ActivitySender fActSender;
 	
-	private final Map<String, Long> fLastCreates, fLastUpdates, fLastRemoves, fLastDeletes;
+	private final TimerWheel fTimer;
+	
+	private final ConcurrentMap<String, Bucket> fBuckets;
+	
+	//buckets in the order they were opened, flushed ones are skipped
+	private final Queue<Entry<String, Bucket>> fOpened;
 	
-	private final Map<String, List<JSONObject>> fCreates, fUpdates, fRemoves, fDeletes;
+	private final AggregationWindows fWindows;
 	
-	private final long fAggregateTime;
+	private final AggregationLimits fLimits;
 	
-	public MergingAggregator(ActivitySender actSender, long aggTime)
+	//occupancy gauges
+	private final AtomicInteger fBucketCount, fEntryCount;
+	private final AtomicLong fRetainedBytes, fEarlyFlushes;
+	
+	public MergingAggregator(ActivitySender actSender, TimerWheel timer,
+		AggregationWindows windows, AggregationLimits limits)
 	{
-		super(actSender, aggTime);
-		
-		fLastCreates = new HashMap<String, Long>();
-		fLastUpdates = new HashMap<String, Long>();
-		fLastRemoves = new HashMap<String, Long>();
-		fLastDeletes = new HashMap<String, Long>();
+		super(actSender, timer, windows);
 		
-		fCreates = new HashMap<String, List<JSONObject>>();
-		fUpdates = new HashMap<String, List<JSONObject>>();
-		fRemoves = new HashMap<String, List<JSONObject>>();
-		fDeletes = new HashMap<String, List<JSONObject>>();
+		fBuckets = new ConcurrentHashMap<String, Bucket>(64, 0.75f, WRITERS);
+		fOpened = new ConcurrentLinkedQueue<Entry<String, Bucket>>();
 		
 		fActSender = actSender;
+		fTimer = timer;
+		
+		fWindows = windows;
+		fLimits = limits;
 		
-		fAggregateTime = aggTime;
+		fBucketCount = new AtomicInteger();
+		fEntryCount = new AtomicInteger();
+		fRetainedBytes = new AtomicLong();
+		fEarlyFlushes = new AtomicLong();
 	}
 
 	@Override
-	public void handleActivity(JSONObject activity, String user)
+	public void handleActivity(Activity activity, String user)
+	{
+		handleActivity(activity, user, fWindows.getAggregateTime(),
+			AggregationWindows.ANY);
+	}
+	
+	/**
+	 * @param activity activity to aggregate
+	 * @param user ID of the user whose stream to post to
+	 * @param window window to open if the activity starts a new bucket
+	 * @param type key to count the bucket's flush under
+	 */
+	public void handleActivity(Activity activity, String user, long window,
+		String type)
 	{
 		// TODO: aggregate
 		boolean send = true;
 		
 		try
 		{
-			String verb = activity.getString("verb");
+			String verb = activity.getVerb();
 			String actorId = null;
 			String documentId = null;
-			String documentName = null;
 			String documentPath = null;
 
-			if(activity.has("actor"))
+			if(activity.getActor() != null)
 			{
-				actorId = activity.getJSONObject("actor").getString("id");
+				actorId = activity.getActor().getId();
 			}
 			
-			JSONObject object = activity.optJSONObject("object");
+			ActivityObject object = activity.getObject();
 			if(object != null)
 			{
-				documentId = object.getString("id");
-				documentName = object.optString("displayName");
-				documentPath = object.optString("url");
+				documentId = object.getId();
+				documentPath = object.getUrl();
 			}
 			
 			// TODO: will this actually filter out everything that is not a document?
@@ -77,7 +111,6 @@ public class MergingAggregator extends TimeoutAggregator
 				|| "delete".equals(verb))
 				&& actorId != null
 				&& documentId != null
-				&& documentName != null
 				&& documentPath != null)
 			{
 				// strip "/@view_documents" from path
@@ -86,24 +119,14 @@ public class MergingAggregator extends TimeoutAggregator
 				// strip filename from path
 				documentPath = documentPath.substring(0, documentPath.lastIndexOf("/"));
 				
-				switch(verb)
-				{
-					case "add":
-						addEntryForPath(fCreates, fLastCreates, actorId, documentPath, object);
-						break;
-
-					case "update":
-						addEntryForPath(fUpdates, fLastUpdates, actorId, documentPath, object);
-						break;
-
-					case "remove":
-						addEntryForPath(fRemoves, fLastRemoves, actorId, documentPath, object);
-						break;
-
-					case "delete":
-						addEntryForPath(fDeletes, fLastDeletes, actorId, documentPath, object);
-						break;
-				}
+				// track paths per user
+				String key = actorId + KEY_SEP + documentPath;
+				
+				// journal before holding it back
+				long outboxId = journal(verb, key, object);
+				
+				addEntry(verb, key, object, outboxId, window, type,
+					activity);
 				
 				
 				send = false;
@@ -121,163 +144,285 @@ public class MergingAggregator extends TimeoutAggregator
 		}
 	}
 	
-	private void addEntryForPath(Map<String, List<JSONObject>> entryMap, Map<String, Long> times,
-		String user, String path, JSONObject entry)
+	/**
+	 * Puts back an aggregation entry recovered from the outbox.
+	 * 
+	 * @param verb verb of the aggregated activity
+	 * @param key user and folder path the entry was collected for
+	 * @param entry document object
+	 * @param outboxId id of the outbox record journalling the entry
+	 */
+	public void restoreEntry(String verb, String key, ActivityObject entry,
+		long outboxId)
 	{
-		// track paths per user
-		path = user + "¶" + path;
-		
-		List<JSONObject> entries = entryMap.get(path);
+		addEntry(verb, key, entry, outboxId, fWindows.getAggregateTime(),
+			AggregationWindows.ANY, null);
+	}
+	
+	private void addEntry(String verb, String key, ActivityObject entry,
+		long outboxId, long window, String type, Activity activity)
+	{
+		final String bucketKey = verb + KEY_SEP + key;
+		final int size = estimateSize(entry);
 		
-		if(entries == null)
+		while(true)
 		{
-			entries = new ArrayList<JSONObject>();
-			synchronized(entryMap)
+			Bucket bucket = fBuckets.get(bucketKey);
+			
+			if(bucket == null)
 			{
-				entryMap.put(path, entries);
+				// first entry opens a new aggregation window
+				final Bucket created = new Bucket(verb, key, type);
+				bucket = fBuckets.putIfAbsent(bucketKey, created);
+				
+				if(bucket == null)
+				{
+					bucket = created;
+					fBucketCount.incrementAndGet();
+					fOpened.offer(new SimpleImmutableEntry<String, Bucket>(
+						bucketKey, created));
+					scheduleFlush(bucketKey, created, window);
+				}
 			}
+			
+			final int entries = bucket.add(entry, outboxId, size, activity);
+			if(entries > 0)
+			{
+				fEntryCount.incrementAndGet();
+				fRetainedBytes.addAndGet(size);
+				
+				// full bucket is sent without waiting for its window
+				if(entries >= fLimits.getMaxEntries())
+				{
+					fEarlyFlushes.incrementAndGet();
+					flush(bucketKey, bucket);
+				}
+				
+				enforceLimits();
+				return;
+			}
+			
+			// detached by a concurrent flush, retry with a fresh bucket
+		}
+	}
+	
+	/**
+	 * Flushes the oldest buckets early while over the bucket or memory cap,
+	 * dropping buckets already flushed from the head of the queue.
+	 */
+	private void enforceLimits()
+	{
+		while(true)
+		{
+			final Entry<String, Bucket> oldest = fOpened.peek();
+			if(oldest == null)
+			{
+				// counters are updated after the queue, nothing left to flush
+				return;
+			}
+			
+			if(oldest.getValue().isDetached())
+			{
+				fOpened.remove(oldest);
+			}
+			else if(fBucketCount.get() > fLimits.getMaxBuckets()
+				|| fRetainedBytes.get() > fLimits.getMaxBytes())
+			{
+				// only one thread evicts a bucket
+				if(fOpened.remove(oldest))
+				{
+					fActSender.logMessage("### over limit: " + oldest.getKey());
+					
+					fEarlyFlushes.incrementAndGet();
+					flush(oldest.getKey(), oldest.getValue());
+				}
+			}
+			else
+			{
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @return rough estimate of the heap retained by a document object
+	 */
+	private int estimateSize(ActivityObject entry)
+	{
+		// object header plus string headers and UTF-16 characters
+		return 40 + estimateSize(entry.getId())
+			+ estimateSize(entry.getDisplayName())
+			+ estimateSize(entry.getObjectType())
+			+ estimateSize(entry.getUrl())
+			+ estimateSize(entry.getContent());
+	}
+	
+	private int estimateSize(String value)
+	{
+		return value != null ? 56 + 2 * value.length() : 0;
+	}
+	
+	private void scheduleFlush(final String bucketKey, final Bucket bucket,
+		long window)
+	{
+		// send collected entries once the window for this path closes
+		fTimer.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				fActSender.logMessage("### timeout: " + bucketKey);
+				
+				flush(bucketKey, bucket);
+			}
+		}, window);
+	}
+	
+	private long journal(String verb, String key, ActivityObject entry)
+	{
+		final ActivityOutbox outbox = fActSender.getOutbox();
+		if(outbox == null)
+		{
+			return -1;
 		}
 		
-		synchronized(entries)
+		try
 		{
-			entries.add(entry);
+			final JsonBuffer json = new JsonBuffer(256);
+			ActivityTemplate.writeObject(entry, json);
+			
+			return outbox.append(ActivityOutbox.TYPE_AGGREGATE, verb, key,
+				json.toString());
+		}
+		catch(Exception e)
+		{
+			fActSender.logException(e);
+			return -1;
+		}
+	}
+	
+	private void completeJournal(List<Long> ids)
+	{
+		final ActivityOutbox outbox = fActSender.getOutbox();
+		if(outbox == null || ids.isEmpty())
+		{
+			return;
 		}
 		
-		// TODO: store timestamp
-		handleTimeout(times, path);
+		try
+		{
+			for(Long id : ids)
+			{
+				outbox.complete(id);
+			}
+		}
+		catch(Exception e)
+		{
+			fActSender.logException(e);
+		}
 	}
 
 	@Override
-	public boolean handleAggregation(Event event, DocumentModel model, String user)
+	public boolean handleAggregation(ActivityContext context, String user)
 	{
 		return true;
 	}
 
-	@Override
-	public void cleanup()
+	private void flush(String bucketKey, Bucket bucket)
 	{
-		// TODO: necessary?
-//		super.cleanup();
+		// no more entries can be added once detached, only flush once
+		fBuckets.remove(bucketKey, bucket);
 		
-		// generate and send aggregated activities
-		// send activities based on timed out aggregation slots
-		handleCleanup("add", fLastCreates, fCreates);
-		handleCleanup("update", fLastUpdates, fUpdates);
-		handleCleanup("remove", fLastRemoves, fRemoves);
-		handleCleanup("delete", fLastDeletes, fDeletes);
-	}
-
-	private void handleCleanup(String verb, Map<String, Long> times,
-		Map<String, List<JSONObject>> entries)
-	{
-		Long time = null;
-		Set<String> keys = null;
+		if(!bucket.detach())
+		{
+			return;
+		}
 		
-		long delTime = System.currentTimeMillis() - fAggregateTime;
+		fBucketCount.decrementAndGet();
+		fEntryCount.addAndGet(-bucket.fEntries.size());
+		fRetainedBytes.addAndGet(-bucket.fBytes);
+		fWindows.flushed(bucket.fType);
 		
-		synchronized(times)
+		if(bucket.fEntries.isEmpty())
 		{
-			synchronized(entries)
-			{
-				keys = times.keySet();
-				
-				for(String key : keys)
-				{
-					time = times.get(key);
-					
-					// aggregation window has timed out, send collected entries
-					if(time < delTime)
-					{
-						fActSender.logMessage("### timeout: " + key);
-						
-						times.remove(key);
-						
-						// send aggregated activity
-						try
-						{
-							List<JSONObject> docs = entries.remove(key);
-							sendActivity(key, verb, docs);
-						}
-						catch(Exception e)
-						{
-							fActSender.logException(e);
-						}
-					}
-					else
-					{
-						fActSender.logMessage("### not timed out yet: " + key);
-					}
-				}
-			}
+			return;
+		}
+		
+		// send aggregated activity outside of any lock
+		try
+		{
+			sendActivity(bucket.fUser, bucket.fPath, bucket.fVerb,
+				bucket.fEntries, bucket.fEventTime, bucket.fLastEventTime);
+			
+			// the merged activity is journalled in place of its entries
+			completeJournal(bucket.fOutboxIds);
+		}
+		catch(Exception e)
+		{
+			fActSender.logException(e);
 		}
 	}
 	
-	private void sendActivity(String comboPath, String verb, List<JSONObject> entries)
+	private void sendActivity(String user, String folder, String verb,
+		List<ActivityObject> entries, long eventTime, long lastEventTime)
 		throws Exception
 	{
-		String[] components = comboPath.split("¶");
-		String user = components[0];
-		String path = components[1] + "/@view_documents";
+		String path = folder + "/@view_documents";
 		
-		JSONObject activity = new JSONObject();
+		Activity activity = new Activity(verb);
 		
-		activity.put("verb", verb);
+		// carry the times of the collected events for lag statistics
+		activity.setOrigin(Activity.Origin.MERGED);
+		activity.addEventTime(eventTime);
+		activity.addEventTime(lastEventTime);
 		
 		// TODO: title required?
 		
 		// generate actor based on user ID
-		JSONObject actor = new JSONObject();
-		actor.put("id", user);
-		actor.put("displayName", fActSender.getUserName(user));
-		actor.put("objectType", "person");
-		activity.put("actor", actor);
+		ActivityObject actor = new ActivityObject("person",
+			fActSender.getUserName(user));
+		actor.setId(user);
+		activity.setActor(actor);
 		
 		// TODO: generate object based on entry list 
-		JSONObject object = null;
+		ActivityObject object = null;
 		if(entries.size() > 1)
 		{
 			// multiple aggregated documents
-			object = new JSONObject();
 			// TODO: ID required?
 			// TODO: internationalization
-			object.put("displayName", entries.size() + " Dokumente");
-			object.put("objectType", "nuxeoCollection");
+			object = new ActivityObject("nuxeoCollection",
+				entries.size() + " Dokumente");
 			
 			// attach document IDs?
-			String content = "";
-			Iterator<JSONObject> eIter = entries.iterator();
+			StringBuilder content = new StringBuilder();
+			Iterator<ActivityObject> eIter = entries.iterator();
 			while(eIter.hasNext())
 			{
-				content += eIter.next().getString("id");
+				content.append(eIter.next().getId());
 				if(eIter.hasNext())
 				{
-					content += ',';
+					content.append(',');
 				}
 			}
-			object.put("content", content);
+			object.setContent(content.toString());
 		}
 		else
 		{
 			// single entry - use normal nuxeo document object
 			object = entries.get(0);
 		}
-		activity.put("object", object);
+		activity.setObject(object);
 		
 		
 		// generate target based on folder
-		JSONObject target = new JSONObject();
 		// TODO: ID required?
 		// TODO: internationlization
-		target.put("displayName", "Ordner");
-		target.put("objectType", "nuxeoCollection");
-		target.put("url", path);
-		activity.put("target", target);
-		
-		// fixed nuxeo generator
-		JSONObject generator = fActSender.getGenerator();
-		activity.put("generator", generator);
+		ActivityObject target = new ActivityObject("nuxeoCollection", "Ordner");
+		target.setUrl(path);
+		activity.setTarget(target);
 		
-		// send
+		// fixed nuxeo generator is added when encoding
 		fActSender.send(activity, user);
 	}
 	
@@ -285,41 +430,128 @@ public class MergingAggregator extends TimeoutAggregator
 	public void shutdown()
 	{
 		// send remaining activities
-		sendAll("add", fLastCreates, fCreates);
-		sendAll("update", fLastUpdates, fUpdates);
-		sendAll("remove", fLastRemoves, fRemoves);
-		sendAll("delete", fLastDeletes, fDeletes);
+		for(Entry<String, Bucket> entry : fBuckets.entrySet())
+		{
+			fActSender.logMessage("### shutdown: " + entry.getKey());
+			
+			flush(entry.getKey(), entry.getValue());
+		}
+	}
+	
+	/**
+	 * @return number of open aggregation buckets
+	 */
+	public int getBucketCount()
+	{
+		return fBucketCount.get();
+	}
+	
+	/**
+	 * @return number of entries held back in open buckets
+	 */
+	public int getEntryCount()
+	{
+		return fEntryCount.get();
 	}
 	
-	private void sendAll(String verb, Map<String, Long> times,
-			Map<String, List<JSONObject>> entries)
+	/**
+	 * @return approximate heap retained by held back entries in bytes
+	 */
+	public long getRetainedBytes()
 	{
-		Set<String> keys = null;
+		return fRetainedBytes.get();
+	}
+	
+	/**
+	 * @return number of buckets sent before their window closed
+	 */
+	public long getEarlyFlushCount()
+	{
+		return fEarlyFlushes.get();
+	}
+	
+	/**
+	 * Entries collected for one verb, user and folder within one aggregation
+	 * window. Once detached for sending it no longer accepts entries and can
+	 * be read without locking.
+	 */
+	private static final class Bucket
+	{
+		private final String fVerb, fUser, fPath;
+		
+		//type and event of the entry that opened the bucket
+		private final String fType;
+		
+		private final List<ActivityObject> fEntries;
+		private final List<Long> fOutboxIds;
+		
+		//earliest and latest event time of the entries, 0 if unknown
+		private long fEventTime, fLastEventTime;
+		
+		private volatile long fBytes;
+		
+		private boolean fDetached;
+		
+		public Bucket(String verb, String key, String type)
+		{
+			final int sep = key.indexOf(KEY_SEP);
+			
+			fVerb = verb;
+			fUser = key.substring(0, sep);
+			fPath = key.substring(sep + KEY_SEP.length());
+			fType = type;
+			
+			fEntries = new ArrayList<ActivityObject>();
+			fOutboxIds = new ArrayList<Long>();
+		}
 		
-		synchronized(times)
+		/**
+		 * @param activity activity the entry was taken from, null if
+		 *        restored from the outbox
+		 * @return number of entries after adding, 0 if already detached
+		 */
+		public synchronized int add(ActivityObject entry, long outboxId,
+			int size, Activity activity)
 		{
-			synchronized(entries)
+			if(fDetached)
 			{
-				keys = times.keySet();
-				
-				for(String key : keys)
+				return 0;
+			}
+			
+			if(activity != null && activity.getEventTime() > 0)
+			{
+				if(fEventTime == 0 || activity.getEventTime() < fEventTime)
 				{
-					fActSender.logMessage("### timeout: " + key);
-					
-					times.remove(key);
-					
-					// send aggregated activity
-					try
-					{
-						List<JSONObject> docs = entries.remove(key);
-						sendActivity(key, verb, docs);
-					}
-					catch(Exception e)
-					{
-						fActSender.logException(e);
-					}
+					fEventTime = activity.getEventTime();
 				}
+				fLastEventTime = Math.max(fLastEventTime,
+					activity.getLastEventTime());
 			}
+			
+			fEntries.add(entry);
+			if(outboxId >= 0)
+			{
+				fOutboxIds.add(outboxId);
+			}
+			fBytes += size;
+			
+			return fEntries.size();
+		}
+		
+		/**
+		 * @return false if the bucket has already been detached
+		 */
+		public synchronized boolean detach()
+		{
+			final boolean attached = !fDetached;
+			fDetached = true;
+			
+			return attached;
+		}
+		
+		public synchronized boolean isDetached()
+		{
+			return fDetached;
 		}
 	}
 }
@@ -0,0 +1,165 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.agg;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Net tag changes on one document by one user within an aggregation window.
+ * Adding a tag that was removed in the same window cancels the removal and
+ * vice versa; insertion order is kept for display. Access is guarded by the
+ * delta's own monitor, so tagging of different documents does not contend.
+ */
+public final class TagDelta
+{
+	private final long fCreated;
+	private final String fType;
+
+	private Set<String> fAdds, fRemovals;
+
+	//earliest and latest event time, 0 if unknown
+	private long fEventTime, fLastEventTime;
+
+	private boolean fDetached;
+
+	/**
+	 * @param type type and event that opened the window, for statistics
+	 */
+	public TagDelta(String type)
+	{
+		fCreated = System.currentTimeMillis();
+		fType = type;
+	}
+
+	/**
+	 * @param eventTime time of the tagging event in milliseconds
+	 * @return false if the delta has already been detached for sending
+	 */
+	public synchronized boolean add(String tag, long eventTime)
+	{
+		if(!addEventTime(eventTime))
+		{
+			return false;
+		}
+
+		//removed previously, added again
+		if(fRemovals == null || !fRemovals.remove(tag))
+		{
+			if(fAdds == null)
+			{
+				fAdds = new LinkedHashSet<String>(4);
+			}
+			fAdds.add(tag);
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param eventTime time of the untagging event in milliseconds
+	 * @return false if the delta has already been detached for sending
+	 */
+	public synchronized boolean remove(String tag, long eventTime)
+	{
+		if(!addEventTime(eventTime))
+		{
+			return false;
+		}
+
+		//added previously, removed again
+		if(fAdds == null || !fAdds.remove(tag))
+		{
+			if(fRemovals == null)
+			{
+				fRemovals = new LinkedHashSet<String>(4);
+			}
+			fRemovals.add(tag);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Records an event without a known tag.
+	 *
+	 * @param eventTime time of the event in milliseconds, ignored if 0
+	 * @return false if the delta has already been detached for sending
+	 */
+	public synchronized boolean addEventTime(long eventTime)
+	{
+		if(fDetached)
+		{
+			return false;
+		}
+
+		if(eventTime > 0)
+		{
+			if(fEventTime == 0 || eventTime < fEventTime)
+			{
+				fEventTime = eventTime;
+			}
+			fLastEventTime = Math.max(fLastEventTime, eventTime);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Stops the delta from accepting further changes. Its contents can be
+	 * read without locking afterwards.
+	 *
+	 * @return false if the delta had already been detached
+	 */
+	public synchronized boolean detach()
+	{
+		final boolean attached = !fDetached;
+		fDetached = true;
+
+		return attached;
+	}
+
+	public synchronized boolean isDetached()
+	{
+		return fDetached;
+	}
+
+	/**
+	 * @return number of tags currently added or removed
+	 */
+	public synchronized int size()
+	{
+		return (fAdds != null ? fAdds.size() : 0)
+			+ (fRemovals != null ? fRemovals.size() : 0);
+	}
+
+	public long getCreated()
+	{
+		return fCreated;
+	}
+
+	public String getType()
+	{
+		return fType;
+	}
+
+	public long getEventTime()
+	{
+		return fEventTime;
+	}
+
+	public long getLastEventTime()
+	{
+		return fLastEventTime;
+	}
+
+	public Collection<String> getAdds()
+	{
+		return fAdds != null ? fAdds : Collections.<String>emptySet();
+	}
+
+	public Collection<String> getRemovals()
+	{
+		return fRemovals != null ? fRemovals : Collections.<String>emptySet();
+	}
+}
@@ -0,0 +1,57 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.agg;
+
+/**
+ * Document and user a tag aggregate is collected for.
+ */
+public final class TagKey
+{
+	private final String fDocId, fUser;
+	private final int fHash;
+
+	public TagKey(String docId, String user)
+	{
+		fDocId = docId;
+		fUser = user;
+		fHash = 31 * docId.hashCode() + user.hashCode();
+	}
+
+	public String getDocId()
+	{
+		return fDocId;
+	}
+
+	public String getUser()
+	{
+		return fUser;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return fHash;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if(this == obj)
+		{
+			return true;
+		}
+		if(!(obj instanceof TagKey))
+		{
+			return false;
+		}
+
+		final TagKey other = (TagKey) obj;
+		return fHash == other.fHash
+			&& fDocId.equals(other.fDocId)
+			&& fUser.equals(other.fUser);
+	}
+
+	@Override
+	public String toString()
+	{
+		return fDocId + ":" + fUser;
+	}
+}
@@ -1,210 +1,365 @@
 package de.hofuniversity.iisys.nuxeo.activitystreams.agg;
 
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.json.JSONObject;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.IdRef;
-import org.nuxeo.ecm.core.event.Event;
 
+import de.hofuniversity.iisys.nuxeo.activitystreams.ActivityContext;
 import de.hofuniversity.iisys.nuxeo.activitystreams.ActivitySender;
+import de.hofuniversity.iisys.nuxeo.activitystreams.DocumentResolver;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.Activity;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.ActivityObject;
+import de.hofuniversity.iisys.nuxeo.activitystreams.route.Route;
 
 public class TaggingAggregator extends TimeoutAggregator
 {
-	private static final String AGGREG_SEP = ":";
-	
 	private final ActivitySender fActSender;
 	
-	private final Map<String, Long> fTagUpdates;
+	private final TimerWheel fTimer;
+	
+	private final ConcurrentMap<TagKey, TagDelta> fDeltas;
+	
+	//deltas in the order they were opened, flushed ones are skipped
+	private final Queue<Entry<TagKey, TagDelta>> fOpened;
+	
+	//detached deltas waiting to be sent
+	private final Queue<Entry<TagKey, TagDelta>> fDue;
+	private final Runnable fSendDue;
 	
-	private final Map<String, List<String>> fAggTagAdds, fAggTagRemovals;
+	private final AggregationWindows fWindows;
 	
-	private final long fTagAggregateTime;
+	private final AggregationLimits fLimits;
 	
-	public TaggingAggregator(ActivitySender actSender, long aggTime, long tagAggTime)
+	private final AtomicInteger fDeltaCount;
+	private final AtomicLong fEarlyFlushes;
+	
+	public TaggingAggregator(ActivitySender actSender, TimerWheel timer,
+		AggregationWindows windows, AggregationLimits limits)
 	{
-		super(actSender, aggTime);
+		super(actSender, timer, windows);
 		
 		fActSender = actSender;
+		fTimer = timer;
 		
-		fTagUpdates = new HashMap<String, Long>();
+		fDeltas = new ConcurrentHashMap<TagKey, TagDelta>();
+		fOpened = new ConcurrentLinkedQueue<Entry<TagKey, TagDelta>>();
+		fDue = new ConcurrentLinkedQueue<Entry<TagKey, TagDelta>>();
 		
-		fAggTagAdds = new HashMap<String, List<String>>();
-		fAggTagRemovals = new HashMap<String, List<String>>();
+		fSendDue = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				sendDue();
+			}
+		};
 		
-		fTagAggregateTime = tagAggTime;
+		//send all deltas expiring in one tick together
+		fTimer.addTickListener(fSendDue);
+		
+		fWindows = windows;
+		fLimits = limits;
+		
+		fDeltaCount = new AtomicInteger();
+		fEarlyFlushes = new AtomicLong();
 	}
 
 	@Override
-	public void handleActivity(JSONObject activity, String user)
+	public void handleActivity(Activity activity, String user)
 	{
 		// not really reasonable to block at this stage
 		fActSender.send(activity, user);
 	}
 
 	@Override
-	public boolean handleAggregation(Event event, DocumentModel model, String user)
+	public boolean handleAggregation(ActivityContext context, String user)
 	{
 		boolean send = true;
 		
-		final String eventType = event.getName();
-		final String modelType = model.getType();
+		final String eventType = context.getName();
+		final String modelType = context.getDocType();
+		final DocumentModel model = context.getDocument();
 		
 		//admin tagging
 		if("Tagging".equals(modelType))
 		{
-			send = adminTagging(event, model, user);
+			send = adminTagging(context, user);
 		}
 		else if("documentTagUpdated".equals(eventType))
 		{
 			//user tagging
 			//per-user aggregation
-			String uuid = model.getVersionSeriesId() + AGGREG_SEP + user;
+			final TagKey key = new TagKey(model.getVersionSeriesId(), user);
+			final long eventTime = context.getEvent().getTime();
 			
-			handleTimeout(fTagUpdates, uuid);
+			boolean recorded = true;
+			do
+			{
+				recorded = getDelta(key, fWindows.getWindow(context),
+					fWindows.getKey(context)).addEventTime(eventTime);
+				
+				//detached by a concurrent flush, use a fresh delta
+			}
+			while(!recorded);
 		}
 		
 		return send;
 	}
 	
-	private boolean adminTagging(Event event, DocumentModel model, String user)
+	private boolean adminTagging(ActivityContext context, String user)
 	{
-		final String eventType = event.getName();
+		final Route.Handler handler = context.getRoute().getHandler();
+		final DocumentModel model = context.getDocument();
+		final long window = fWindows.getWindow(context);
+		final String type = fWindows.getKey(context);
+		final long eventTime = context.getEvent().getTime();
 		
 		//different target
-		String targetId = fActSender.getPrimaryDocument(event).getPart("relation")
+		String targetId = model.getPart("relation")
 				.get("relation:source").getValue().toString();
-		DocumentModel tarMod = event.getContext().getCoreSession().getDocument(
-					new IdRef(targetId));
-		String uuid = tarMod.getVersionSeriesId();
+		DocumentModel tarMod = context.getEvent().getContext()
+					.getCoreSession().getDocument(new IdRef(targetId));
 		
 		//aggregate per person - otherwise: send to which activitystream?
 		//per-user aggregation
-		uuid += AGGREG_SEP + user;
+		final TagKey key = new TagKey(tarMod.getVersionSeriesId(), user);
 		
 		//get unprocessed tag name
-		JSONObject tagObj = fActSender.getDocument(model);
-		String tag = tagObj.optString("displayName");
+		ActivityObject tagObj = fActSender.getDocument(model);
+		String tag = tagObj.getDisplayName() != null
+			? tagObj.getDisplayName() : "";
 		
 		//always block, only send aggregated tags
-		//only note time for lazy sending
-		handleTimeout(fTagUpdates, uuid);
-		
-		//get aggregated tag actions by user
-		List<String> tagAdds = fAggTagAdds.get(uuid);
-		if(tagAdds == null)
+		boolean recorded = true;
+		TagDelta delta = null;
+		do
 		{
-			synchronized(fAggTagAdds)
+			delta = getDelta(key, window, type);
+			
+			//tagging
+			if(handler == Route.Handler.TAG_ADD)
+			{
+				recorded = delta.add(tag, eventTime);
+			}
+			//untagging
+			else if(handler == Route.Handler.TAG_REMOVE)
 			{
-				tagAdds = new ArrayList<String>();
-				fAggTagAdds.put(uuid, tagAdds);
+				recorded = delta.remove(tag, eventTime);
 			}
+			
+			//detached by a concurrent flush, use a fresh delta
 		}
+		while(!recorded);
 		
-		List<String> tagRems = fAggTagRemovals.get(uuid);
-		if(tagRems == null)
+		//bulk tagging of one document is sent without waiting
+		if(delta.size() >= fLimits.getMaxEntries())
 		{
-			synchronized(fAggTagRemovals)
-			{
-				tagRems = new ArrayList<String>();
-				fAggTagRemovals.put(uuid, tagRems);
-			}
+			fEarlyFlushes.incrementAndGet();
+			flush(key, delta);
+			
+			//don't hold up the event thread with resolving and sending
+			fTimer.execute(fSendDue);
 		}
-
-		synchronized(fAggTagAdds) { synchronized(fAggTagRemovals)
+		
+		return true;
+	}
+	
+	/**
+	 * Returns the delta for a document and user, opening a new aggregation
+	 * window if there is none.
+	 */
+	private TagDelta getDelta(final TagKey key, long window, String type)
+	{
+		TagDelta delta = fDeltas.get(key);
+		
+		if(delta == null)
 		{
-			//tagging
-			if("documentCreated".equals(eventType))
+			final TagDelta created = new TagDelta(type);
+			delta = fDeltas.putIfAbsent(key, created);
+			
+			if(delta == null)
 			{
-					if(tagRems.contains(tag))
-					{
-						//removed previously, added again
-						tagRems.remove(tag);
-					}
-					else if(!tagAdds.contains(tag))
+				delta = created;
+				
+				fDeltaCount.incrementAndGet();
+				fOpened.offer(new SimpleImmutableEntry<TagKey, TagDelta>(key,
+					created));
+				enforceLimit();
+				
+				// send the aggregate once the tagging window closes
+				fTimer.schedule(new Runnable()
+				{
+					@Override
+					public void run()
 					{
-						//not yet added or removed
-						tagAdds.add(tag);
+						flush(key, created);
 					}
+				}, window);
 			}
-			//untagging
-			else if("aboutToRemove".equals(eventType))
+		}
+		
+		return delta;
+	}
+	
+	/**
+	 * Flushes the oldest deltas early while over the window cap, dropping
+	 * deltas already flushed from the head of the queue.
+	 */
+	private void enforceLimit()
+	{
+		boolean flushed = false;
+		
+		while(true)
+		{
+			final Entry<TagKey, TagDelta> oldest = fOpened.peek();
+			if(oldest == null)
 			{
-				if(tagAdds.contains(tag))
-				{
-					//added previously, removed again
-					tagAdds.remove(tag);
-				}
-				else if(!tagRems.contains(tag))
+				break;
+			}
+			
+			if(oldest.getValue().isDetached())
+			{
+				fOpened.remove(oldest);
+			}
+			else if(fDeltaCount.get() > fLimits.getMaxBuckets())
+			{
+				// only one thread evicts a delta
+				if(fOpened.remove(oldest))
 				{
-					//not yet added or removed
-					tagRems.add(tag);
+					fEarlyFlushes.incrementAndGet();
+					flush(oldest.getKey(), oldest.getValue());
+					flushed = true;
 				}
 			}
-		}}
+			else
+			{
+				break;
+			}
+		}
 		
-		return true;
+		if(flushed)
+		{
+			fTimer.execute(fSendDue);
+		}
 	}
-
-	@Override
-	public void cleanup()
+	
+	private void flush(TagKey key, TagDelta delta)
 	{
-		super.cleanup();
+		fDeltas.remove(key, delta);
+		
+		if(!delta.detach())
+		{
+			return;
+		}
 		
-		Long time = null;
-		Set<String> keys = null;
+		fDeltaCount.decrementAndGet();
+		fWindows.flushed(delta.getType());
+		fDue.offer(new SimpleImmutableEntry<TagKey, TagDelta>(key, delta));
+	}
+	
+	/**
+	 * Sends all detached deltas, resolving their documents with one session
+	 * and query.
+	 */
+	private void sendDue()
+	{
+		final List<Entry<TagKey, TagDelta>> due =
+			new ArrayList<Entry<TagKey, TagDelta>>();
 		
-		long delTime = System.currentTimeMillis() - fTagAggregateTime;
-		synchronized(fTagUpdates)
+		Entry<TagKey, TagDelta> entry = fDue.poll();
+		while(entry != null)
 		{
-			keys = new HashSet<String>(fTagUpdates.keySet());
+			due.add(entry);
+			entry = fDue.poll();
+		}
+		
+		if(due.isEmpty())
+		{
+			return;
+		}
+		
+		final DocumentResolver resolver = fActSender.getDocumentResolver();
+		resolver.beginCycle();
+		try
+		{
+			final List<String> docIds = new ArrayList<String>(due.size());
+			for(Entry<TagKey, TagDelta> e : due)
+			{
+				docIds.add(e.getKey().getDocId());
+			}
 			
-			for(String key : keys)
+			try
 			{
-				time = fTagUpdates.get(key);
-				String[] tuple = key.split(AGGREG_SEP);
-				
-				if(time < delTime)
-				{
-					fTagUpdates.remove(key);
-					
-					boolean nolist = true;
-					
-					//send aggregates
-					synchronized(fAggTagRemovals)
-					{
-						List<String> tags = fAggTagRemovals.remove(key);
-						if(tags != null && !tags.isEmpty())
-						{
-							fActSender.sendTagAggAct(tuple[0], tuple[1], tags, false);
-							nolist = false;
-						}
-					}
-					
-					synchronized(fAggTagAdds)
-					{
-						List<String> tags = fAggTagAdds.remove(key);
-						if(tags != null && !tags.isEmpty())
-						{
-							fActSender.sendTagAggAct(tuple[0], tuple[1], tags, true);
-							nolist = false;
-						}
-					}
-					
-					//send generic activity if no list is found
-					if(nolist)
-					{
-						fActSender.sendTagAggAct(tuple[0], tuple[1], null, true);
-					}
-				}
+				resolver.prefetch(docIds);
+			}
+			catch(Exception e)
+			{
+				//documents are looked up one by one instead
+				fActSender.logException(e);
+			}
+			
+			for(Entry<TagKey, TagDelta> e : due)
+			{
+				send(e.getKey(), e.getValue());
 			}
 		}
+		finally
+		{
+			resolver.endCycle();
+		}
+	}
+	
+	private void send(TagKey key, TagDelta delta)
+	{
+		final Collection<String> removals = delta.getRemovals();
+		final Collection<String> adds = delta.getAdds();
+		
+		//send aggregates
+		if(!removals.isEmpty())
+		{
+			fActSender.sendTagAggAct(key.getDocId(), key.getUser(), removals,
+				false, delta);
+		}
+		
+		if(!adds.isEmpty())
+		{
+			fActSender.sendTagAggAct(key.getDocId(), key.getUser(), adds,
+				true, delta);
+		}
+		
+		//send generic activity if no list is found
+		if(removals.isEmpty() && adds.isEmpty())
+		{
+			fActSender.sendTagAggAct(key.getDocId(), key.getUser(), null, true,
+				delta);
+		}
+	}
+
+	/**
+	 * @return number of open tag aggregation windows
+	 */
+	public int getDeltaCount()
+	{
+		return fDeltaCount.get();
+	}
+	
+	/**
+	 * @return number of deltas sent before their window closed
+	 */
+	public long getEarlyFlushCount()
+	{
+		return fEarlyFlushes.get();
 	}
 
 	@Override
@@ -212,26 +367,12 @@ public class TaggingAggregator extends TimeoutAggregator
 	{
 		super.shutdown();
 		
-		String[] tuple = null;
-		
 		//send remaining tagging activities
-		synchronized(fAggTagAdds)
+		for(Entry<TagKey, TagDelta> entry : fDeltas.entrySet())
 		{
-			for(Entry<String, List<String>> addTagE : fAggTagAdds.entrySet())
-			{
-				tuple = addTagE.getKey().split(AGGREG_SEP);
-				fActSender.sendTagAggAct(tuple[0], tuple[1], addTagE.getValue(), true);
-			}
-		}
-
-		synchronized(fAggTagRemovals)
-		{
-			for(Entry<String, List<String>> remTagE : fAggTagRemovals.entrySet())
-			{
-				tuple = remTagE.getKey().split(AGGREG_SEP);
-				fActSender.sendTagAggAct(tuple[0], tuple[1], remTagE.getValue(), false);
-			}
+			flush(entry.getKey(), entry.getValue());
 		}
+		sendDue();
 	}
 
 }
@@ -1,64 +1,59 @@
 package de.hofuniversity.iisys.nuxeo.activitystreams.agg;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
-
-import org.json.JSONObject;
-import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.event.Event;
 
+import de.hofuniversity.iisys.nuxeo.activitystreams.ActivityContext;
 import de.hofuniversity.iisys.nuxeo.activitystreams.ActivitySender;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.Activity;
+import de.hofuniversity.iisys.nuxeo.activitystreams.route.Route;
 
 public class TimeoutAggregator implements IAggregator
 {
 	private final ActivitySender fActSender;
 	
-	private final Set<Map<String, Long>> fTimeStamps;
+	private final TimerWheel fTimer;
+	
 	private final Map<String, Long> fLastUpdates, fPubUpdates;
 	
-	private final long fAggregateTime;
+	private final AggregationWindows fWindows;
 	
-	public TimeoutAggregator(ActivitySender actSender, long aggTime)
+	public TimeoutAggregator(ActivitySender actSender, TimerWheel timer,
+		AggregationWindows windows)
 	{
-		fTimeStamps = new HashSet<Map<String,Long>>();
-
 		fLastUpdates = new HashMap<String, Long>();
 		fPubUpdates = new HashMap<String, Long>();
 		
 		fActSender = actSender;
-		fAggregateTime = aggTime;
+		fTimer = timer;
+		fWindows = windows;
 	}
 
 	@Override
-	public void handleActivity(JSONObject activity, String user)
+	public void handleActivity(Activity activity, String user)
 	{
 		// not really possible to block at this stage
 		fActSender.send(activity, user);
 	}
 
 	@Override
-	public boolean handleAggregation(Event event, DocumentModel model, String user)
+	public boolean handleAggregation(ActivityContext context, String user)
 	{
 		boolean send = true;
-		final String uuid = model.getVersionSeriesId();
+		final String uuid = context.getDocument().getVersionSeriesId();
+		final long window = fWindows.getWindow(context);
+		final String key = fWindows.getKey(context);
 		
-		final String eventType = event.getName();
-		final String modelType = model.getType();
-		
-		if(!"documentWaitingPublication".equals(eventType)
-			&& !"Tagging".equals(modelType)
-			&& !"documentTagUpdated".equals(eventType))
+		if(context.getRoute().getAggregation() == Route.Aggregation.UPDATE)
 		{
 			//normal update events
-			send = handleTimeout(fLastUpdates, uuid);
+			send = handleTimeout(fLastUpdates, uuid, window, key, null);
 		}
-		else if(!"Tagging".equals(modelType)
-			&& !"documentTagUpdated".equals(eventType))
+		else if(context.getRoute().getAggregation()
+			== Route.Aggregation.PUBLICATION)
 		{
 			//publication workflow events
-			send = handleTimeout(fPubUpdates, uuid);
+			send = handleTimeout(fPubUpdates, uuid, window, key, null);
 
 			//TODO: lazy aggregation with other publication workflow events
 		}
@@ -66,73 +61,79 @@ public class TimeoutAggregator implements IAggregator
 		return send;
 	}
 
-	@Override
-	public void cleanup()
-	{
-		Long time = null;
-		Set<String> keys = null;
-		
-		long delTime = System.currentTimeMillis() - fAggregateTime;
-		
-		synchronized(fTimeStamps)
-		{
-			for(Map<String, Long> timeStamps : fTimeStamps)
-			{
-				synchronized(timeStamps)
-				{
-					keys = new HashSet<String>(timeStamps.keySet());
-					
-					for(String key : keys)
-					{
-						time = timeStamps.get(key);
-						
-						if(time < delTime)
-						{
-							timeStamps.remove(key);
-						}
-					}
-				}
-			}
-		}
-	}
-
 	@Override
 	public void shutdown()
 	{
 		// nothing to do
 	}
 	
-	public boolean handleTimeout(Map<String, Long> timeStamps, String uuid)
+	/**
+	 * @return window lengths and flush counts
+	 */
+	public AggregationWindows getWindows()
 	{
-		boolean send = true;
-		
-		synchronized(fTimeStamps)
-		{
-			fTimeStamps.add(timeStamps);
-		}
+		return fWindows;
+	}
+	
+	/**
+	 * Opens an aggregation window for the given key unless one is still open.
+	 * The window's end is dropped by the timer once it has passed, followed
+	 * by the optional expiry task. Windows of different lengths can share
+	 * one map since each entry holds its own end.
+	 * 
+	 * @param deadlines window end times by key
+	 * @param uuid key to aggregate under
+	 * @param window length of the window in milliseconds
+	 * @param type key to count the window's flush under
+	 * @param onExpiry task to run when the window closes, may be null
+	 * @return true if a new window was opened
+	 */
+	public boolean handleTimeout(final Map<String, Long> deadlines,
+		final String uuid, long window, final String type,
+		final Runnable onExpiry)
+	{
+		final long deadline = System.currentTimeMillis() + window;
 		
-		synchronized(timeStamps)
+		synchronized(deadlines)
 		{
-			final Long time = timeStamps.get(uuid);
-			final long currTime = System.currentTimeMillis();
+			final Long end = deadlines.get(uuid);
 			
-			//no time stamp logged so far
-			if(time == null)
-			{
-				timeStamps.put(uuid, currTime);
-			}
 			//still within aggregation window
-			else if(currTime < time + fAggregateTime)
+			if(end != null && deadline - window < end)
 			{
-				send = false;
+				return false;
 			}
-			//time stamp too old
-			else
+			
+			//no window so far or window already passed
+			deadlines.put(uuid, deadline);
+		}
+		
+		fTimer.schedule(new Runnable()
+		{
+			@Override
+			public void run()
 			{
-				timeStamps.put(uuid, currTime);
+				synchronized(deadlines)
+				{
+					//replaced by a newer window in the meantime
+					final Long end = deadlines.get(uuid);
+					if(end == null || end != deadline)
+					{
+						return;
+					}
+					
+					deadlines.remove(uuid);
+				}
+				
+				fWindows.flushed(type);
+				
+				if(onExpiry != null)
+				{
+					onExpiry.run();
+				}
 			}
-		}
+		}, window);
 		
-		return send;
+		return true;
 	}
 }
@@ -0,0 +1,358 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.agg;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashed timer wheel with a single named tick thread. Tasks are hashed into
+ * slots by deadline, so each tick only looks at the slot that is due; with a
+ * wheel covering the longest delay every entry in that slot is actually
+ * expired. Expired tasks run on a small pool of flush threads, so a slow
+ * flush does not hold up the ticks for other windows.
+ */
+public class TimerWheel implements Runnable
+{
+	//time to let running flushes finish when stopped
+	private static final long STOP_WAIT = 5000;
+
+	private final String fName;
+	private final long fTickDuration;
+	private final int fMask;
+	private final int fThreads;
+
+	private final List<Timeout>[] fSlots;
+	private final Queue<Timeout> fPending;
+
+	private final List<Runnable> fTickListeners;
+
+	private final AtomicLong fExpired;
+
+	private volatile long fStartTime;
+	private volatile boolean fActive;
+	private volatile ExecutorService fExecutor;
+	private Thread fThread;
+	private long fTick;
+
+	/**
+	 * @param name name of the tick thread, prefix of the flush threads
+	 * @param tickDuration resolution in milliseconds
+	 * @param maxDelay longest delay expected, used to size the wheel
+	 * @param threads number of threads running expired tasks
+	 */
+	@SuppressWarnings("unchecked")
+	public TimerWheel(String name, long tickDuration, long maxDelay,
+		int threads)
+	{
+		fName = name;
+		fTickDuration = Math.max(1, tickDuration);
+		fThreads = Math.max(1, threads);
+
+		//power of two covering the longest delay
+		int size = 1;
+		while(size < maxDelay / fTickDuration + 1 && size < (1 << 20))
+		{
+			size <<= 1;
+		}
+		fMask = size - 1;
+
+		fSlots = new List[size];
+		for(int i = 0; i < size; ++i)
+		{
+			fSlots[i] = new ArrayList<Timeout>();
+		}
+		fPending = new ConcurrentLinkedQueue<Timeout>();
+		fTickListeners = new CopyOnWriteArrayList<Runnable>();
+
+		fExpired = new AtomicLong();
+	}
+
+	public synchronized void start()
+	{
+		if(fThread != null)
+		{
+			return;
+		}
+
+		fStartTime = System.currentTimeMillis();
+		fActive = true;
+
+		fExecutor = Executors.newFixedThreadPool(fThreads, new ThreadFactory()
+		{
+			private final AtomicInteger fNumber = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable task)
+			{
+				final Thread thread = new Thread(task, fName + "-flush-"
+					+ fNumber.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		fThread = new Thread(this, fName);
+		fThread.setDaemon(true);
+		fThread.start();
+	}
+
+	/**
+	 * Stops the tick thread and waits a while for running flushes.
+	 */
+	public synchronized void stop()
+	{
+		fActive = false;
+
+		if(fThread != null)
+		{
+			fThread.interrupt();
+			fThread = null;
+		}
+
+		if(fExecutor != null)
+		{
+			fExecutor.shutdown();
+			try
+			{
+				fExecutor.awaitTermination(STOP_WAIT, TimeUnit.MILLISECONDS);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Runs a task on a flush thread, or on the calling thread if the wheel
+	 * is not running.
+	 *
+	 * @param task task to run
+	 */
+	public void execute(Runnable task)
+	{
+		final ExecutorService executor = fExecutor;
+		if(executor != null)
+		{
+			try
+			{
+				executor.execute(task);
+				return;
+			}
+			catch(RejectedExecutionException e)
+			{
+				//stopped in the meantime
+			}
+		}
+
+		task.run();
+	}
+
+	/**
+	 * Schedules a task to run once after the given delay.
+	 *
+	 * @param task task to run on a flush thread
+	 * @param delay delay in milliseconds
+	 * @return handle to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay)
+	{
+		final Timeout timeout = new Timeout(task,
+			System.currentTimeMillis() + delay);
+		fPending.offer(timeout);
+
+		return timeout;
+	}
+
+	/**
+	 * Adds a task that runs after the expired tasks of each tick that
+	 * expired at least one timeout, e.g. to process work the expiry tasks
+	 * collected in one go.
+	 */
+	public void addTickListener(Runnable listener)
+	{
+		fTickListeners.add(listener);
+	}
+
+	@Override
+	public void run()
+	{
+		while(fActive)
+		{
+			final long deadline = fStartTime + (fTick + 1) * fTickDuration;
+			final long sleep = deadline - System.currentTimeMillis();
+
+			if(sleep > 0)
+			{
+				try
+				{
+					Thread.sleep(sleep);
+				}
+				catch(InterruptedException e)
+				{
+					//stopped
+					continue;
+				}
+			}
+
+			transferPending();
+			dispatch(expire(fSlots[(int) (fTick & fMask)]));
+
+			++fTick;
+		}
+	}
+
+	private void transferPending()
+	{
+		Timeout timeout = fPending.poll();
+		while(timeout != null)
+		{
+			if(!timeout.fCancelled)
+			{
+				//never schedule into a slot that has already been passed
+				final long ticks = Math.max(fTick,
+					(timeout.fDeadline - fStartTime) / fTickDuration);
+
+				timeout.fRounds = (ticks - fTick) / (fMask + 1);
+				fSlots[(int) (ticks & fMask)].add(timeout);
+			}
+
+			timeout = fPending.poll();
+		}
+	}
+
+	private List<Timeout> expire(List<Timeout> slot)
+	{
+		List<Timeout> expired = null;
+
+		final Iterator<Timeout> iter = slot.iterator();
+		while(iter.hasNext())
+		{
+			final Timeout timeout = iter.next();
+
+			if(timeout.fCancelled)
+			{
+				iter.remove();
+			}
+			else if(timeout.fRounds <= 0)
+			{
+				iter.remove();
+				fExpired.incrementAndGet();
+
+				if(expired == null)
+				{
+					expired = new ArrayList<Timeout>();
+				}
+				expired.add(timeout);
+			}
+			else
+			{
+				--timeout.fRounds;
+			}
+		}
+
+		return expired;
+	}
+
+	private void dispatch(List<Timeout> expired)
+	{
+		if(expired == null)
+		{
+			return;
+		}
+
+		//the last task of the tick to finish runs the tick listeners
+		final AtomicInteger remaining = new AtomicInteger(expired.size());
+		for(final Timeout timeout : expired)
+		{
+			execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						timeout.fTask.run();
+					}
+					catch(Exception e)
+					{
+						e.printStackTrace();
+					}
+
+					if(remaining.decrementAndGet() == 0)
+					{
+						fireTick();
+					}
+				}
+			});
+		}
+	}
+
+	private void fireTick()
+	{
+		for(Runnable listener : fTickListeners)
+		{
+			try
+			{
+				listener.run();
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public long getTickDuration()
+	{
+		return fTickDuration;
+	}
+
+	public int getSize()
+	{
+		return fMask + 1;
+	}
+
+	public long getExpiredCount()
+	{
+		return fExpired.get();
+	}
+
+	/**
+	 * Handle of a scheduled task.
+	 */
+	public static class Timeout
+	{
+		private final Runnable fTask;
+		private final long fDeadline;
+
+		private long fRounds;
+		private volatile boolean fCancelled;
+
+		private Timeout(Runnable task, long deadline)
+		{
+			fTask = task;
+			fDeadline = deadline;
+		}
+
+		public void cancel()
+		{
+			fCancelled = true;
+		}
+
+		public long getDeadline()
+		{
+			return fDeadline;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.capture;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Selects captured events by name, document, principal and time. Activities
+ * are selected together with the event they were generated from, which
+ * precedes them in the capture, though events handled concurrently may be
+ * captured in between.
+ */
+public class CaptureFilter
+{
+	private final Set<String> fNames, fDocTypes;
+	private String fDocId, fPrincipal;
+	private long fFrom, fTo;
+
+	//numbers of the events selected most recently, oldest first
+	private static final int MAX_MATCHES = 4096;
+
+	private boolean fEventsOnly;
+
+	private final Set<Integer> fMatches;
+
+	public CaptureFilter()
+	{
+		fNames = new HashSet<String>();
+		fDocTypes = new HashSet<String>();
+		fFrom = Long.MIN_VALUE;
+		fTo = Long.MAX_VALUE;
+		fMatches = new LinkedHashSet<Integer>();
+	}
+
+	public void addName(String name)
+	{
+		fNames.add(name);
+	}
+
+	public void addDocType(String docType)
+	{
+		fDocTypes.add(docType);
+	}
+
+	public void setDocId(String docId)
+	{
+		fDocId = docId;
+	}
+
+	public void setPrincipal(String principal)
+	{
+		fPrincipal = principal;
+	}
+
+	/**
+	 * @param from first capture time in milliseconds, inclusive
+	 * @param to last capture time in milliseconds, exclusive
+	 */
+	public void setTimeRange(long from, long to)
+	{
+		fFrom = from;
+		fTo = to;
+	}
+
+	public void setEventsOnly(boolean eventsOnly)
+	{
+		fEventsOnly = eventsOnly;
+	}
+
+	/**
+	 * Checks a record, to be called for all records in capture order.
+	 *
+	 * @param record record to check
+	 * @return whether the record is selected
+	 */
+	public boolean accept(CaptureRecord record)
+	{
+		if(record.getType() != CaptureRecord.TYPE_EVENT)
+		{
+			return !fEventsOnly && fMatches.contains(record.getNumber());
+		}
+
+		final boolean match = matches(record);
+		if(match)
+		{
+			fMatches.add(record.getNumber());
+			if(fMatches.size() > MAX_MATCHES)
+			{
+				fMatches.remove(fMatches.iterator().next());
+			}
+		}
+		return match;
+	}
+
+	private boolean matches(CaptureRecord event)
+	{
+		return (fNames.isEmpty() || fNames.contains(event.getName()))
+			&& (fDocTypes.isEmpty() || fDocTypes.contains(event.getDocType()))
+			&& (fDocId == null || fDocId.equals(event.getDocId()))
+			&& (fPrincipal == null || fPrincipal.equals(event.getPrincipal()))
+			&& event.getCaptureTime() >= fFrom && event.getCaptureTime() < fTo;
+	}
+}
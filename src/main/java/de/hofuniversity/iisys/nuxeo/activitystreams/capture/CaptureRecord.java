@@ -0,0 +1,318 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.capture;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A captured event or activity in the binary capture format. Each record is
+ * stored as a big-endian int length followed by that many bytes:
+ * <pre>
+ * byte   version
+ * byte   type (event or activity)
+ * int    event number, links activities to the event they came from
+ * long   capture time
+ * event:    long event time, int flags, string name, string document id,
+ *           string document type, string principal
+ * activity: string user, bytes JSON
+ * </pre>
+ * Strings are an unsigned short length and UTF-8, 0xffff marks null; byte
+ * arrays are an int length, -1 for null.
+ */
+public class CaptureRecord
+{
+	public static final byte VERSION = 1;
+
+	public static final byte TYPE_EVENT = 1;
+	public static final byte TYPE_ACTIVITY = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int NULL_STRING = 0xffff;
+
+	//guards against reading garbage as a huge length
+	private static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+	private final byte fType;
+	private final int fNumber;
+	private final long fCaptureTime;
+
+	private long fEventTime;
+	private int fFlags;
+	private String fName, fDocId, fDocType, fPrincipal;
+
+	private String fUser;
+	private byte[] fActivity;
+
+	private CaptureRecord(byte type, int number, long captureTime)
+	{
+		fType = type;
+		fNumber = number;
+		fCaptureTime = captureTime;
+	}
+
+	public static CaptureRecord event(int number, long captureTime,
+		long eventTime, int flags, String name, String docId, String docType,
+		String principal)
+	{
+		final CaptureRecord record = new CaptureRecord(TYPE_EVENT, number,
+			captureTime);
+		record.fEventTime = eventTime;
+		record.fFlags = flags;
+		record.fName = name;
+		record.fDocId = docId;
+		record.fDocType = docType;
+		record.fPrincipal = principal;
+		return record;
+	}
+
+	public static CaptureRecord activity(int number, long captureTime,
+		String user, byte[] json)
+	{
+		final CaptureRecord record = new CaptureRecord(TYPE_ACTIVITY, number,
+			captureTime);
+		record.fUser = user;
+		record.fActivity = json;
+		return record;
+	}
+
+	/**
+	 * @return the length-prefixed record as written to capture files
+	 */
+	public byte[] toByteArray()
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128
+			+ (fActivity != null ? fActivity.length : 0));
+
+		try
+		{
+			final DataOutputStream out = new DataOutputStream(bytes);
+
+			//length placeholder
+			out.writeInt(0);
+			out.writeByte(VERSION);
+			out.writeByte(fType);
+			out.writeInt(fNumber);
+			out.writeLong(fCaptureTime);
+
+			if(fType == TYPE_EVENT)
+			{
+				out.writeLong(fEventTime);
+				out.writeInt(fFlags);
+				writeString(out, fName);
+				writeString(out, fDocId);
+				writeString(out, fDocType);
+				writeString(out, fPrincipal);
+			}
+			else
+			{
+				writeString(out, fUser);
+				writeBytes(out, fActivity);
+			}
+			out.flush();
+		}
+		catch(IOException e)
+		{
+			//not possible with an in-memory stream
+			throw new IllegalStateException(e);
+		}
+
+		final byte[] record = bytes.toByteArray();
+		final int length = record.length - 4;
+		record[0] = (byte) (length >>> 24);
+		record[1] = (byte) (length >>> 16);
+		record[2] = (byte) (length >>> 8);
+		record[3] = (byte) length;
+		return record;
+	}
+
+	/**
+	 * Reads the next record, skipping records of unknown versions.
+	 *
+	 * @param in stream positioned at a record boundary
+	 * @return next record or null at the end of the stream
+	 * @throws IOException if the stream ends within a record or is corrupt
+	 */
+	public static CaptureRecord readFrom(DataInputStream in) throws IOException
+	{
+		while(true)
+		{
+			final int length;
+			try
+			{
+				length = in.readInt();
+			}
+			catch(EOFException e)
+			{
+				return null;
+			}
+
+			if(length < 14 || length > MAX_LENGTH)
+			{
+				throw new IOException("invalid record length " + length);
+			}
+
+			final byte[] body = new byte[length];
+			in.readFully(body);
+
+			if(body[0] == VERSION)
+			{
+				return parse(body);
+			}
+		}
+	}
+
+	private static CaptureRecord parse(byte[] body) throws IOException
+	{
+		final DataInputStream in = new DataInputStream(
+			new ByteArrayInputStream(body, 1, body.length - 1));
+
+		final byte type = in.readByte();
+		final CaptureRecord record = new CaptureRecord(type, in.readInt(),
+			in.readLong());
+
+		if(type == TYPE_EVENT)
+		{
+			record.fEventTime = in.readLong();
+			record.fFlags = in.readInt();
+			record.fName = readString(in);
+			record.fDocId = readString(in);
+			record.fDocType = readString(in);
+			record.fPrincipal = readString(in);
+		}
+		else if(type == TYPE_ACTIVITY)
+		{
+			record.fUser = readString(in);
+			record.fActivity = readBytes(in);
+		}
+		else
+		{
+			throw new IOException("unknown record type " + type);
+		}
+
+		return record;
+	}
+
+	private static void writeString(DataOutputStream out, String value)
+		throws IOException
+	{
+		if(value == null)
+		{
+			out.writeShort(NULL_STRING);
+			return;
+		}
+
+		byte[] bytes = value.getBytes(UTF8);
+		if(bytes.length >= NULL_STRING)
+		{
+			//only document or event names, cut rather than fail
+			bytes = Arrays.copyOf(bytes, NULL_STRING - 1);
+		}
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		final int length = in.readUnsignedShort();
+		if(length == NULL_STRING)
+		{
+			return null;
+		}
+
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] value)
+		throws IOException
+	{
+		if(value == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+
+		out.writeInt(value.length);
+		out.write(value);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException
+	{
+		final int length = in.readInt();
+		if(length < 0)
+		{
+			return null;
+		}
+
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	public byte getType()
+	{
+		return fType;
+	}
+
+	public int getNumber()
+	{
+		return fNumber;
+	}
+
+	public long getCaptureTime()
+	{
+		return fCaptureTime;
+	}
+
+	public long getEventTime()
+	{
+		return fEventTime;
+	}
+
+	public int getFlags()
+	{
+		return fFlags;
+	}
+
+	public String getName()
+	{
+		return fName;
+	}
+
+	public String getDocId()
+	{
+		return fDocId;
+	}
+
+	public String getDocType()
+	{
+		return fDocType;
+	}
+
+	public String getPrincipal()
+	{
+		return fPrincipal;
+	}
+
+	public String getUser()
+	{
+		return fUser;
+	}
+
+	public byte[] getActivity()
+	{
+		return fActivity;
+	}
+
+	public String getActivityJson()
+	{
+		return fActivity != null ? new String(fActivity, UTF8) : null;
+	}
+}
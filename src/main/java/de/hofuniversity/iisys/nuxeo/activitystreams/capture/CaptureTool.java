@@ -0,0 +1,225 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.capture;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Offline reader for capture files. Prints the selected records as text or
+ * writes them to a new capture file.
+ *
+ * <pre>
+ * java -cp nuxeo-activitystreams.jar
+ *   de.hofuniversity.iisys.nuxeo.activitystreams.capture.CaptureTool
+ *   [-event name]... [-type docType]... [-doc id] [-principal name]
+ *   [-from ms] [-to ms] [-events] [-count] [-out file] file...
+ * </pre>
+ */
+public class CaptureTool
+{
+	private final CaptureFilter fFilter;
+	private final PrintStream fPrint;
+
+	private OutputStream fOut;
+	private boolean fCountOnly;
+
+	private long fRead, fSelected;
+
+	public CaptureTool(CaptureFilter filter, PrintStream print)
+	{
+		fFilter = filter;
+		fPrint = print;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		final CaptureFilter filter = new CaptureFilter();
+		final CaptureTool tool = new CaptureTool(filter, System.out);
+		final List<String> files = new ArrayList<String>();
+
+		long from = Long.MIN_VALUE;
+		long to = Long.MAX_VALUE;
+		String out = null;
+
+		for(int i = 0; i < args.length; ++i)
+		{
+			final String arg = args[i];
+
+			if(!arg.startsWith("-"))
+			{
+				files.add(arg);
+			}
+			else if("-events".equals(arg))
+			{
+				filter.setEventsOnly(true);
+			}
+			else if("-count".equals(arg))
+			{
+				tool.fCountOnly = true;
+			}
+			else if(i + 1 >= args.length)
+			{
+				usage();
+				return;
+			}
+			else if("-event".equals(arg))
+			{
+				filter.addName(args[++i]);
+			}
+			else if("-type".equals(arg))
+			{
+				filter.addDocType(args[++i]);
+			}
+			else if("-doc".equals(arg))
+			{
+				filter.setDocId(args[++i]);
+			}
+			else if("-principal".equals(arg))
+			{
+				filter.setPrincipal(args[++i]);
+			}
+			else if("-from".equals(arg))
+			{
+				from = Long.parseLong(args[++i]);
+			}
+			else if("-to".equals(arg))
+			{
+				to = Long.parseLong(args[++i]);
+			}
+			else if("-out".equals(arg))
+			{
+				out = args[++i];
+			}
+			else
+			{
+				usage();
+				return;
+			}
+		}
+
+		if(files.isEmpty())
+		{
+			usage();
+			return;
+		}
+
+		filter.setTimeRange(from, to);
+
+		if(out != null)
+		{
+			tool.fOut = new BufferedOutputStream(new FileOutputStream(out));
+		}
+
+		try
+		{
+			for(String file : files)
+			{
+				tool.read(file);
+			}
+		}
+		finally
+		{
+			if(tool.fOut != null)
+			{
+				tool.fOut.close();
+			}
+		}
+
+		System.err.println(tool.fSelected + " of " + tool.fRead
+			+ " records selected");
+	}
+
+	private static void usage()
+	{
+		System.err.println("usage: CaptureTool [-event name]..."
+			+ " [-type docType]... [-doc id] [-principal name] [-from ms] [-to ms] [-events]"
+			+ " [-count] [-out file] file...");
+	}
+
+	/**
+	 * Reads a capture file, stopping at a truncated last record.
+	 */
+	public void read(String file) throws IOException
+	{
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(file), 65536));
+
+		try
+		{
+			CaptureRecord record;
+			while((record = CaptureRecord.readFrom(in)) != null)
+			{
+				++fRead;
+				if(fFilter.accept(record))
+				{
+					++fSelected;
+					output(record);
+				}
+			}
+		}
+		catch(EOFException e)
+		{
+			System.err.println(file + ": truncated record after " + fRead
+				+ " records");
+		}
+		catch(IOException e)
+		{
+			System.err.println(file + ": " + e.getMessage() + " after "
+				+ fRead + " records");
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private void output(CaptureRecord record) throws IOException
+	{
+		if(fOut != null)
+		{
+			fOut.write(record.toByteArray());
+		}
+		else if(!fCountOnly)
+		{
+			fPrint.println(format(record));
+		}
+	}
+
+	public static String format(CaptureRecord record)
+	{
+		final SimpleDateFormat date = new SimpleDateFormat(
+			"yyyy-MM-dd HH:mm:ss.SSS");
+
+		final StringBuilder line = new StringBuilder();
+		line.append(date.format(new Date(record.getCaptureTime())));
+		line.append(" #").append(record.getNumber());
+
+		if(record.getType() == CaptureRecord.TYPE_EVENT)
+		{
+			line.append(" event ").append(record.getName());
+			line.append(" doc=").append(record.getDocId());
+			line.append(" type=").append(record.getDocType());
+			line.append(" principal=").append(record.getPrincipal());
+			line.append(" flags=").append(record.getFlags());
+			line.append(" time=").append(
+				date.format(new Date(record.getEventTime())));
+		}
+		else
+		{
+			line.append(" activity user=").append(record.getUser());
+			line.append(' ').append(record.getActivityJson());
+		}
+
+		return line.toString();
+	}
+}
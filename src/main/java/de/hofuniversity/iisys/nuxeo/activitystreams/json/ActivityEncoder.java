@@ -0,0 +1,120 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.json;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.Activity;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.ActivityObject;
+
+/**
+ * Encodes activities to UTF-8 JSON using precompiled templates per verb and
+ * title. Each thread writes into its own reusable buffer.
+ */
+public class ActivityEncoder
+{
+	//titles can be free text, e.g. approval comments, so cap the cache
+	private static final int MAX_TEMPLATES = 512;
+
+	//buffers that grew beyond this are not kept for reuse
+	private static final int MAX_RETAINED = 64 * 1024;
+
+	private final byte[] fClosing;
+
+	private final ConcurrentMap<String, ActivityTemplate> fTemplates;
+
+	private final ThreadLocal<JsonBuffer> fBuffers;
+
+	/**
+	 * @param generator fixed generator of all activities
+	 */
+	public ActivityEncoder(ActivityObject generator)
+	{
+		final JsonBuffer closing = new JsonBuffer(128);
+		closing.write(JsonBuffer.encode(",\"generator\":"));
+		ActivityTemplate.writeObject(generator, closing);
+		closing.write('}');
+		fClosing = closing.toByteArray();
+
+		fTemplates = new ConcurrentHashMap<String, ActivityTemplate>();
+
+		fBuffers = new ThreadLocal<JsonBuffer>()
+		{
+			@Override
+			protected JsonBuffer initialValue()
+			{
+				return new JsonBuffer(1024);
+			}
+		};
+	}
+
+	/**
+	 * Compiles the template for a verb and title ahead of the first event
+	 * using it.
+	 */
+	public ActivityTemplate precompile(String verb, String title)
+	{
+		return getTemplate(verb, title);
+	}
+
+	public ActivityTemplate getTemplate(String verb, String title)
+	{
+		final String key = verb + '\n' + title;
+
+		ActivityTemplate template = fTemplates.get(key);
+		if(template == null)
+		{
+			template = new ActivityTemplate(verb, title, fClosing);
+
+			if(fTemplates.size() < MAX_TEMPLATES)
+			{
+				fTemplates.putIfAbsent(key, template);
+			}
+		}
+
+		return template;
+	}
+
+	/**
+	 * Writes an activity into the given buffer.
+	 */
+	public void encode(Activity activity, JsonBuffer out)
+	{
+		getTemplate(activity.getVerb(), activity.getTitle()).write(activity,
+			out);
+	}
+
+	/**
+	 * @return UTF-8 JSON of the activity
+	 */
+	public byte[] encode(Activity activity)
+	{
+		final JsonBuffer buffer = fBuffers.get();
+		buffer.reset();
+
+		encode(activity, buffer);
+		final byte[] json = buffer.toByteArray();
+
+		//don't hold on to buffers grown by unusually large activities
+		if(buffer.capacity() > MAX_RETAINED)
+		{
+			fBuffers.remove();
+		}
+
+		return json;
+	}
+
+	/**
+	 * @return JSON of the activity as a string, e.g. for logging
+	 */
+	public String toJson(Activity activity)
+	{
+		final JsonBuffer buffer = new JsonBuffer(512);
+		encode(activity, buffer);
+		return buffer.toString();
+	}
+
+	public int getTemplateCount()
+	{
+		return fTemplates.size();
+	}
+}
@@ -0,0 +1,120 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.json;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.Activity;
+import de.hofuniversity.iisys.nuxeo.activitystreams.model.ActivityObject;
+
+/**
+ * Precompiled encoding of activities sharing a verb and title. Everything
+ * that does not change between activities, the opening with verb and title
+ * as well as the closing with the generator, is encoded once; only actor,
+ * object and target are written per activity.
+ */
+public class ActivityTemplate
+{
+	private static final byte[] ACTOR = JsonBuffer.encode(",\"actor\":");
+	private static final byte[] OBJECT = JsonBuffer.encode(",\"object\":");
+	private static final byte[] TARGET = JsonBuffer.encode(",\"target\":");
+
+	private static final byte[] ID = JsonBuffer.encode("\"id\":");
+	private static final byte[] DISPLAY_NAME =
+		JsonBuffer.encode("\"displayName\":");
+	private static final byte[] OBJECT_TYPE =
+		JsonBuffer.encode("\"objectType\":");
+	private static final byte[] URL = JsonBuffer.encode("\"url\":");
+	private static final byte[] CONTENT = JsonBuffer.encode("\"content\":");
+
+	private final String fVerb, fTitle;
+
+	private final byte[] fOpening, fClosing;
+
+	/**
+	 * @param verb verb of the activities
+	 * @param title title of the activities, may be null
+	 * @param closing pre-encoded end of the activity, including the
+	 *        generator and the closing brace
+	 */
+	public ActivityTemplate(String verb, String title, byte[] closing)
+	{
+		fVerb = verb;
+		fTitle = title;
+
+		final JsonBuffer opening = new JsonBuffer(64);
+		opening.write(JsonBuffer.encode("{\"verb\":"));
+		opening.writeString(verb != null ? verb : "post");
+		if(title != null)
+		{
+			opening.write(JsonBuffer.encode(",\"title\":"));
+			opening.writeString(title);
+		}
+		fOpening = opening.toByteArray();
+
+		fClosing = closing;
+	}
+
+	public String getVerb()
+	{
+		return fVerb;
+	}
+
+	public String getTitle()
+	{
+		return fTitle;
+	}
+
+	public void write(Activity activity, JsonBuffer out)
+	{
+		out.write(fOpening);
+
+		if(activity.getActor() != null)
+		{
+			out.write(ACTOR);
+			writeObject(activity.getActor(), out);
+		}
+		if(activity.getObject() != null)
+		{
+			out.write(OBJECT);
+			writeObject(activity.getObject(), out);
+		}
+		if(activity.getTarget() != null)
+		{
+			out.write(TARGET);
+			writeObject(activity.getTarget(), out);
+		}
+
+		out.write(fClosing);
+	}
+
+	/**
+	 * Writes an activity object, leaving out empty fields.
+	 */
+	public static void writeObject(ActivityObject object, JsonBuffer out)
+	{
+		boolean first = true;
+
+		out.write('{');
+		first = writeField(ID, object.getId(), first, out);
+		first = writeField(DISPLAY_NAME, object.getDisplayName(), first, out);
+		first = writeField(OBJECT_TYPE, object.getObjectType(), first, out);
+		first = writeField(URL, object.getUrl(), first, out);
+		writeField(CONTENT, object.getContent(), first, out);
+		out.write('}');
+	}
+
+	private static boolean writeField(byte[] name, String value,
+		boolean first, JsonBuffer out)
+	{
+		if(value == null)
+		{
+			return first;
+		}
+
+		if(!first)
+		{
+			out.write(',');
+		}
+		out.write(name);
+		out.writeString(value);
+
+		return false;
+	}
+}
@@ -0,0 +1,199 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that JSON is written to as UTF-8. Strings are escaped
+ * and encoded in a single pass without intermediate strings; constant parts
+ * can be written as pre-encoded bytes.
+ */
+public class JsonBuffer
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes(UTF8);
+
+	private byte[] fBuffer;
+	private int fSize;
+
+	public JsonBuffer(int capacity)
+	{
+		fBuffer = new byte[Math.max(16, capacity)];
+	}
+
+	public void reset()
+	{
+		fSize = 0;
+	}
+
+	public int size()
+	{
+		return fSize;
+	}
+
+	public int capacity()
+	{
+		return fBuffer.length;
+	}
+
+	private void ensure(int additional)
+	{
+		if(fSize + additional > fBuffer.length)
+		{
+			fBuffer = Arrays.copyOf(fBuffer,
+				Math.max(fBuffer.length * 2, fSize + additional));
+		}
+	}
+
+	public void write(int b)
+	{
+		ensure(1);
+		fBuffer[fSize++] = (byte) b;
+	}
+
+	public void write(byte[] bytes)
+	{
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, fBuffer, fSize, bytes.length);
+		fSize += bytes.length;
+	}
+
+	/**
+	 * Writes a quoted and escaped JSON string.
+	 */
+	public void writeString(String value)
+	{
+		final int length = value.length();
+
+		//worst case without escapes, grown again for escapes
+		ensure(length * 3 + 2);
+		fBuffer[fSize++] = '"';
+
+		for(int i = 0; i < length; ++i)
+		{
+			final char c = value.charAt(i);
+
+			if(c < 0x80)
+			{
+				if(c == '"' || c == '\\')
+				{
+					ensure(2 + (length - i) * 3);
+					fBuffer[fSize++] = '\\';
+					fBuffer[fSize++] = (byte) c;
+				}
+				else if(c < 0x20)
+				{
+					ensure(6 + (length - i) * 3);
+					writeControl(c);
+				}
+				else
+				{
+					fBuffer[fSize++] = (byte) c;
+				}
+			}
+			else if(c < 0x800)
+			{
+				fBuffer[fSize++] = (byte) (0xc0 | (c >> 6));
+				fBuffer[fSize++] = (byte) (0x80 | (c & 0x3f));
+			}
+			else if(Character.isHighSurrogate(c) && i + 1 < length
+				&& Character.isLowSurrogate(value.charAt(i + 1)))
+			{
+				//four bytes for two chars, fits the estimate
+				final int cp = Character.toCodePoint(c, value.charAt(++i));
+				fBuffer[fSize++] = (byte) (0xf0 | (cp >> 18));
+				fBuffer[fSize++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				fBuffer[fSize++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				fBuffer[fSize++] = (byte) (0x80 | (cp & 0x3f));
+			}
+			else if(Character.isSurrogate(c))
+			{
+				//unpaired surrogate, not encodable
+				fBuffer[fSize++] = '?';
+			}
+			else
+			{
+				fBuffer[fSize++] = (byte) (0xe0 | (c >> 12));
+				fBuffer[fSize++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				fBuffer[fSize++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+
+		ensure(1);
+		fBuffer[fSize++] = '"';
+	}
+
+	private void writeControl(char c)
+	{
+		fBuffer[fSize++] = '\\';
+		switch(c)
+		{
+			case '\n':
+				fBuffer[fSize++] = 'n';
+				break;
+
+			case '\r':
+				fBuffer[fSize++] = 'r';
+				break;
+
+			case '\t':
+				fBuffer[fSize++] = 't';
+				break;
+
+			case '\b':
+				fBuffer[fSize++] = 'b';
+				break;
+
+			case '\f':
+				fBuffer[fSize++] = 'f';
+				break;
+
+			default:
+				fBuffer[fSize++] = 'u';
+				fBuffer[fSize++] = '0';
+				fBuffer[fSize++] = '0';
+				fBuffer[fSize++] = HEX[c >> 4];
+				fBuffer[fSize++] = HEX[c & 0xf];
+		}
+	}
+
+	/**
+	 * @return copy of the written bytes
+	 */
+	public byte[] toByteArray()
+	{
+		return Arrays.copyOf(fBuffer, fSize);
+	}
+
+	public void writeTo(OutputStream out) throws IOException
+	{
+		out.write(fBuffer, 0, fSize);
+	}
+
+	@Override
+	public String toString()
+	{
+		return new String(fBuffer, 0, fSize, UTF8);
+	}
+
+	/**
+	 * @return UTF-8 bytes of a constant JSON fragment
+	 */
+	public static byte[] encode(String fragment)
+	{
+		return fragment.getBytes(UTF8);
+	}
+
+	/**
+	 * @return UTF-8 bytes of a quoted and escaped constant string
+	 */
+	public static byte[] quote(String value)
+	{
+		final JsonBuffer buffer = new JsonBuffer(value.length() + 2);
+		buffer.writeString(value);
+		return buffer.toByteArray();
+	}
+}
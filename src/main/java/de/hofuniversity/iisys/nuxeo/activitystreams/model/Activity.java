@@ -0,0 +1,142 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.model;
+
+/**
+ * An activity as generated from an event, before it is encoded for Shindig.
+ * The generator is not part of the record since it is the same for all
+ * activities.
+ */
+public class Activity
+{
+	/**
+	 * How the activity came about.
+	 */
+	public enum Origin
+	{
+		/** generated for a single event */
+		EVENT,
+		/** documents collected over an aggregation window */
+		MERGED,
+		/** tag changes collected over an aggregation window */
+		TAG
+	}
+
+	private Origin fOrigin = Origin.EVENT;
+
+	//times of the earliest and latest event behind the activity, 0 if unknown
+	private long fEventTime, fLastEventTime;
+
+	private String fVerb;
+	private String fTitle;
+
+	private ActivityObject fActor;
+	private ActivityObject fObject;
+	private ActivityObject fTarget;
+
+	public Activity()
+	{
+		//empty activity
+	}
+
+	public Activity(String verb)
+	{
+		fVerb = verb;
+	}
+
+	public String getVerb()
+	{
+		return fVerb;
+	}
+
+	public void setVerb(String verb)
+	{
+		fVerb = verb;
+	}
+
+	public String getTitle()
+	{
+		return fTitle;
+	}
+
+	public void setTitle(String title)
+	{
+		fTitle = title;
+	}
+
+	public ActivityObject getActor()
+	{
+		return fActor;
+	}
+
+	public void setActor(ActivityObject actor)
+	{
+		fActor = actor;
+	}
+
+	public ActivityObject getObject()
+	{
+		return fObject;
+	}
+
+	public void setObject(ActivityObject object)
+	{
+		fObject = object;
+	}
+
+	public ActivityObject getTarget()
+	{
+		return fTarget;
+	}
+
+	public void setTarget(ActivityObject target)
+	{
+		fTarget = target;
+	}
+
+	public Origin getOrigin()
+	{
+		return fOrigin;
+	}
+
+	public void setOrigin(Origin origin)
+	{
+		fOrigin = origin;
+	}
+
+	/**
+	 * Adds the time of an event behind the activity.
+	 *
+	 * @param time event time in milliseconds, ignored if 0 or less
+	 */
+	public void addEventTime(long time)
+	{
+		if(time <= 0)
+		{
+			return;
+		}
+
+		if(fEventTime == 0 || time < fEventTime)
+		{
+			fEventTime = time;
+		}
+		if(time > fLastEventTime)
+		{
+			fLastEventTime = time;
+		}
+	}
+
+	/**
+	 * @return time of the earliest event in milliseconds, 0 if unknown
+	 */
+	public long getEventTime()
+	{
+		return fEventTime;
+	}
+
+	/**
+	 * @return time of the latest event in milliseconds, 0 if unknown
+	 */
+	public long getLastEventTime()
+	{
+		return fLastEventTime;
+	}
+}
@@ -0,0 +1,88 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.model;
+
+/**
+ * Actor, object, target or generator of an activity.
+ */
+public class ActivityObject
+{
+	private String fId;
+	private String fDisplayName;
+	private String fObjectType;
+	private String fUrl;
+	private String fContent;
+
+	public ActivityObject()
+	{
+		//empty object
+	}
+
+	public ActivityObject(String objectType, String displayName)
+	{
+		fObjectType = objectType;
+		fDisplayName = displayName;
+	}
+
+	/**
+	 * @return shallow copy that can be modified independently
+	 */
+	public ActivityObject copy()
+	{
+		final ActivityObject copy = new ActivityObject(fObjectType,
+			fDisplayName);
+		copy.fId = fId;
+		copy.fUrl = fUrl;
+		copy.fContent = fContent;
+
+		return copy;
+	}
+
+	public String getId()
+	{
+		return fId;
+	}
+
+	public void setId(String id)
+	{
+		fId = id;
+	}
+
+	public String getDisplayName()
+	{
+		return fDisplayName;
+	}
+
+	public void setDisplayName(String displayName)
+	{
+		fDisplayName = displayName;
+	}
+
+	public String getObjectType()
+	{
+		return fObjectType;
+	}
+
+	public void setObjectType(String objectType)
+	{
+		fObjectType = objectType;
+	}
+
+	public String getUrl()
+	{
+		return fUrl;
+	}
+
+	public void setUrl(String url)
+	{
+		fUrl = url;
+	}
+
+	public String getContent()
+	{
+		return fContent;
+	}
+
+	public void setContent(String content)
+	{
+		fContent = content;
+	}
+}
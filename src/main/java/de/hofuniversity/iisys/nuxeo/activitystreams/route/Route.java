@@ -0,0 +1,145 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.route;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decision for one combination of event name and document type, merged
+ * from all rules matching it. Rules for a specific event take precedence
+ * over rules for a specific type, which take precedence over rules for
+ * any event and type; among equally specific rules the later one wins.
+ * Dropping, required and rejected properties and trash detection add up
+ * instead.
+ */
+public class Route
+{
+	/**
+	 * Special treatment of the generated activity.
+	 */
+	public enum Handler
+	{
+		NONE, COMMENT, TAG_ADD, TAG_REMOVE, PROFILE, APPROVAL, COLLECTION
+	}
+
+	/**
+	 * Kind of aggregation the event takes part in.
+	 */
+	public enum Aggregation
+	{
+		NONE, UPDATE, PUBLICATION, TAG
+	}
+
+	private final boolean fDrop, fTrash;
+	private final Handler fHandler;
+	private final Aggregation fAggregation;
+	private final long fWindow;
+	private final String[] fRequired, fRejected;
+
+	private final RoutingRule[] fRules;
+
+	/**
+	 * @param rules matching rules, least specific first
+	 */
+	Route(List<RoutingRule> rules)
+	{
+		boolean drop = false;
+		boolean trash = false;
+		Handler handler = null;
+		Aggregation aggregation = Aggregation.NONE;
+		long window = -1;
+		final Set<String> required = new LinkedHashSet<String>();
+		final Set<String> rejected = new LinkedHashSet<String>();
+
+		for(RoutingRule rule : rules)
+		{
+			drop |= rule.isDrop();
+			trash |= rule.isTrash();
+
+			if(rule.getHandler() != null)
+			{
+				handler = rule.getHandler();
+			}
+			if(rule.getAggregation() != null)
+			{
+				aggregation = rule.getAggregation();
+			}
+			if(rule.getWindow() > 0)
+			{
+				window = rule.getWindow();
+			}
+
+			required.addAll(rule.getRequired());
+			rejected.addAll(rule.getRejected());
+		}
+
+		fDrop = drop;
+		fTrash = trash;
+		fHandler = handler;
+		fAggregation = aggregation;
+		fWindow = window;
+		fRequired = required.toArray(new String[required.size()]);
+		fRejected = rejected.toArray(new String[rejected.size()]);
+
+		fRules = rules.toArray(new RoutingRule[rules.size()]);
+	}
+
+	/**
+	 * Counts the event for all rules that make up this route.
+	 */
+	public void hit()
+	{
+		for(RoutingRule rule : fRules)
+		{
+			rule.hit();
+		}
+	}
+
+	public boolean isDrop()
+	{
+		return fDrop;
+	}
+
+	public boolean isTrash()
+	{
+		return fTrash;
+	}
+
+	/**
+	 * @return special treatment, null for none
+	 */
+	public Handler getHandler()
+	{
+		return fHandler;
+	}
+
+	public Aggregation getAggregation()
+	{
+		return fAggregation;
+	}
+
+	/**
+	 * @return aggregation window in milliseconds, -1 for the default
+	 */
+	public long getWindow()
+	{
+		return fWindow;
+	}
+
+	/**
+	 * @return context properties an event must have with a value
+	 */
+	public String[] getRequired()
+	{
+		return fRequired;
+	}
+
+	/**
+	 * @return context properties an event must not have, even without a
+	 *         value
+	 */
+	public String[] getRejected()
+	{
+		return fRejected;
+	}
+}
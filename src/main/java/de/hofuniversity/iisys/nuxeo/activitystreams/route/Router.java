@@ -0,0 +1,172 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.route;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides the current routing table. Rules are read from the file given by
+ * rules.file, or from the bundled default rules if none is configured, and
+ * come after the fixed rules derived from the plugin's properties.
+ * A configured file is checked for changes periodically; a changed file is
+ * compiled completely before it replaces the table, and a file with errors
+ * leaves the current table in place.
+ */
+public class Router
+{
+	private static final String RULES_FILE_PROP = "rules.file";
+	private static final String RELOAD_INTERVAL_PROP = "rules.reload.interval";
+
+	private static final String DEFAULT_RULES = "activitystreams_rules.txt";
+
+	private static final String CHARSET = "UTF-8";
+
+	private final List<RoutingRule> fFixedRules;
+
+	private final File fFile;
+	private final long fInterval;
+	private volatile long fNextCheck;
+	private long fModified;
+
+	private volatile RoutingTable fTable;
+
+	private final AtomicLong fReloads, fFailedReloads;
+
+	/**
+	 * @param properties configuration
+	 * @param fixedRules rules derived from the configuration
+	 * @throws IOException if the initial rules could not be read
+	 * @throws IllegalArgumentException if the initial rules are malformed
+	 */
+	public Router(Map<String, String> properties, List<RoutingRule> fixedRules)
+		throws IOException
+	{
+		fFixedRules = new ArrayList<RoutingRule>(fixedRules);
+
+		final String file = properties.get(RULES_FILE_PROP);
+		fFile = file != null && !file.isEmpty() ? new File(file) : null;
+
+		final String interval = properties.get(RELOAD_INTERVAL_PROP);
+		fInterval = interval != null && !interval.isEmpty()
+			? Long.parseLong(interval) : 10000;
+
+		fReloads = new AtomicLong();
+		fFailedReloads = new AtomicLong();
+
+		if(fFile != null)
+		{
+			fModified = fFile.lastModified();
+			fTable = compile(new FileInputStream(fFile), fFile.getName());
+		}
+		else
+		{
+			final InputStream in = Thread.currentThread()
+				.getContextClassLoader().getResourceAsStream(DEFAULT_RULES);
+			fTable = in != null ? compile(in, DEFAULT_RULES)
+				: new RoutingTable(fFixedRules);
+		}
+		fNextCheck = System.currentTimeMillis() + fInterval;
+	}
+
+	private RoutingTable compile(InputStream in, String name)
+		throws IOException
+	{
+		final List<RoutingRule> rules = new ArrayList<RoutingRule>(
+			fFixedRules);
+
+		final BufferedReader reader = new BufferedReader(
+			new InputStreamReader(in, CHARSET));
+		try
+		{
+			String line;
+			int number = 0;
+			while((line = reader.readLine()) != null)
+			{
+				++number;
+
+				final int comment = line.indexOf('#');
+				if(comment >= 0)
+				{
+					line = line.substring(0, comment);
+				}
+
+				if(!line.trim().isEmpty())
+				{
+					rules.add(RoutingRule.parse(name + ":" + number, line));
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		return new RoutingTable(rules);
+	}
+
+	/**
+	 * Reloads the rules file if it has changed, at most once per interval.
+	 * Cheap enough to be called for every event.
+	 */
+	public void refresh()
+	{
+		final long now = System.currentTimeMillis();
+		if(fFile == null || now < fNextCheck)
+		{
+			return;
+		}
+
+		synchronized(this)
+		{
+			if(now < fNextCheck)
+			{
+				return;
+			}
+			fNextCheck = now + fInterval;
+
+			final long modified = fFile.lastModified();
+			if(modified == fModified || modified == 0)
+			{
+				return;
+			}
+			fModified = modified;
+
+			try
+			{
+				fTable = compile(new FileInputStream(fFile), fFile.getName());
+				fReloads.incrementAndGet();
+			}
+			catch(Exception e)
+			{
+				//keep the current table
+				fFailedReloads.incrementAndGet();
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return current table, use one table for a whole event
+	 */
+	public RoutingTable getTable()
+	{
+		return fTable;
+	}
+
+	public long getReloadCount()
+	{
+		return fReloads.get();
+	}
+
+	public long getFailedReloadCount()
+	{
+		return fFailedReloads.get();
+	}
+}
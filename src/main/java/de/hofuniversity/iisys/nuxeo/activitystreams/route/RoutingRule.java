@@ -0,0 +1,221 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.route;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One line of the routing rules: an event name and a document type, either
+ * of which may be "*", followed by the settings for matching events.
+ * <pre>
+ * drop               do not generate an activity
+ * require=property   drop unless the event has the context property
+ * reject=property    drop if the event has the context property
+ * handler=name       special treatment, see {@link Route.Handler}
+ * aggregate=kind     aggregation, see {@link Route.Aggregation}
+ * window=millis      length of the aggregation window
+ * trash              detect moves to and from the trash
+ * </pre>
+ */
+public class RoutingRule
+{
+	public static final String ANY = "*";
+
+	private final String fSource;
+	private final String fEvent, fType;
+
+	private boolean fDrop, fTrash;
+	private Route.Handler fHandler;
+	private Route.Aggregation fAggregation;
+	private long fWindow;
+	private final List<String> fRequired, fRejected;
+
+	private final AtomicLong fHits;
+
+	/**
+	 * @param source where the rule comes from, for statistics
+	 * @param event event name or "*"
+	 * @param type document type or "*"
+	 */
+	public RoutingRule(String source, String event, String type)
+	{
+		fSource = source;
+		fEvent = event;
+		fType = type;
+
+		fWindow = -1;
+
+		fRequired = new ArrayList<String>();
+		fRejected = new ArrayList<String>();
+
+		fHits = new AtomicLong();
+	}
+
+	/**
+	 * @param source where the line comes from, for statistics
+	 * @param line rule line without comments
+	 * @return parsed rule
+	 * @throws IllegalArgumentException if the line is malformed
+	 */
+	public static RoutingRule parse(String source, String line)
+	{
+		final String[] tokens = line.trim().split("\\s+");
+		if(tokens.length < 3)
+		{
+			throw new IllegalArgumentException(source
+				+ ": event, type and at least one setting expected");
+		}
+
+		final RoutingRule rule = new RoutingRule(source, tokens[0], tokens[1]);
+		for(int i = 2; i < tokens.length; ++i)
+		{
+			rule.set(tokens[i]);
+		}
+		return rule;
+	}
+
+	/**
+	 * @param setting setting as written in the rule file
+	 */
+	public void set(String setting)
+	{
+		final int split = setting.indexOf('=');
+		final String key = split < 0 ? setting : setting.substring(0, split);
+		final String value = split < 0 ? null : setting.substring(split + 1);
+
+		if("drop".equals(key))
+		{
+			fDrop = true;
+		}
+		else if("trash".equals(key))
+		{
+			fTrash = true;
+		}
+		else if(value == null || value.isEmpty())
+		{
+			throw new IllegalArgumentException(fSource + ": value expected for "
+				+ key);
+		}
+		else if("require".equals(key))
+		{
+			fRequired.add(value);
+		}
+		else if("reject".equals(key))
+		{
+			fRejected.add(value);
+		}
+		else if("handler".equals(key))
+		{
+			fHandler = Route.Handler.valueOf(toConstant(value));
+		}
+		else if("aggregate".equals(key))
+		{
+			fAggregation = Route.Aggregation.valueOf(toConstant(value));
+		}
+		else if("window".equals(key))
+		{
+			try
+			{
+				fWindow = Long.parseLong(value);
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException(fSource
+					+ ": invalid window " + value);
+			}
+		}
+		else
+		{
+			throw new IllegalArgumentException(fSource + ": unknown setting "
+				+ key);
+		}
+	}
+
+	private String toConstant(String value)
+	{
+		return value.trim().replace('-', '_').toUpperCase();
+	}
+
+	public boolean matchesAnyEvent()
+	{
+		return ANY.equals(fEvent);
+	}
+
+	public boolean matchesAnyType()
+	{
+		return ANY.equals(fType);
+	}
+
+	public String getSource()
+	{
+		return fSource;
+	}
+
+	public String getEvent()
+	{
+		return fEvent;
+	}
+
+	public String getType()
+	{
+		return fType;
+	}
+
+	boolean isDrop()
+	{
+		return fDrop;
+	}
+
+	boolean isTrash()
+	{
+		return fTrash;
+	}
+
+	Route.Handler getHandler()
+	{
+		return fHandler;
+	}
+
+	Route.Aggregation getAggregation()
+	{
+		return fAggregation;
+	}
+
+	/**
+	 * @return window length in milliseconds, -1 if not set
+	 */
+	long getWindow()
+	{
+		return fWindow;
+	}
+
+	List<String> getRequired()
+	{
+		return Collections.unmodifiableList(fRequired);
+	}
+
+	List<String> getRejected()
+	{
+		return Collections.unmodifiableList(fRejected);
+	}
+
+	void hit()
+	{
+		fHits.incrementAndGet();
+	}
+
+	/**
+	 * @return number of events the rule has applied to
+	 */
+	public long getHitCount()
+	{
+		return fHits.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return fSource + " (" + fEvent + " " + fType + ")";
+	}
+}
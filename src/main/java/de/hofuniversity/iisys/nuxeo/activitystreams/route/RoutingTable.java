@@ -0,0 +1,189 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.route;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Routing rules compiled into a decision table. Every combination of event
+ * name and document type mentioned by a rule gets a precomputed route, so a
+ * lookup is two hash lookups. Tables are immutable and replaced as a whole.
+ */
+public class RoutingTable
+{
+	private final List<RoutingRule> fRules;
+
+	private final Map<String, Row> fRows;
+	private final Row fDefaultRow;
+
+	public RoutingTable(List<RoutingRule> rules)
+	{
+		fRules = Collections.unmodifiableList(
+			new ArrayList<RoutingRule>(rules));
+
+		//sort rules by specificity, keeping their order
+		final List<RoutingRule> general = new ArrayList<RoutingRule>();
+		final Map<String, List<RoutingRule>> byEvent =
+			new HashMap<String, List<RoutingRule>>();
+		final Map<String, List<RoutingRule>> byType =
+			new HashMap<String, List<RoutingRule>>();
+		final Map<String, List<RoutingRule>> byBoth =
+			new HashMap<String, List<RoutingRule>>();
+
+		for(RoutingRule rule : rules)
+		{
+			if(rule.matchesAnyEvent() && rule.matchesAnyType())
+			{
+				general.add(rule);
+			}
+			else if(rule.matchesAnyType())
+			{
+				add(byEvent, rule.getEvent(), rule);
+			}
+			else if(rule.matchesAnyEvent())
+			{
+				add(byType, rule.getType(), rule);
+			}
+			else
+			{
+				add(byBoth, rule.getEvent() + '\n' + rule.getType(), rule);
+			}
+		}
+
+		final Set<String> events = new HashSet<String>();
+		for(RoutingRule rule : rules)
+		{
+			if(!rule.matchesAnyEvent())
+			{
+				events.add(rule.getEvent());
+			}
+		}
+
+		fDefaultRow = compileRow(null, general, byEvent, byType, byBoth);
+
+		fRows = new HashMap<String, Row>();
+		for(String event : events)
+		{
+			fRows.put(event, compileRow(event, general, byEvent, byType,
+				byBoth));
+		}
+	}
+
+	private static void add(Map<String, List<RoutingRule>> map, String key,
+		RoutingRule rule)
+	{
+		List<RoutingRule> list = map.get(key);
+		if(list == null)
+		{
+			list = new ArrayList<RoutingRule>();
+			map.put(key, list);
+		}
+		list.add(rule);
+	}
+
+	private Row compileRow(String event, List<RoutingRule> general,
+		Map<String, List<RoutingRule>> byEvent,
+		Map<String, List<RoutingRule>> byType,
+		Map<String, List<RoutingRule>> byBoth)
+	{
+		final List<RoutingRule> eventRules = event != null
+			&& byEvent.containsKey(event) ? byEvent.get(event)
+			: Collections.<RoutingRule>emptyList();
+
+		final List<RoutingRule> rowRules = new ArrayList<RoutingRule>(general);
+		rowRules.addAll(eventRules);
+		final Row row = new Row(new Route(rowRules));
+
+		//all types mentioned for any event or for this one
+		final Set<String> types = new HashSet<String>(byType.keySet());
+		if(event != null)
+		{
+			for(String key : byBoth.keySet())
+			{
+				if(key.startsWith(event + '\n'))
+				{
+					types.add(key.substring(event.length() + 1));
+				}
+			}
+		}
+
+		for(String type : types)
+		{
+			final List<RoutingRule> cellRules =
+				new ArrayList<RoutingRule>(general);
+
+			if(byType.containsKey(type))
+			{
+				cellRules.addAll(byType.get(type));
+			}
+			cellRules.addAll(eventRules);
+			if(event != null && byBoth.containsKey(event + '\n' + type))
+			{
+				cellRules.addAll(byBoth.get(event + '\n' + type));
+			}
+
+			row.fTypes.put(type, new Route(cellRules));
+		}
+
+		return row;
+	}
+
+	/**
+	 * @param event event name
+	 * @param type document type, null to get the route for any type
+	 * @return route for the combination, never null
+	 */
+	public Route lookup(String event, String type)
+	{
+		Row row = fRows.get(event);
+		if(row == null)
+		{
+			row = fDefaultRow;
+		}
+
+		if(type == null)
+		{
+			return row.fAnyType;
+		}
+
+		final Route route = row.fTypes.get(type);
+		return route != null ? route : row.fAnyType;
+	}
+
+	/**
+	 * @return source rules in order, with their hit counts
+	 */
+	public List<RoutingRule> getRules()
+	{
+		return fRules;
+	}
+
+	/**
+	 * @return number of precompiled routes
+	 */
+	public int getRouteCount()
+	{
+		int count = 1 + fDefaultRow.fTypes.size();
+		for(Row row : fRows.values())
+		{
+			count += 1 + row.fTypes.size();
+		}
+		return count;
+	}
+
+	private static class Row
+	{
+		private final Route fAnyType;
+		private final Map<String, Route> fTypes;
+
+		public Row(Route anyType)
+		{
+			fAnyType = anyType;
+			fTypes = new HashMap<String, Route>();
+		}
+	}
+}
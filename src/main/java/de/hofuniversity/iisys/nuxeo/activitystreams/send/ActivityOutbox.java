@@ -0,0 +1,631 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.send;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.ActivityLogger;
+
+/**
+ * Append-only, memory-mapped write-ahead journal for activities and pending
+ * aggregation entries. Records stay live until they are marked done after a
+ * successful delivery; whatever is still live when the server goes down is
+ * recovered on the next start.
+ *
+ * The journal is split into fixed-size segments. Fully completed segments
+ * are deleted from the oldest end and, once there are more segments than
+ * configured, the live records of the oldest segment are copied forward so
+ * it can be dropped, as long as at most half of it is still live. During a
+ * long outage the journal grows past the configured size instead of
+ * rewriting live records over and over. Replay therefore only ever reads the
+ * records that are actually outstanding.
+ *
+ * Record layout: length (int, 0 marks the end of a segment), type (byte),
+ * id (long), length-prefixed UTF-8 fields, CRC32 (int).
+ */
+public class ActivityOutbox
+{
+	private static final String DIR_PROP = "delivery.outbox.dir";
+	private static final String SEGMENT_SIZE_PROP =
+			"delivery.outbox.segment.size";
+	private static final String MAX_SEGMENTS_PROP =
+			"delivery.outbox.segments.max";
+	private static final String SYNC_PROP = "delivery.outbox.sync";
+
+	public static final byte TYPE_ACTIVITY = 1;
+	public static final byte TYPE_AGGREGATE = 2;
+	public static final byte TYPE_DONE = 3;
+
+	private static final String PREFIX = "outbox-";
+	private static final String SUFFIX = ".seg";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int HEADER = 4 + 1 + 8;
+	private static final int TRAILER = 4;
+
+	private static final Map<String, ActivityOutbox> INSTANCES =
+		new HashMap<String, ActivityOutbox>();
+
+	private final File fDir;
+	private final int fSegmentSize;
+	private final int fMaxSegments;
+	private final boolean fSync;
+
+	private final ActivityLogger fLogger;
+
+	private final LinkedList<Segment> fSegments;
+	private final Map<Long, Location> fLive;
+	private Segment fCurrent;
+
+	private long fNextId;
+	private long fSegmentSeq;
+	private boolean fClosed, fCompacting, fOverLimit;
+
+	private List<Record> fRecovered;
+
+	/**
+	 * Returns the outbox for the configured directory, opening and scanning
+	 * it on first use. All senders in this VM share one instance per
+	 * directory.
+	 *
+	 * @param properties sender configuration
+	 * @param logger logger for warnings about the journal's size
+	 * @return shared outbox or null if journalling is not configured
+	 * @throws IOException if the journal could not be opened
+	 */
+	public static ActivityOutbox open(Map<String, String> properties,
+		ActivityLogger logger) throws IOException
+	{
+		final String dir = properties.get(DIR_PROP);
+		if(dir == null || dir.isEmpty())
+		{
+			return null;
+		}
+
+		synchronized(INSTANCES)
+		{
+			final String key = new File(dir).getCanonicalPath();
+
+			ActivityOutbox outbox = INSTANCES.get(key);
+			if(outbox == null || outbox.isClosed())
+			{
+				outbox = new ActivityOutbox(new File(key),
+					Integer.parseInt(properties.get(SEGMENT_SIZE_PROP)),
+					Integer.parseInt(properties.get(MAX_SEGMENTS_PROP)),
+					Boolean.parseBoolean(properties.get(SYNC_PROP)), logger);
+				INSTANCES.put(key, outbox);
+			}
+
+			return outbox;
+		}
+	}
+
+	private ActivityOutbox(File dir, int segmentSize, int maxSegments,
+		boolean sync, ActivityLogger logger) throws IOException
+	{
+		fDir = dir;
+		fSegmentSize = segmentSize;
+		fMaxSegments = Math.max(2, maxSegments);
+		fSync = sync;
+		fLogger = logger;
+
+		fSegments = new LinkedList<Segment>();
+		fLive = new HashMap<Long, Location>();
+
+		if(!fDir.exists() && !fDir.mkdirs())
+		{
+			throw new IOException("could not create outbox directory " + fDir);
+		}
+
+		fRecovered = scan();
+
+		//never append to a segment of a previous run
+		roll(0);
+		deleteCompleted();
+		compact();
+	}
+
+	private List<Record> scan() throws IOException
+	{
+		final File[] files = fDir.listFiles(new FilenameFilter()
+		{
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+
+		//ids are ascending in order of the original appends
+		final Map<Long, Record> live = new TreeMap<Long, Record>();
+
+		for(File file : files)
+		{
+			final Segment segment = new Segment(file, parseSeq(file), 0);
+			fSegments.add(segment);
+			fSegmentSeq = Math.max(fSegmentSeq, segment.fSeq);
+
+			final ByteBuffer buf = segment.fBuffer;
+			while(buf.remaining() >= HEADER + TRAILER)
+			{
+				final int offset = buf.position();
+				final int length = buf.getInt();
+				if(length <= 0 || length + TRAILER > buf.remaining())
+				{
+					break;
+				}
+
+				final byte type = buf.get();
+				final long id = buf.getLong();
+				final byte[] payload = new byte[length - 1 - 8];
+				buf.get(payload);
+				final int crc = buf.getInt();
+
+				if(crc != checksum(type, id, payload))
+				{
+					//torn write at the end of the segment
+					break;
+				}
+
+				fNextId = Math.max(fNextId, id + 1);
+
+				if(type == TYPE_DONE)
+				{
+					live.remove(id);
+					final Location loc = fLive.remove(id);
+					if(loc != null)
+					{
+						loc.fSegment.remove(id);
+					}
+				}
+				else
+				{
+					//a compacted copy replaces the original
+					final Location old = fLive.get(id);
+					if(old != null)
+					{
+						old.fSegment.remove(id);
+					}
+
+					final Location loc = new Location(segment, offset,
+						HEADER + payload.length + TRAILER);
+					segment.add(id, loc);
+					fLive.put(id, loc);
+
+					live.put(id, new Record(type, id, decode(payload)));
+				}
+			}
+			segment.fBuffer.position(segment.fBuffer.capacity());
+		}
+
+		return new ArrayList<Record>(live.values());
+	}
+
+	private long parseSeq(File file)
+	{
+		final String name = file.getName();
+		return Long.parseLong(name.substring(PREFIX.length(),
+			name.length() - SUFFIX.length()));
+	}
+
+	/**
+	 * Returns the records that were still outstanding when the outbox was
+	 * opened, exactly once.
+	 *
+	 * @return outstanding activities and aggregation entries in append order
+	 */
+	public synchronized List<Record> recover()
+	{
+		final List<Record> recovered = fRecovered;
+		fRecovered = new ArrayList<Record>();
+
+		return recovered;
+	}
+
+	/**
+	 * Journals a record.
+	 *
+	 * @param type record type
+	 * @param fields record fields
+	 * @return id to complete the record with or -1 if the outbox is closed
+	 * @throws IOException if the record could not be written
+	 */
+	public long append(byte type, String... fields)
+		throws IOException
+	{
+		final byte[][] encoded = new byte[fields.length][];
+		for(int i = 0; i < fields.length; ++i)
+		{
+			encoded[i] = fields[i].getBytes(UTF8);
+		}
+
+		return append(type, encoded);
+	}
+
+	/**
+	 * Appends a record whose fields are already encoded as UTF-8.
+	 *
+	 * @param user user the activity is for
+	 * @param payload UTF-8 encoded activity
+	 * @return id of the record
+	 */
+	public long append(byte type, String user, byte[] payload)
+		throws IOException
+	{
+		return append(type, new byte[][] {user.getBytes(UTF8), payload});
+	}
+
+	private synchronized long append(byte type, byte[][] fields)
+		throws IOException
+	{
+		if(fClosed)
+		{
+			return -1;
+		}
+
+		final long id = fNextId++;
+		final byte[] payload = encode(fields);
+
+		final Location loc = write(type, id, payload);
+		loc.fSegment.add(id, loc);
+		fLive.put(id, loc);
+
+		compact();
+
+		return id;
+	}
+
+	/**
+	 * Marks a record as done so it will not be recovered.
+	 *
+	 * @param id id returned when the record was appended
+	 */
+	public synchronized void complete(long id) throws IOException
+	{
+		if(fClosed || id < 0)
+		{
+			return;
+		}
+
+		final Location loc = fLive.remove(id);
+		if(loc == null)
+		{
+			return;
+		}
+		loc.fSegment.remove(id);
+
+		write(TYPE_DONE, id, new byte[0]);
+
+		deleteCompleted();
+		compact();
+	}
+
+	private Location write(byte type, long id, byte[] payload)
+		throws IOException
+	{
+		final int size = HEADER + payload.length + TRAILER;
+		if(fCurrent.fBuffer.remaining() < size + 4)
+		{
+			roll(size + 4);
+		}
+
+		final MappedByteBuffer buf = fCurrent.fBuffer;
+		final int offset = buf.position();
+
+		buf.putInt(1 + 8 + payload.length);
+		buf.put(type);
+		buf.putLong(id);
+		buf.put(payload);
+		buf.putInt(checksum(type, id, payload));
+
+		if(fSync)
+		{
+			buf.force();
+		}
+
+		return new Location(fCurrent, offset, size);
+	}
+
+	private void roll(int minSize) throws IOException
+	{
+		final File file = new File(fDir, String.format("%s%016d%s", PREFIX,
+			++fSegmentSeq, SUFFIX));
+
+		fCurrent = new Segment(file, fSegmentSeq,
+			Math.max(fSegmentSize, minSize));
+		fSegments.add(fCurrent);
+	}
+
+	private void compact() throws IOException
+	{
+		if(fCompacting || fSegments.size() <= fMaxSegments)
+		{
+			fOverLimit = false;
+			return;
+		}
+		fCompacting = true;
+
+		try
+		{
+			deleteCompleted();
+
+			//move the live records of the oldest segments to the head,
+			//bounded in case everything is still outstanding
+			int rounds = fSegments.size() - fMaxSegments;
+			while(rounds-- > 0 && fSegments.getFirst() != fCurrent)
+			{
+				final Segment oldest = fSegments.getFirst();
+
+				//copying mostly live segments would rewrite the whole journal
+				//on every append while Shindig is down
+				if(oldest.fLiveBytes * 2 > oldest.fBuffer.capacity())
+				{
+					warnOverLimit();
+					break;
+				}
+
+				for(Location loc : new ArrayList<Location>(
+					oldest.fRecords.values()))
+				{
+					final ByteBuffer src = oldest.fBuffer.duplicate();
+					src.position(loc.fOffset + 4);
+
+					final byte type = src.get();
+					final long id = src.getLong();
+					final byte[] payload = new byte[loc.fSize - HEADER
+						- TRAILER];
+					src.get(payload);
+
+					final Location moved = write(type, id, payload);
+					oldest.remove(id);
+					moved.fSegment.add(id, moved);
+					fLive.put(id, moved);
+				}
+
+				deleteCompleted();
+			}
+		}
+		finally
+		{
+			fCompacting = false;
+		}
+	}
+
+	private void warnOverLimit()
+	{
+		if(fOverLimit)
+		{
+			return;
+		}
+		fOverLimit = true;
+
+		if(fLogger != null)
+		{
+			fLogger.logError("outbox " + fDir + " exceeds " + fMaxSegments
+				+ " segments with " + fLive.size() + " outstanding records");
+		}
+	}
+
+	private void deleteCompleted() throws IOException
+	{
+		//done markers may refer to older segments, delete in order only
+		while(!fSegments.isEmpty() && fSegments.getFirst() != fCurrent
+			&& fSegments.getFirst().fRecords.isEmpty())
+		{
+			fSegments.removeFirst().delete();
+		}
+	}
+
+	/**
+	 * Flushes and closes all segments. Later calls are ignored.
+	 */
+	public synchronized void close()
+	{
+		if(fClosed)
+		{
+			return;
+		}
+		fClosed = true;
+
+		for(Segment segment : fSegments)
+		{
+			segment.close();
+		}
+	}
+
+	public synchronized boolean isClosed()
+	{
+		return fClosed;
+	}
+
+	/**
+	 * @param id id returned when the record was appended
+	 * @return whether the record is journalled and not done yet
+	 */
+	public synchronized boolean isPending(long id)
+	{
+		return fLive.containsKey(id);
+	}
+
+	public synchronized int getPendingCount()
+	{
+		return fLive.size();
+	}
+
+	public synchronized int getSegmentCount()
+	{
+		return fSegments.size();
+	}
+
+	private static byte[] encode(byte[][] fields)
+	{
+		int size = 0;
+		for(byte[] field : fields)
+		{
+			size += 4 + field.length;
+		}
+
+		final ByteBuffer buf = ByteBuffer.allocate(size);
+		for(byte[] field : fields)
+		{
+			buf.putInt(field.length);
+			buf.put(field);
+		}
+
+		return buf.array();
+	}
+
+	private static String[] decode(byte[] payload)
+	{
+		final List<String> fields = new ArrayList<String>(3);
+		final ByteBuffer buf = ByteBuffer.wrap(payload);
+
+		while(buf.remaining() >= 4)
+		{
+			final int length = buf.getInt();
+			fields.add(new String(payload, buf.position(), length, UTF8));
+			buf.position(buf.position() + length);
+		}
+
+		return fields.toArray(new String[fields.size()]);
+	}
+
+	private static int checksum(byte type, long id, byte[] payload)
+	{
+		final CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(ByteBuffer.allocate(8).putLong(id).array());
+		crc.update(payload);
+
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Outstanding journal entry.
+	 */
+	public static class Record
+	{
+		private final byte fType;
+		private final long fId;
+		private final String[] fFields;
+
+		public Record(byte type, long id, String[] fields)
+		{
+			fType = type;
+			fId = id;
+			fFields = fields;
+		}
+
+		public byte getType()
+		{
+			return fType;
+		}
+
+		public long getId()
+		{
+			return fId;
+		}
+
+		public String getField(int index)
+		{
+			return fFields[index];
+		}
+	}
+
+	private static class Location
+	{
+		private final Segment fSegment;
+		private final int fOffset;
+		private final int fSize;
+
+		public Location(Segment segment, int offset, int size)
+		{
+			fSegment = segment;
+			fOffset = offset;
+			fSize = size;
+		}
+	}
+
+	private static class Segment
+	{
+		private final File fFile;
+		private final long fSeq;
+		private final RandomAccessFile fRaf;
+		private final MappedByteBuffer fBuffer;
+
+		private final Map<Long, Location> fRecords;
+		private long fLiveBytes;
+
+		/**
+		 * Maps a segment file, creating it with the given size if it does not
+		 * exist yet or mapping its current length otherwise.
+		 */
+		public Segment(File file, long seq, int size) throws IOException
+		{
+			fFile = file;
+			fSeq = seq;
+
+			fRaf = new RandomAccessFile(file, "rw");
+			if(size > 0)
+			{
+				fRaf.setLength(size);
+			}
+			fBuffer = fRaf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+				0, fRaf.length());
+
+			fRecords = new LinkedHashMap<Long, Location>();
+		}
+
+		public void add(long id, Location loc)
+		{
+			fRecords.put(id, loc);
+			fLiveBytes += loc.fSize;
+		}
+
+		public void remove(long id)
+		{
+			final Location loc = fRecords.remove(id);
+			if(loc != null)
+			{
+				fLiveBytes -= loc.fSize;
+			}
+		}
+
+		public void close()
+		{
+			try
+			{
+				fBuffer.force();
+				fRaf.close();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		public void delete()
+		{
+			close();
+
+			//the mapping itself is released once the buffer is collected
+			fFile.delete();
+		}
+	}
+}
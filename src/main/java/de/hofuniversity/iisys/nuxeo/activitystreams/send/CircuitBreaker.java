@@ -0,0 +1,173 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.send;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker for one Shindig endpoint. After a number of consecutive
+ * failures it opens and activities are parked in a holding queue instead of
+ * waiting for timeouts; once the open time has passed a single probe
+ * request is let through and its outcome decides whether to close again.
+ */
+public class CircuitBreaker
+{
+	public enum State
+	{
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String fEndpoint;
+
+	private final int fThreshold;
+	private final long fOpenTime;
+	private final int fHoldLimit;
+
+	private State fState;
+	private int fFailures;
+	private long fOpenedAt;
+
+	private final Queue<Delivery> fHeld;
+	private final AtomicInteger fHeldCount;
+
+	private final AtomicLong fTrips, fRejected;
+
+	public CircuitBreaker(String endpoint, int threshold, long openTime,
+		int holdLimit)
+	{
+		fEndpoint = endpoint;
+
+		fThreshold = threshold;
+		fOpenTime = openTime;
+		fHoldLimit = holdLimit;
+
+		fState = State.CLOSED;
+
+		fHeld = new ConcurrentLinkedQueue<Delivery>();
+		fHeldCount = new AtomicInteger();
+
+		fTrips = new AtomicLong();
+		fRejected = new AtomicLong();
+	}
+
+	/**
+	 * @return whether a request may be sent now; in the half-open state only
+	 *         the first caller gets to send the probe
+	 */
+	public synchronized boolean allowRequest()
+	{
+		switch(fState)
+		{
+			case CLOSED:
+				return true;
+
+			case OPEN:
+				if(System.currentTimeMillis() - fOpenedAt >= fOpenTime)
+				{
+					fState = State.HALF_OPEN;
+					return true;
+				}
+				return false;
+
+			default:
+				//probe still in flight
+				return false;
+		}
+	}
+
+	/**
+	 * @return whether the breaker was not closed before
+	 */
+	public synchronized boolean onSuccess()
+	{
+		final boolean recovered = fState != State.CLOSED;
+
+		fState = State.CLOSED;
+		fFailures = 0;
+
+		return recovered;
+	}
+
+	/**
+	 * @return whether the breaker (re)opened because of this failure
+	 */
+	public synchronized boolean onFailure()
+	{
+		++fFailures;
+
+		if(fState == State.HALF_OPEN
+			|| (fState == State.CLOSED && fFailures >= fThreshold))
+		{
+			if(fState == State.CLOSED)
+			{
+				fTrips.incrementAndGet();
+			}
+
+			fState = State.OPEN;
+			fOpenedAt = System.currentTimeMillis();
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Parks an activity while the breaker is open.
+	 *
+	 * @return false if the holding queue is full
+	 */
+	public boolean hold(Delivery delivery)
+	{
+		if(fHeldCount.incrementAndGet() > fHoldLimit)
+		{
+			fHeldCount.decrementAndGet();
+			fRejected.incrementAndGet();
+			return false;
+		}
+
+		fHeld.offer(delivery);
+		return true;
+	}
+
+	public Delivery pollHeld()
+	{
+		final Delivery delivery = fHeld.poll();
+		if(delivery != null)
+		{
+			fHeldCount.decrementAndGet();
+		}
+
+		return delivery;
+	}
+
+	public String getEndpoint()
+	{
+		return fEndpoint;
+	}
+
+	public long getOpenTime()
+	{
+		return fOpenTime;
+	}
+
+	public synchronized State getState()
+	{
+		return fState;
+	}
+
+	public int getHeldCount()
+	{
+		return fHeldCount.get();
+	}
+
+	public long getTripCount()
+	{
+		return fTrips.get();
+	}
+
+	public long getRejectedCount()
+	{
+		return fRejected.get();
+	}
+}
@@ -0,0 +1,138 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.send;
+
+import java.nio.charset.Charset;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.stats.LagPath;
+
+/**
+ * A serialized activity waiting to be posted to a user's activity stream.
+ */
+public class Delivery
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String fUser;
+	private final byte[] fPayload;
+
+	private final long fEnqueued;
+
+	private long fOutboxId;
+	private int fAttempts;
+
+	private String fVerb;
+
+	private LagPath fPath;
+	private long fEventTime;
+
+	/**
+	 * @param user ID of the user whose stream to post to
+	 * @param payload activity JSON encoded as UTF-8
+	 */
+	public Delivery(String user, byte[] payload)
+	{
+		this(user, payload, -1);
+	}
+
+	public Delivery(String user, String json, long outboxId)
+	{
+		this(user, json.getBytes(UTF8), outboxId);
+	}
+
+	public Delivery(String user, byte[] payload, long outboxId)
+	{
+		fUser = user;
+		fPayload = payload;
+		fOutboxId = outboxId;
+
+		fEnqueued = System.currentTimeMillis();
+	}
+
+	public String getUser()
+	{
+		return fUser;
+	}
+
+	/**
+	 * @return activity JSON encoded as UTF-8
+	 */
+	public byte[] getPayload()
+	{
+		return fPayload;
+	}
+
+	public String getJson()
+	{
+		return new String(fPayload, UTF8);
+	}
+
+	public long getEnqueued()
+	{
+		return fEnqueued;
+	}
+
+	/**
+	 * @return id of the outbox record journalling this activity or -1
+	 */
+	public long getOutboxId()
+	{
+		return fOutboxId;
+	}
+
+	public void setOutboxId(long outboxId)
+	{
+		fOutboxId = outboxId;
+	}
+
+	/**
+	 * @return verb of the activity for statistics, null if not known
+	 */
+	public String getVerb()
+	{
+		return fVerb;
+	}
+
+	public void setVerb(String verb)
+	{
+		fVerb = verb;
+	}
+
+	/**
+	 * @return path the activity took for statistics, null if not known
+	 */
+	public LagPath getPath()
+	{
+		return fPath;
+	}
+
+	/**
+	 * @return time of the earliest event behind the activity, 0 if not
+	 *         known
+	 */
+	public long getEventTime()
+	{
+		return fEventTime;
+	}
+
+	/**
+	 * @param path path the activity took
+	 * @param eventTime time of the earliest event behind the activity
+	 */
+	public void setOrigin(LagPath path, long eventTime)
+	{
+		fPath = path;
+		fEventTime = eventTime;
+	}
+
+	/**
+	 * @return number of failed delivery attempts so far
+	 */
+	public int getAttempts()
+	{
+		return fAttempts;
+	}
+
+	public void incrementAttempts()
+	{
+		++fAttempts;
+	}
+}
@@ -0,0 +1,25 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.send;
+
+import java.io.IOException;
+
+/**
+ * Signals that Shindig answered a request with an error status.
+ */
+public class DeliveryException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+	private final int fStatus;
+
+	public DeliveryException(String url, int status)
+	{
+		super("HTTP " + status + " from " + url);
+
+		fStatus = status;
+	}
+
+	public int getStatus()
+	{
+		return fStatus;
+	}
+}
@@ -0,0 +1,941 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.send;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.stats.PipelineMetrics;
+import de.hofuniversity.iisys.nuxeo.activitystreams.stats.Stage;
+
+/**
+ * Bounded delivery stage decoupling event threads from the HTTP calls to
+ * Shindig. Activities are queued and posted by a configurable number of
+ * worker threads; a full queue is handled according to the configured
+ * backpressure policy.
+ */
+public class DeliveryQueue
+{
+	private static final String QUEUE_SIZE_PROP = "delivery.queue.size";
+	private static final String WORKERS_PROP = "delivery.workers";
+	private static final String BACKPRESSURE_PROP = "delivery.backpressure";
+	private static final String SPILL_FILE_PROP = "delivery.spill.file";
+	private static final String BATCH_PROP = "delivery.batch";
+	private static final String BATCH_SIZE_PROP = "delivery.batch.size";
+	private static final String BATCH_TIME_PROP = "delivery.batch.time";
+	private static final String BATCH_CROSS_PROP = "delivery.batch.crossuser";
+	private static final String BATCH_URL_PROP = "delivery.batch.url";
+	private static final String SHUTDOWN_TIME_PROP = "delivery.shutdown.time";
+
+	private static final String SPILL_SEP = "\t";
+
+	private static final long POLL_INTERVAL = 1000;
+
+	public enum Backpressure
+	{
+		BLOCK, DROP_OLDEST, SPILL;
+
+		public static Backpressure parse(String value)
+		{
+			if("drop-oldest".equals(value))
+			{
+				return DROP_OLDEST;
+			}
+			else if("spill".equals(value))
+			{
+				return SPILL;
+			}
+
+			return BLOCK;
+		}
+	}
+
+	private static final String BREAKER_FAILURES_PROP =
+			"delivery.breaker.failures";
+	private static final String BREAKER_OPEN_PROP =
+			"delivery.breaker.open.time";
+	private static final String HOLD_LIMIT_PROP = "delivery.breaker.hold.max";
+
+	//key of batch requests in the send timings
+	private static final String BATCH = "batch";
+
+	private final IDeliveryHandler fHandler;
+
+	private final ActivityOutbox fOutbox;
+
+	private final BlockingQueue<Delivery> fQueue;
+	private final int fCapacity;
+
+	private final Backpressure fBackpressure;
+	private final File fSpillFile;
+	private final Object fSpillLock;
+
+	private volatile boolean fBatching;
+	private final boolean fCrossUser;
+	private final int fBatchSize;
+	private final long fBatchTime;
+
+	private final RetryScheduler fRetry;
+
+	private final Map<String, CircuitBreaker> fBreakers;
+	private final int fBreakerThreshold, fHoldLimit;
+	private final long fBreakerOpenTime;
+
+	private final Thread[] fWorkers;
+	private volatile boolean fActive;
+	private final long fShutdownTime;
+
+	private final AtomicLong fEnqueued, fDelivered, fFailed, fDropped, fRetried;
+	private final AtomicLong fSpilled, fSpillPending, fRetryPending;
+	private final AtomicLong fLatencySum, fLatencyMax;
+
+	private final DeliveryStats fSingleStats, fBatchStats;
+
+	private final PipelineMetrics fMetrics;
+
+	/**
+	 * @param properties sender configuration
+	 * @param handler performs the actual delivery
+	 * @param outbox journal for queued activities, may be null
+	 */
+	public DeliveryQueue(Map<String, String> properties,
+		IDeliveryHandler handler, ActivityOutbox outbox)
+	{
+		fHandler = handler;
+		fOutbox = outbox;
+
+		fCapacity = Integer.parseInt(properties.get(QUEUE_SIZE_PROP));
+		fQueue = new ArrayBlockingQueue<Delivery>(fCapacity);
+
+		fBackpressure = Backpressure.parse(properties.get(BACKPRESSURE_PROP));
+		String spillFile = properties.get(SPILL_FILE_PROP);
+		if(spillFile != null && !spillFile.isEmpty())
+		{
+			fSpillFile = new File(spillFile);
+		}
+		else
+		{
+			fSpillFile = null;
+		}
+		fSpillLock = new Object();
+
+		fBatching = Boolean.parseBoolean(properties.get(BATCH_PROP));
+		//without a batch endpoint a batch goes to the first user's stream
+		final String batchUrl = properties.get(BATCH_URL_PROP);
+		fCrossUser = Boolean.parseBoolean(properties.get(BATCH_CROSS_PROP))
+			&& batchUrl != null && !batchUrl.isEmpty();
+		fBatchSize = Integer.parseInt(properties.get(BATCH_SIZE_PROP));
+		fBatchTime = Long.parseLong(properties.get(BATCH_TIME_PROP));
+
+		fRetry = new RetryScheduler(properties);
+
+		fBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+		fBreakerThreshold = Integer.parseInt(properties.get(
+			BREAKER_FAILURES_PROP));
+		fBreakerOpenTime = Long.parseLong(properties.get(BREAKER_OPEN_PROP));
+		fHoldLimit = Integer.parseInt(properties.get(HOLD_LIMIT_PROP));
+
+		fEnqueued = new AtomicLong();
+		fDelivered = new AtomicLong();
+		fFailed = new AtomicLong();
+		fDropped = new AtomicLong();
+		fRetried = new AtomicLong();
+		fSpilled = new AtomicLong();
+		fSpillPending = new AtomicLong();
+		fRetryPending = new AtomicLong();
+		fLatencySum = new AtomicLong();
+		fLatencyMax = new AtomicLong();
+
+		fSingleStats = new DeliveryStats();
+		fBatchStats = new DeliveryStats();
+
+		fMetrics = PipelineMetrics.getInstance(properties);
+
+		//pick up activities spilled before the last shutdown
+		if(fSpillFile != null && fSpillFile.exists())
+		{
+			dropJournalled();
+			fSpillPending.set(1);
+		}
+
+		fShutdownTime = Long.parseLong(properties.get(SHUTDOWN_TIME_PROP));
+
+		fActive = true;
+		fWorkers = new Thread[Integer.parseInt(properties.get(WORKERS_PROP))];
+		for(int i = 0; i < fWorkers.length; ++i)
+		{
+			fWorkers[i] = new Thread(new Worker(),
+				"activitystreams-delivery-" + i);
+			fWorkers[i].setDaemon(true);
+			fWorkers[i].start();
+		}
+	}
+
+	/**
+	 * Journals an activity and queues it for delivery, returning immediately
+	 * unless the backpressure policy is to block and the queue is full.
+	 * Activities that are dropped, including all arriving after shutdown,
+	 * stay in the outbox until the next start.
+	 *
+	 * @param delivery activity to deliver
+	 * @return whether the activity was accepted
+	 */
+	public boolean enqueue(Delivery delivery)
+	{
+		fEnqueued.incrementAndGet();
+
+		if(fOutbox != null && delivery.getOutboxId() < 0)
+		{
+			try
+			{
+				delivery.setOutboxId(fOutbox.append(
+					ActivityOutbox.TYPE_ACTIVITY, delivery.getUser(),
+					delivery.getPayload()));
+			}
+			catch(Exception e)
+			{
+				//deliver anyway, just without the safety net
+				fHandler.deliveryFailed(delivery, e);
+			}
+		}
+
+		//no worker would take it off the queue any more
+		if(!fActive)
+		{
+			fDropped.incrementAndGet();
+			return false;
+		}
+
+		if(fQueue.offer(delivery))
+		{
+			return true;
+		}
+
+		switch(fBackpressure)
+		{
+			case DROP_OLDEST:
+				while(!fQueue.offer(delivery))
+				{
+					if(fQueue.poll() != null)
+					{
+						fDropped.incrementAndGet();
+					}
+				}
+				return true;
+
+			case SPILL:
+				if(fSpillFile != null && spill(delivery))
+				{
+					return true;
+				}
+				fDropped.incrementAndGet();
+				return false;
+
+			default:
+				try
+				{
+					//wait for room, but not past shutdown
+					while(fActive)
+					{
+						if(fQueue.offer(delivery, POLL_INTERVAL,
+							TimeUnit.MILLISECONDS))
+						{
+							return true;
+						}
+					}
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				fDropped.incrementAndGet();
+				return false;
+		}
+	}
+
+	private boolean spill(Delivery delivery)
+	{
+		synchronized(fSpillLock)
+		{
+			try
+			{
+				final PrintWriter writer = new PrintWriter(new BufferedWriter(
+					new OutputStreamWriter(new FileOutputStream(fSpillFile, true),
+					"UTF-8")));
+
+				writer.println(delivery.getOutboxId() + SPILL_SEP
+					+ delivery.getUser() + SPILL_SEP + delivery.getJson());
+
+				writer.flush();
+				writer.close();
+			}
+			catch(Exception e)
+			{
+				return false;
+			}
+
+			fSpilled.incrementAndGet();
+			fSpillPending.incrementAndGet();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Removes activities from a previous run's spill file that are still in
+	 * the outbox, since recovering the outbox queues them again anyway.
+	 */
+	private void dropJournalled()
+	{
+		if(fOutbox == null)
+		{
+			return;
+		}
+
+		synchronized(fSpillLock)
+		{
+			final List<String> kept = new ArrayList<String>();
+			try
+			{
+				final BufferedReader reader = new BufferedReader(
+					new InputStreamReader(new FileInputStream(fSpillFile),
+					"UTF-8"));
+
+				String line = reader.readLine();
+				while(line != null)
+				{
+					final String[] fields = line.split(SPILL_SEP, 3);
+					if(fields.length == 3 && !fOutbox.isPending(
+						Long.parseLong(fields[0])))
+					{
+						kept.add(line);
+					}
+					line = reader.readLine();
+				}
+
+				reader.close();
+
+				final PrintWriter writer = new PrintWriter(new BufferedWriter(
+					new OutputStreamWriter(new FileOutputStream(fSpillFile,
+					false), "UTF-8")));
+				for(String entry : kept)
+				{
+					writer.println(entry);
+				}
+				writer.flush();
+				writer.close();
+			}
+			catch(Exception e)
+			{
+				//restored as it is, some activities may arrive twice
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void restoreSpilled()
+	{
+		final List<Delivery> restored = new ArrayList<Delivery>();
+
+		synchronized(fSpillLock)
+		{
+			if(fSpillPending.get() == 0 || !fSpillFile.exists())
+			{
+				fSpillPending.set(0);
+				return;
+			}
+
+			try
+			{
+				final BufferedReader reader = new BufferedReader(
+					new InputStreamReader(new FileInputStream(fSpillFile),
+					"UTF-8"));
+
+				String line = reader.readLine();
+				while(line != null)
+				{
+					final String[] fields = line.split(SPILL_SEP, 3);
+					if(fields.length == 3)
+					{
+						restored.add(new Delivery(fields[1], fields[2],
+							Long.parseLong(fields[0])));
+					}
+					line = reader.readLine();
+				}
+
+				reader.close();
+			}
+			catch(Exception e)
+			{
+				//leave the file in place for the next attempt
+				return;
+			}
+
+			fSpillFile.delete();
+			fSpillPending.set(0);
+		}
+
+		//refill the queue, spilling again whatever does not fit
+		for(Delivery delivery : restored)
+		{
+			if(!fQueue.offer(delivery) && !spill(delivery))
+			{
+				fDropped.incrementAndGet();
+			}
+		}
+	}
+
+	private void deliver(Delivery delivery)
+	{
+		final CircuitBreaker breaker = getBreaker(delivery);
+		if(!breaker.allowRequest())
+		{
+			hold(breaker, delivery);
+			return;
+		}
+
+		final long start = System.currentTimeMillis();
+		final long timer = fMetrics.start();
+
+		try
+		{
+			fHandler.deliver(delivery);
+		}
+		catch(Exception e)
+		{
+			fMetrics.record(Stage.SEND, null, delivery.getVerb(), timer);
+
+			if(breaker.onFailure())
+			{
+				scheduleProbe(breaker);
+			}
+			failed(delivery, e);
+			return;
+		}
+
+		fMetrics.record(Stage.SEND, null, delivery.getVerb(), timer);
+
+		fDelivered.incrementAndGet();
+		fSingleStats.record(Collections.singletonList(delivery),
+			System.currentTimeMillis() - start);
+
+		complete(delivery);
+		recordLatency(delivery);
+
+		succeeded(breaker);
+	}
+
+	private void deliverBatch(List<Delivery> batch)
+	{
+		if(batch.size() == 1)
+		{
+			deliver(batch.get(0));
+			return;
+		}
+
+		final CircuitBreaker breaker = getBreaker(batch.get(0));
+		if(!breaker.allowRequest())
+		{
+			for(Delivery delivery : batch)
+			{
+				hold(breaker, delivery);
+			}
+			return;
+		}
+
+		final long start = System.currentTimeMillis();
+		final long timer = fMetrics.start();
+
+		try
+		{
+			if(!fHandler.deliverBatch(batch))
+			{
+				//not supported by the server, don't try again
+				fBatching = false;
+				breaker.onSuccess();
+
+				for(Delivery delivery : batch)
+				{
+					deliver(delivery);
+				}
+				return;
+			}
+		}
+		catch(Exception e)
+		{
+			fMetrics.record(Stage.SEND, null, BATCH, timer);
+
+			//likely a single broken activity, only that one should fail
+			if(e instanceof DeliveryException
+				&& ((DeliveryException) e).getStatus() == 400)
+			{
+				breaker.onSuccess();
+
+				for(Delivery delivery : batch)
+				{
+					deliver(delivery);
+				}
+				return;
+			}
+
+			if(breaker.onFailure())
+			{
+				scheduleProbe(breaker);
+			}
+			for(Delivery delivery : batch)
+			{
+				failed(delivery, e);
+			}
+			return;
+		}
+
+		fMetrics.record(Stage.SEND, null, BATCH, timer);
+
+		fDelivered.addAndGet(batch.size());
+		fBatchStats.record(batch, System.currentTimeMillis() - start);
+
+		for(Delivery delivery : batch)
+		{
+			complete(delivery);
+			recordLatency(delivery);
+		}
+
+		succeeded(breaker);
+	}
+
+	private void failed(final Delivery delivery, Exception e)
+	{
+		if(!fActive && fRetry.isTransient(e))
+		{
+			//no more retries after shutdown, still in the outbox
+			fDropped.incrementAndGet();
+			recordLatency(delivery);
+			return;
+		}
+
+		if(fRetry.shouldRetry(delivery, e))
+		{
+			delivery.incrementAttempts();
+			fRetried.incrementAndGet();
+			fRetryPending.incrementAndGet();
+
+			fRetry.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					fRetryPending.decrementAndGet();
+					requeue(delivery);
+				}
+			}, fRetry.getDelay(delivery.getAttempts()));
+			return;
+		}
+
+		fFailed.incrementAndGet();
+		fHandler.deliveryFailed(delivery, e);
+
+		//permanently rejected activities would fail again after a restart,
+		//transient failures stay in the outbox for the next start
+		if(!fRetry.isTransient(e))
+		{
+			complete(delivery);
+		}
+
+		recordLatency(delivery);
+	}
+
+	private void requeue(Delivery delivery)
+	{
+		//never block the retry thread, a full queue means the stage is busy
+		if(!fQueue.offer(delivery))
+		{
+			if(fBackpressure == Backpressure.SPILL && fSpillFile != null
+				&& spill(delivery))
+			{
+				return;
+			}
+			fDropped.incrementAndGet();
+		}
+	}
+
+	private CircuitBreaker getBreaker(Delivery delivery)
+	{
+		final String endpoint = fHandler.getEndpoint(delivery);
+
+		CircuitBreaker breaker = fBreakers.get(endpoint);
+		if(breaker == null)
+		{
+			synchronized(fBreakers)
+			{
+				breaker = fBreakers.get(endpoint);
+				if(breaker == null)
+				{
+					breaker = new CircuitBreaker(endpoint, fBreakerThreshold,
+						fBreakerOpenTime, fHoldLimit);
+					fBreakers.put(endpoint, breaker);
+				}
+			}
+		}
+
+		return breaker;
+	}
+
+	private void hold(CircuitBreaker breaker, Delivery delivery)
+	{
+		if(!breaker.hold(delivery))
+		{
+			//still in the outbox, delivered after the next start
+			fDropped.incrementAndGet();
+		}
+	}
+
+	private void scheduleProbe(final CircuitBreaker breaker)
+	{
+		//send a parked activity as probe in case nothing else comes along
+		fRetry.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final Delivery probe = breaker.pollHeld();
+				if(probe != null && !fQueue.offer(probe))
+				{
+					breaker.hold(probe);
+				}
+			}
+		}, breaker.getOpenTime());
+	}
+
+	private void succeeded(CircuitBreaker breaker)
+	{
+		breaker.onSuccess();
+
+		//release parked activities as far as the queue has room
+		Delivery held = breaker.pollHeld();
+		while(held != null)
+		{
+			if(!fQueue.offer(held))
+			{
+				breaker.hold(held);
+				break;
+			}
+			held = breaker.pollHeld();
+		}
+	}
+
+	private void complete(Delivery delivery)
+	{
+		if(fOutbox == null)
+		{
+			return;
+		}
+
+		try
+		{
+			fOutbox.complete(delivery.getOutboxId());
+		}
+		catch(Exception e)
+		{
+			//at worst it will be delivered again after a restart
+			fHandler.deliveryFailed(delivery, e);
+		}
+	}
+
+	private void recordLatency(Delivery delivery)
+	{
+		//latency from enqueueing to completion
+		final long latency = System.currentTimeMillis()
+			- delivery.getEnqueued();
+		fLatencySum.addAndGet(latency);
+
+		long max = fLatencyMax.get();
+		while(latency > max && !fLatencyMax.compareAndSet(max, latency))
+		{
+			max = fLatencyMax.get();
+		}
+
+		fMetrics.recordLag(delivery);
+	}
+
+	/**
+	 * Collects up to the configured number of activities, waiting at most
+	 * the configured time after the first one, and delivers them grouped
+	 * per user or all together for cross-user batches.
+	 */
+	private void collectAndDeliver(Delivery first) throws InterruptedException
+	{
+		final List<Delivery> collected = new ArrayList<Delivery>(fBatchSize);
+		collected.add(first);
+
+		final long deadline = System.currentTimeMillis() + fBatchTime;
+		fQueue.drainTo(collected, fBatchSize - 1);
+
+		try
+		{
+			while(collected.size() < fBatchSize)
+			{
+				final long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0)
+				{
+					break;
+				}
+
+				final Delivery next = fQueue.poll(remaining,
+					TimeUnit.MILLISECONDS);
+				if(next == null)
+				{
+					break;
+				}
+				collected.add(next);
+				fQueue.drainTo(collected, fBatchSize - collected.size());
+			}
+		}
+		catch(InterruptedException e)
+		{
+			//shutdown, which delivers what is queued once workers stopped
+			for(Delivery delivery : collected)
+			{
+				requeue(delivery);
+			}
+			throw e;
+		}
+
+		if(fCrossUser)
+		{
+			deliverBatch(collected);
+			return;
+		}
+
+		final Map<String, List<Delivery>> perUser =
+			new LinkedHashMap<String, List<Delivery>>();
+		for(Delivery delivery : collected)
+		{
+			List<Delivery> batch = perUser.get(delivery.getUser());
+			if(batch == null)
+			{
+				batch = new ArrayList<Delivery>();
+				perUser.put(delivery.getUser(), batch);
+			}
+			batch.add(delivery);
+		}
+
+		for(List<Delivery> batch : perUser.values())
+		{
+			if(fBatching)
+			{
+				deliverBatch(batch);
+			}
+			else
+			{
+				for(Delivery delivery : batch)
+				{
+					deliver(delivery);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops all workers, waiting for requests in progress, and delivers the
+	 * remaining activities on the calling thread, all within the configured
+	 * time. Whatever is left after that stays in the outbox for the next
+	 * start.
+	 */
+	public void shutdown()
+	{
+		fActive = false;
+
+		//pending retries and parked activities remain in the outbox
+		fRetry.shutdown();
+
+		for(Thread worker : fWorkers)
+		{
+			worker.interrupt();
+		}
+
+		final long deadline = System.currentTimeMillis() + fShutdownTime;
+
+		//the outbox and client are closed after this returns
+		try
+		{
+			for(Thread worker : fWorkers)
+			{
+				final long remaining = deadline - System.currentTimeMillis();
+				if(remaining > 0)
+				{
+					worker.join(remaining);
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		Delivery delivery = fQueue.poll();
+		while(delivery != null)
+		{
+			if(fBackpressure != Backpressure.SPILL || !spill(delivery))
+			{
+				if(System.currentTimeMillis() < deadline)
+				{
+					deliver(delivery);
+				}
+				else
+				{
+					fDropped.incrementAndGet();
+				}
+			}
+			delivery = fQueue.poll();
+		}
+
+		//retries that did not run and parked activities are not delivered
+		fDropped.addAndGet(fRetryPending.getAndSet(0));
+		for(CircuitBreaker breaker : fBreakers.values())
+		{
+			while(breaker.pollHeld() != null)
+			{
+				fDropped.incrementAndGet();
+			}
+		}
+	}
+
+	public int getDepth()
+	{
+		return fQueue.size();
+	}
+
+	public int getCapacity()
+	{
+		return fCapacity;
+	}
+
+	public long getEnqueuedCount()
+	{
+		return fEnqueued.get();
+	}
+
+	public long getDeliveredCount()
+	{
+		return fDelivered.get();
+	}
+
+	public long getFailedCount()
+	{
+		return fFailed.get();
+	}
+
+	public long getDroppedCount()
+	{
+		return fDropped.get();
+	}
+
+	public long getRetriedCount()
+	{
+		return fRetried.get();
+	}
+
+	/**
+	 * @return circuit breakers by endpoint
+	 */
+	public Map<String, CircuitBreaker> getBreakers()
+	{
+		return fBreakers;
+	}
+
+	public long getSpilledCount()
+	{
+		return fSpilled.get();
+	}
+
+	public long getAverageLatency()
+	{
+		final long count = fDelivered.get() + fFailed.get();
+		if(count == 0)
+		{
+			return 0;
+		}
+
+		return fLatencySum.get() / count;
+	}
+
+	public long getMaxLatency()
+	{
+		return fLatencyMax.get();
+	}
+
+	public boolean isBatching()
+	{
+		return fBatching;
+	}
+
+	/**
+	 * @return statistics for activities posted one per request
+	 */
+	public DeliveryStats getSingleStats()
+	{
+		return fSingleStats;
+	}
+
+	/**
+	 * @return statistics for activities posted in batches
+	 */
+	public DeliveryStats getBatchStats()
+	{
+		return fBatchStats;
+	}
+
+	private class Worker implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			while(fActive)
+			{
+				try
+				{
+					//refill from the spill file once there is room again
+					if(fSpillPending.get() > 0
+						&& fQueue.size() < fCapacity / 2)
+					{
+						restoreSpilled();
+					}
+
+					final Delivery delivery = fQueue.poll(POLL_INTERVAL,
+						TimeUnit.MILLISECONDS);
+					if(delivery == null)
+					{
+						continue;
+					}
+
+					if(fBatching)
+					{
+						collectAndDeliver(delivery);
+					}
+					else
+					{
+						deliver(delivery);
+					}
+				}
+				catch(InterruptedException e)
+				{
+					//shutdown
+				}
+			}
+		}
+	}
+}
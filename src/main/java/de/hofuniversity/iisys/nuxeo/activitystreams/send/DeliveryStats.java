@@ -0,0 +1,92 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.send;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput and latency counters for one delivery mode.
+ */
+public class DeliveryStats
+{
+	private final AtomicLong fActivities, fRequests, fRequestTime;
+	private final AtomicLong fLatencySum, fLatencyMax;
+
+	public DeliveryStats()
+	{
+		fActivities = new AtomicLong();
+		fRequests = new AtomicLong();
+		fRequestTime = new AtomicLong();
+		fLatencySum = new AtomicLong();
+		fLatencyMax = new AtomicLong();
+	}
+
+	/**
+	 * Records one successful request.
+	 *
+	 * @param deliveries activities delivered by the request
+	 * @param requestTime duration of the request in milliseconds
+	 */
+	public void record(Iterable<Delivery> deliveries, long requestTime)
+	{
+		final long now = System.currentTimeMillis();
+
+		fRequests.incrementAndGet();
+		fRequestTime.addAndGet(requestTime);
+
+		for(Delivery delivery : deliveries)
+		{
+			final long latency = now - delivery.getEnqueued();
+
+			fActivities.incrementAndGet();
+			fLatencySum.addAndGet(latency);
+
+			long max = fLatencyMax.get();
+			while(latency > max && !fLatencyMax.compareAndSet(max, latency))
+			{
+				max = fLatencyMax.get();
+			}
+		}
+	}
+
+	public long getActivityCount()
+	{
+		return fActivities.get();
+	}
+
+	public long getRequestCount()
+	{
+		return fRequests.get();
+	}
+
+	/**
+	 * @return activities delivered per second of request time
+	 */
+	public double getThroughput()
+	{
+		final long time = fRequestTime.get();
+		if(time == 0)
+		{
+			return 0;
+		}
+
+		return fActivities.get() * 1000.0 / time;
+	}
+
+	/**
+	 * @return average time from enqueueing to delivery in milliseconds
+	 */
+	public long getAverageLatency()
+	{
+		final long count = fActivities.get();
+		if(count == 0)
+		{
+			return 0;
+		}
+
+		return fLatencySum.get() / count;
+	}
+
+	public long getMaxLatency()
+	{
+		return fLatencyMax.get();
+	}
+}
@@ -0,0 +1,26 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.send;
+
+import java.util.List;
+
+public interface IDeliveryHandler
+{
+	public void deliver(Delivery delivery) throws Exception;
+
+	/**
+	 * Delivers several activities with a single request.
+	 *
+	 * @param batch activities to deliver, all for the same user unless
+	 *        cross-user batching is enabled
+	 * @return false if the server does not accept batches
+	 * @throws Exception if the request failed
+	 */
+	public boolean deliverBatch(List<Delivery> batch) throws Exception;
+
+	public void deliveryFailed(Delivery delivery, Exception e);
+
+	/**
+	 * @return key of the endpoint an activity is sent to, used to track its
+	 *         health
+	 */
+	public String getEndpoint(Delivery delivery);
+}
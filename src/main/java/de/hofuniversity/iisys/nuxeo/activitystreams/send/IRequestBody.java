@@ -0,0 +1,17 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.send;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Request entity written straight to a connection.
+ */
+public interface IRequestBody
+{
+	/**
+	 * @return exact length in bytes or -1 to send it chunked
+	 */
+	public long getLength();
+
+	public void writeTo(OutputStream out) throws IOException;
+}
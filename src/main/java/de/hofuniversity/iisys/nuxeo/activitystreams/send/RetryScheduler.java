@@ -0,0 +1,105 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.send;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules delayed delivery attempts with jittered exponential backoff.
+ * Pending retries are not persisted; the outbox covers them across
+ * restarts.
+ */
+public class RetryScheduler
+{
+	private static final String ATTEMPTS_PROP = "delivery.retry.attempts";
+	private static final String DELAY_PROP = "delivery.retry.delay";
+	private static final String MAX_DELAY_PROP = "delivery.retry.delay.max";
+
+	private final int fMaxAttempts;
+	private final long fBaseDelay, fMaxDelay;
+
+	private final ScheduledExecutorService fExecutor;
+
+	public RetryScheduler(Map<String, String> properties)
+	{
+		fMaxAttempts = Integer.parseInt(properties.get(ATTEMPTS_PROP));
+		fBaseDelay = Long.parseLong(properties.get(DELAY_PROP));
+		fMaxDelay = Long.parseLong(properties.get(MAX_DELAY_PROP));
+
+		fExecutor = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				final Thread thread = new Thread(r, "activitystreams-retry");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Decides whether a failed delivery is worth another attempt. Client
+	 * errors other than timeouts and throttling will fail again.
+	 *
+	 * @param delivery failed delivery
+	 * @param e cause of the failure
+	 * @return whether to retry
+	 */
+	public boolean shouldRetry(Delivery delivery, Exception e)
+	{
+		return isTransient(e) && delivery.getAttempts() < fMaxAttempts;
+	}
+
+	public boolean isTransient(Exception e)
+	{
+		if(e instanceof DeliveryException)
+		{
+			final int status = ((DeliveryException) e).getStatus();
+			return status >= 500 || status == 408 || status == 429;
+		}
+
+		return e instanceof IOException;
+	}
+
+	/**
+	 * @param attempts number of attempts made so far
+	 * @return delay before the next attempt, randomized between half and the
+	 *         full exponential delay
+	 */
+	public long getDelay(int attempts)
+	{
+		final int shift = Math.min(Math.max(attempts - 1, 0), 30);
+		final long delay = Math.min(fMaxDelay, fBaseDelay << shift);
+
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	public void schedule(Runnable task, long delay)
+	{
+		try
+		{
+			fExecutor.schedule(task, delay, TimeUnit.MILLISECONDS);
+		}
+		catch(RejectedExecutionException e)
+		{
+			//shut down, failures while draining the queue stay in the outbox
+		}
+	}
+
+	public int getMaxAttempts()
+	{
+		return fMaxAttempts;
+	}
+
+	public void shutdown()
+	{
+		fExecutor.shutdownNow();
+	}
+}
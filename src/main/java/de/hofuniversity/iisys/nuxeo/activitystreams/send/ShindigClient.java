@@ -0,0 +1,406 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.send;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Posts JSON to Shindig through HttpURLConnection, limiting the number of
+ * concurrent requests per host. Responses are always drained and closed so
+ * the JDK can keep the connections alive and reuse them; its keep-alive
+ * cache holds up to http.maxConnections (default 5) idle connections per
+ * host.
+ * New connections and handshakes can only be observed for HTTPS, through
+ * the socket factory; HttpURLConnection offers no hook for plain sockets,
+ * so connection reuse is only reported for HTTPS requests.
+ */
+public class ShindigClient
+{
+	private static final String MAX_CONNS_PROP = "delivery.http.connections";
+	private static final String CONNECT_TIMEOUT_PROP =
+			"delivery.http.connect.timeout";
+	private static final String READ_TIMEOUT_PROP =
+			"delivery.http.read.timeout";
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private final int fMaxConnections;
+	private final int fConnectTimeout, fReadTimeout;
+
+	private final Map<String, Semaphore> fPermits;
+
+	//the same instance for all requests, connections are cached per factory
+	private final CountingSocketFactory fSocketFactory;
+
+	private final AtomicLong fRequests, fSecureRequests;
+
+	public ShindigClient(Map<String, String> properties)
+	{
+		fMaxConnections = Integer.parseInt(properties.get(MAX_CONNS_PROP));
+		fConnectTimeout = Integer.parseInt(properties.get(
+			CONNECT_TIMEOUT_PROP));
+		fReadTimeout = Integer.parseInt(properties.get(READ_TIMEOUT_PROP));
+
+		fPermits = new ConcurrentHashMap<String, Semaphore>();
+
+		fSocketFactory = new CountingSocketFactory(
+			HttpsURLConnection.getDefaultSSLSocketFactory());
+
+		fRequests = new AtomicLong();
+		fSecureRequests = new AtomicLong();
+	}
+
+	/**
+	 * Posts a JSON document and drains the response.
+	 *
+	 * @param url target URL
+	 * @param body UTF-8 encoded JSON
+	 * @return HTTP status code of a successful response
+	 * @throws DeliveryException if the server answered with an error status
+	 * @throws IOException if the request could not be completed
+	 */
+	public int post(String url, final byte[] body) throws IOException
+	{
+		return post(url, new IRequestBody()
+		{
+			@Override
+			public long getLength()
+			{
+				return body.length;
+			}
+
+			@Override
+			public void writeTo(OutputStream out) throws IOException
+			{
+				out.write(body);
+			}
+		});
+	}
+
+	/**
+	 * Posts a JSON document written directly to the connection, with a
+	 * Content-Length header if its length is known and chunked otherwise.
+	 *
+	 * @param url target URL
+	 * @param body UTF-8 encoded JSON
+	 * @return HTTP status code of a successful response
+	 * @throws DeliveryException if the server answered with an error status
+	 * @throws IOException if the request could not be completed
+	 */
+	public int post(String url, IRequestBody body) throws IOException
+	{
+		final URL target = new URL(url);
+		final Semaphore permits = getPermits(target);
+
+		fRequests.incrementAndGet();
+
+		try
+		{
+			if(!permits.tryAcquire(fConnectTimeout, TimeUnit.MILLISECONDS))
+			{
+				throw new IOException("too many concurrent requests to "
+					+ target.getHost());
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted waiting for a connection");
+		}
+
+		try
+		{
+			final int status = exchange(target, body);
+			if(status >= 400)
+			{
+				throw new DeliveryException(url, status);
+			}
+
+			return status;
+		}
+		finally
+		{
+			permits.release();
+		}
+	}
+
+	private Semaphore getPermits(URL target)
+	{
+		final String key = target.getProtocol() + "://" + target.getAuthority();
+
+		Semaphore permits = fPermits.get(key);
+		if(permits == null)
+		{
+			synchronized(fPermits)
+			{
+				permits = fPermits.get(key);
+				if(permits == null)
+				{
+					permits = new Semaphore(fMaxConnections);
+					fPermits.put(key, permits);
+				}
+			}
+		}
+
+		return permits;
+	}
+
+	private int exchange(URL target, IRequestBody body) throws IOException
+	{
+		final HttpURLConnection connection =
+			(HttpURLConnection) target.openConnection();
+
+		if(connection instanceof HttpsURLConnection)
+		{
+			((HttpsURLConnection) connection).setSSLSocketFactory(
+				fSocketFactory);
+			fSecureRequests.incrementAndGet();
+		}
+
+		connection.setRequestMethod("POST");
+		connection.setDoInput(true);
+		connection.setDoOutput(true);
+		connection.setUseCaches(false);
+		connection.setConnectTimeout(fConnectTimeout);
+		connection.setReadTimeout(fReadTimeout);
+		connection.setRequestProperty("Content-Type",
+			"application/json; charset=UTF-8");
+
+		final long length = body.getLength();
+		if(length >= 0)
+		{
+			connection.setFixedLengthStreamingMode(length);
+		}
+		else
+		{
+			connection.setChunkedStreamingMode(CHUNK_SIZE);
+		}
+
+		try
+		{
+			final OutputStream out = connection.getOutputStream();
+			body.writeTo(out);
+			out.close();
+
+			final int status = connection.getResponseCode();
+
+			//error bodies have to be drained as well to keep the connection
+			drain(status >= 400 ? connection.getErrorStream()
+				: connection.getInputStream());
+
+			return status;
+		}
+		catch(IOException e)
+		{
+			//the connection is in an unknown state, don't reuse it
+			connection.disconnect();
+			throw e;
+		}
+	}
+
+	private void drain(InputStream in) throws IOException
+	{
+		if(in == null)
+		{
+			return;
+		}
+
+		try
+		{
+			final byte[] buffer = new byte[CHUNK_SIZE];
+			while(in.read(buffer) >= 0)
+			{
+				//discard
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Idle connections are owned by the JDK's keep-alive cache and closed
+	 * by it, nothing to release here.
+	 */
+	public void shutdown()
+	{
+	}
+
+	public int getMaxConnections()
+	{
+		return fMaxConnections * Math.max(1, fPermits.size());
+	}
+
+	/**
+	 * @return number of requests in progress
+	 */
+	public int getLeasedConnections()
+	{
+		int leased = 0;
+		for(Semaphore permits : fPermits.values())
+		{
+			leased += fMaxConnections - permits.availablePermits();
+		}
+
+		return leased;
+	}
+
+	public double getUtilization()
+	{
+		return (double) getLeasedConnections() / getMaxConnections();
+	}
+
+	public long getRequestCount()
+	{
+		return fRequests.get();
+	}
+
+	/**
+	 * @return number of HTTPS requests
+	 */
+	public long getSecureRequestCount()
+	{
+		return fSecureRequests.get();
+	}
+
+	/**
+	 * @return number of HTTPS connections opened
+	 */
+	public long getConnectionCount()
+	{
+		return fSocketFactory.fConnections.get();
+	}
+
+	/**
+	 * @return number of completed TLS handshakes, including renegotiations
+	 */
+	public long getHandshakeCount()
+	{
+		return fSocketFactory.fHandshakes.get();
+	}
+
+	/**
+	 * @return share of HTTPS requests sent over an existing connection
+	 */
+	public double getReuseRatio()
+	{
+		final long requests = fSecureRequests.get();
+		if(requests == 0)
+		{
+			return 0;
+		}
+
+		return Math.max(0, 1 - (double) getConnectionCount() / requests);
+	}
+
+	/**
+	 * Counts the TLS sockets and handshakes of the default factory.
+	 */
+	private static final class CountingSocketFactory extends SSLSocketFactory
+	{
+		private final SSLSocketFactory fDelegate;
+
+		private final AtomicLong fConnections, fHandshakes;
+
+		private final HandshakeCompletedListener fListener;
+
+		public CountingSocketFactory(SSLSocketFactory delegate)
+		{
+			fDelegate = delegate;
+
+			fConnections = new AtomicLong();
+			fHandshakes = new AtomicLong();
+
+			fListener = new HandshakeCompletedListener()
+			{
+				@Override
+				public void handshakeCompleted(HandshakeCompletedEvent event)
+				{
+					fHandshakes.incrementAndGet();
+				}
+			};
+		}
+
+		private Socket count(Socket socket)
+		{
+			if(socket instanceof SSLSocket)
+			{
+				fConnections.incrementAndGet();
+				((SSLSocket) socket).addHandshakeCompletedListener(fListener);
+			}
+
+			return socket;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites()
+		{
+			return fDelegate.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites()
+		{
+			return fDelegate.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket() throws IOException
+		{
+			return count(fDelegate.createSocket());
+		}
+
+		@Override
+		public Socket createSocket(Socket socket, String host, int port,
+			boolean autoClose) throws IOException
+		{
+			return count(fDelegate.createSocket(socket, host, port,
+				autoClose));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException
+		{
+			return count(fDelegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port,
+			InetAddress localHost, int localPort) throws IOException
+		{
+			return count(fDelegate.createSocket(host, port, localHost,
+				localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port)
+			throws IOException
+		{
+			return count(fDelegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port,
+			InetAddress localAddress, int localPort) throws IOException
+		{
+			return count(fDelegate.createSocket(address, port, localAddress,
+				localPort));
+		}
+	}
+}
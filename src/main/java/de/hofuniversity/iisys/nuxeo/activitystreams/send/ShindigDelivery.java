@@ -0,0 +1,207 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.send;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.ActivityLogger;
+import de.hofuniversity.iisys.nuxeo.activitystreams.json.JsonBuffer;
+
+/**
+ * Posts queued activities to Shindig's activity stream REST endpoint,
+ * either one by one or as JSON arrays.
+ */
+public class ShindigDelivery implements IDeliveryHandler
+{
+	private static final String SHINDIG_URL_PROP = "shindig.url";
+	private static final String BATCH_URL_PROP = "delivery.batch.url";
+	private static final String CHUNKED_PROP = "delivery.batch.chunked";
+
+	private static final String ACT_STR_FRAG = "social/rest/activitystreams/";
+
+	private static final byte[] USER_START = JsonBuffer.encode("{\"userId\":");
+	private static final byte[] ACTIVITY_START = JsonBuffer.encode(
+		",\"activity\":");
+
+	private final String fShindigUrl;
+	private final String fBatchUrl;
+
+	private final boolean fChunked;
+
+	private final ShindigClient fClient;
+
+	private final ActivityLogger fActLogger;
+
+	public ShindigDelivery(Map<String, String> properties,
+		ShindigClient client, ActivityLogger actLogger)
+	{
+		fShindigUrl = properties.get(SHINDIG_URL_PROP);
+
+		String batchUrl = properties.get(BATCH_URL_PROP);
+		if(batchUrl != null && !batchUrl.isEmpty())
+		{
+			fBatchUrl = fShindigUrl + batchUrl;
+		}
+		else
+		{
+			fBatchUrl = null;
+		}
+
+		fChunked = Boolean.parseBoolean(properties.get(CHUNKED_PROP));
+
+		fClient = client;
+		fActLogger = actLogger;
+	}
+
+	@Override
+	public void deliver(Delivery delivery) throws Exception
+	{
+		fClient.post(getStreamUrl(delivery.getUser()), delivery.getPayload());
+	}
+
+	@Override
+	public boolean deliverBatch(List<Delivery> batch) throws Exception
+	{
+		final String url;
+		if(fBatchUrl != null)
+		{
+			//cross-user batch, every entry names its stream
+			url = fBatchUrl;
+		}
+		else
+		{
+			url = getStreamUrl(batch.get(0).getUser());
+		}
+
+		final BatchBody body = new BatchBody(batch, fBatchUrl != null,
+			fChunked);
+
+		try
+		{
+			fClient.post(url, body);
+		}
+		catch(DeliveryException e)
+		{
+			if(isRejection(e.getStatus()))
+			{
+				logMessage("batch rejected by Shindig (" + e.getMessage()
+					+ "), falling back to single requests");
+				return false;
+			}
+
+			throw e;
+		}
+
+		return true;
+	}
+
+	private boolean isRejection(int status)
+	{
+		//the endpoint does not understand arrays or is not there at all, a
+		//plain bad request may just be one broken activity
+		return status == 404 || status == 405
+			|| status == 413 || status == 415 || status == 422
+			|| status == 501;
+	}
+
+	@Override
+	public void deliveryFailed(Delivery delivery, Exception e)
+	{
+		//the event thread is long gone, just log
+		fActLogger.logError("delivery to " + delivery.getUser() + " failed: "
+			+ e.getMessage());
+	}
+
+	@Override
+	public String getEndpoint(Delivery delivery)
+	{
+		//single requests and batches all go to the same server
+		return fShindigUrl;
+	}
+
+	private String getStreamUrl(String user)
+	{
+		return fShindigUrl + ACT_STR_FRAG + user + "/@self";
+	}
+
+	private void logMessage(String message)
+	{
+		try
+		{
+			fActLogger.logString(message);
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes a batch as a JSON array straight from the encoded payloads,
+	 * optionally wrapping each one in an envelope naming its user.
+	 */
+	private static class BatchBody implements IRequestBody
+	{
+		private final List<Delivery> fBatch;
+		private final byte[][] fUsers;
+		private final long fLength;
+
+		public BatchBody(List<Delivery> batch, boolean envelopes,
+			boolean chunked)
+		{
+			fBatch = batch;
+			fUsers = envelopes ? new byte[batch.size()][] : null;
+
+			//brackets and separating commas
+			long length = 1 + batch.size();
+			for(int i = 0; i < batch.size(); ++i)
+			{
+				final Delivery delivery = batch.get(i);
+				length += delivery.getPayload().length;
+
+				if(fUsers != null)
+				{
+					fUsers[i] = JsonBuffer.quote(delivery.getUser());
+					length += USER_START.length + fUsers[i].length
+						+ ACTIVITY_START.length + 1;
+				}
+			}
+
+			fLength = chunked ? -1 : length;
+		}
+
+		@Override
+		public long getLength()
+		{
+			return fLength;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException
+		{
+			out.write('[');
+			for(int i = 0; i < fBatch.size(); ++i)
+			{
+				if(i > 0)
+				{
+					out.write(',');
+				}
+
+				if(fUsers != null)
+				{
+					out.write(USER_START);
+					out.write(fUsers[i]);
+					out.write(ACTIVITY_START);
+					out.write(fBatch.get(i).getPayload());
+					out.write('}');
+				}
+				else
+				{
+					out.write(fBatch.get(i).getPayload());
+				}
+			}
+			out.write(']');
+		}
+	}
+}
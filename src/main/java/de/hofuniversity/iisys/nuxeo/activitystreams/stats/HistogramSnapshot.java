@@ -0,0 +1,78 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.stats;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Summary of a LatencyHistogram at one point in time, in microseconds.
+ */
+public class HistogramSnapshot
+{
+	private final long fCount;
+	private final double fMean;
+	private final long fP50, fP90, fP99, fP999, fMax;
+
+	public HistogramSnapshot(LatencyHistogram histogram)
+	{
+		this(histogram.getCount(), histogram.getMean(),
+			histogram.getPercentile(0.5), histogram.getPercentile(0.9),
+			histogram.getPercentile(0.99), histogram.getPercentile(0.999),
+			histogram.getMax());
+	}
+
+	@ConstructorProperties({"count", "mean", "p50", "p90", "p99", "p999",
+		"max"})
+	public HistogramSnapshot(long count, double mean, long p50, long p90,
+		long p99, long p999, long max)
+	{
+		fCount = count;
+		fMean = mean;
+		fP50 = p50;
+		fP90 = p90;
+		fP99 = p99;
+		fP999 = p999;
+		fMax = max;
+	}
+
+	public long getCount()
+	{
+		return fCount;
+	}
+
+	public double getMean()
+	{
+		return fMean;
+	}
+
+	public long getP50()
+	{
+		return fP50;
+	}
+
+	public long getP90()
+	{
+		return fP90;
+	}
+
+	public long getP99()
+	{
+		return fP99;
+	}
+
+	public long getP999()
+	{
+		return fP999;
+	}
+
+	public long getMax()
+	{
+		return fMax;
+	}
+
+	@Override
+	public String toString()
+	{
+		return fCount + " calls, mean " + (long) fMean + ", p50 " + fP50
+			+ ", p90 " + fP90 + ", p99 " + fP99 + ", p99.9 " + fP999
+			+ ", max " + fMax + " us";
+	}
+}
@@ -0,0 +1,18 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.stats;
+
+/**
+ * Notified when an activity reaches its stream later than the configured
+ * limit after its event. Calls are throttled per path.
+ */
+public interface ILagAlert
+{
+	/**
+	 * @param path path the activity took
+	 * @param verb verb of the activity, null if unknown
+	 * @param lag time from the earliest event to delivery in milliseconds
+	 * @param suppressed number of alerts on this path suppressed since the
+	 *        last call
+	 */
+	public void lagExceeded(LagPath path, String verb, long lag,
+		int suppressed);
+}
@@ -0,0 +1,25 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.stats;
+
+/**
+ * Ways an activity takes from the event to the user's stream, each with its
+ * own delivery lag.
+ */
+public enum LagPath
+{
+	/** queued right after the event */
+	DIRECT,
+	/** held back and merged with other documents */
+	MERGED,
+	/** tag changes collected over a window */
+	TAG,
+	/** delivered after at least one failed attempt */
+	RETRIED;
+
+	/**
+	 * @return lower case name used for MBeans
+	 */
+	public String getLabel()
+	{
+		return name().toLowerCase();
+	}
+}
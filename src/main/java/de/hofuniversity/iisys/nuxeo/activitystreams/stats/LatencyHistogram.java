@@ -0,0 +1,135 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram in the style of HdrHistogram: every power of two is
+ * split into 32 buckets, so values are kept with about 3% precision from
+ * single units up to the whole long range. Recording only increments
+ * atomic counters and never locks.
+ */
+public class LatencyHistogram
+{
+	//sub-buckets per power of two
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	//linear range below 2 * SUB_COUNT, then one row per power of two
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray fCounts;
+	private final AtomicLong fCount, fSum, fMax;
+
+	public LatencyHistogram()
+	{
+		fCounts = new AtomicLongArray(BUCKETS);
+		fCount = new AtomicLong();
+		fSum = new AtomicLong();
+		fMax = new AtomicLong();
+	}
+
+	/**
+	 * @param value value to record, negative values count as 0
+	 */
+	public void record(long value)
+	{
+		if(value < 0)
+		{
+			value = 0;
+		}
+
+		fCounts.incrementAndGet(index(value));
+		fCount.incrementAndGet();
+		fSum.addAndGet(value);
+
+		long max = fMax.get();
+		while(value > max && !fMax.compareAndSet(max, value))
+		{
+			max = fMax.get();
+		}
+	}
+
+	private static int index(long value)
+	{
+		if(value < 2 * SUB_COUNT)
+		{
+			return (int) value;
+		}
+
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return shift * SUB_COUNT + (int) (value >>> shift);
+	}
+
+	private static long highestValue(int index)
+	{
+		if(index < 2 * SUB_COUNT)
+		{
+			return index;
+		}
+
+		final int shift = index / SUB_COUNT - 1;
+		final long sub = index % SUB_COUNT + SUB_COUNT;
+		return (sub << shift) + (1L << shift) - 1;
+	}
+
+	/**
+	 * @param quantile requested quantile between 0 and 1
+	 * @return highest value equivalent to the one at the quantile, 0 if
+	 *         nothing has been recorded
+	 */
+	public long getPercentile(double quantile)
+	{
+		final long count = fCount.get();
+		if(count == 0)
+		{
+			return 0;
+		}
+
+		final long rank = Math.max(1, (long) Math.ceil(quantile * count));
+
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; ++i)
+		{
+			seen += fCounts.get(i);
+			if(seen >= rank)
+			{
+				return Math.min(highestValue(i), fMax.get());
+			}
+		}
+
+		//counts recorded concurrently after reading the total
+		return fMax.get();
+	}
+
+	public long getCount()
+	{
+		return fCount.get();
+	}
+
+	public double getMean()
+	{
+		final long count = fCount.get();
+		return count > 0 ? (double) fSum.get() / count : 0;
+	}
+
+	public long getMax()
+	{
+		return fMax.get();
+	}
+
+	/**
+	 * Clears all counts. Values recorded concurrently may be partially
+	 * lost.
+	 */
+	public void reset()
+	{
+		for(int i = 0; i < BUCKETS; ++i)
+		{
+			fCounts.set(i, 0);
+		}
+		fCount.set(0);
+		fSum.set(0);
+		fMax.set(0);
+	}
+}
@@ -0,0 +1,107 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.stats;
+
+import java.util.Map;
+
+/**
+ * Counters of all live senders, summed up.
+ */
+public interface PipelineMXBean
+{
+	public long getEventCount();
+
+	public long getFilterAcceptedCount();
+
+	public Map<String, Long> getFilterDroppedCounts();
+
+	public int getRouteCount();
+
+	/**
+	 * @return number of events each routing rule applied to
+	 */
+	public Map<String, Long> getRuleHitCounts();
+
+	public long getRouteReloadCount();
+
+	public long getRouteFailedReloadCount();
+
+	public long getLoggerWrittenCount();
+
+	public long getLoggerDroppedCount();
+
+	public String getCaptureLevel();
+
+	/**
+	 * @param level OFF, FAILURES or ALL
+	 */
+	public void setCaptureLevel(String level);
+
+	public double getCaptureRate();
+
+	/**
+	 * @param rate share of events captured at the full level
+	 */
+	public void setCaptureRate(double rate);
+
+	/**
+	 * @param eventName event to sample differently
+	 * @param rate share of events captured, negative to use the default
+	 */
+	public void setEventCaptureRate(String eventName, double rate);
+
+	public long getCaptureSampledCount();
+
+	public long getCaptureSkippedCount();
+
+	public long getCaptureReloadCount();
+
+	public long getBundleCount();
+
+	public long getBundleEventCount();
+
+	public long getCollapsedCount();
+
+	/**
+	 * @return number of flushed aggregation windows by "type/event"
+	 */
+	public Map<String, Long> getWindowFlushCounts();
+
+	public int getQueueDepth();
+
+	public long getEnqueuedCount();
+
+	public long getDeliveredCount();
+
+	public long getFailedCount();
+
+	public long getDroppedCount();
+
+	public long getRetriedCount();
+
+	public double getUserCacheHitRate();
+
+	public long getHttpRequestCount();
+
+	/**
+	 * @return number of HTTPS connections opened, plain HTTP connections
+	 *         cannot be observed
+	 */
+	public long getHttpConnectionCount();
+
+	public long getHttpHandshakeCount();
+
+	/**
+	 * @return share of HTTPS requests sent over an existing connection
+	 */
+	public double getHttpReuseRatio();
+
+	/**
+	 * @return share of the per-host request limits in use
+	 */
+	public double getHttpUtilization();
+
+	/**
+	 * @return number of deliveries later than metrics.lag.alert, including
+	 *         suppressed alerts
+	 */
+	public long getLagAlertCount();
+}
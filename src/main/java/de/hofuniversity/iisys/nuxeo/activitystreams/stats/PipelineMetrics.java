@@ -0,0 +1,326 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.stats;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.ActivitySender;
+import de.hofuniversity.iisys.nuxeo.activitystreams.send.Delivery;
+
+/**
+ * Stage timers and delivery lags shared by all senders, and the registry of
+ * live senders whose statistics are published over JMX. Inside Nuxeo that is
+ * the component's sender; benchmarks and tools may run further ones.
+ */
+public class PipelineMetrics
+{
+	private static final String ENABLED_PROP = "metrics.enabled";
+	private static final String LAG_ALERT_PROP = "metrics.lag.alert";
+	private static final String LAG_INTERVAL_PROP =
+		"metrics.lag.alert.interval";
+
+	private static final long DEF_LAG_ALERT = 120000;
+	private static final long DEF_LAG_INTERVAL = 60000;
+
+	private static final String DOMAIN =
+		"de.hofuniversity.iisys.nuxeo.activitystreams";
+
+	private static PipelineMetrics fInstance;
+
+	private final boolean fEnabled;
+
+	private final StageTimer[] fTimers;
+	private final StageTimer[] fLags;
+
+	private final long fLagAlert, fLagInterval;
+	private final List<ILagAlert> fLagAlerts;
+	private final AtomicLong[] fLastAlerts;
+	private final AtomicInteger[] fSuppressed;
+	private final AtomicLong fAlertCount;
+
+	private final List<ActivitySender> fSenders;
+
+	private final List<ObjectName> fRegistered;
+
+	/**
+	 * @param properties configuration, only used by the first caller
+	 * @return shared instance
+	 */
+	public static synchronized PipelineMetrics getInstance(
+		Map<String, String> properties)
+	{
+		if(fInstance == null)
+		{
+			fInstance = new PipelineMetrics(properties);
+		}
+
+		return fInstance;
+	}
+
+	/**
+	 * @return shared instance or null if none has been created yet
+	 */
+	public static synchronized PipelineMetrics getInstance()
+	{
+		return fInstance;
+	}
+
+	public PipelineMetrics(Map<String, String> properties)
+	{
+		final String enabled = properties.get(ENABLED_PROP);
+		fEnabled = enabled == null || Boolean.parseBoolean(enabled);
+
+		fTimers = new StageTimer[Stage.values().length];
+		for(Stage stage : Stage.values())
+		{
+			fTimers[stage.ordinal()] = new StageTimer(stage.getLabel());
+		}
+
+		final int paths = LagPath.values().length;
+		fLags = new StageTimer[paths];
+		fLastAlerts = new AtomicLong[paths];
+		fSuppressed = new AtomicInteger[paths];
+		for(LagPath path : LagPath.values())
+		{
+			fLags[path.ordinal()] = new StageTimer(path.getLabel());
+			fLastAlerts[path.ordinal()] = new AtomicLong();
+			fSuppressed[path.ordinal()] = new AtomicInteger();
+		}
+
+		fLagAlert = getLong(properties, LAG_ALERT_PROP, DEF_LAG_ALERT);
+		fLagInterval = getLong(properties, LAG_INTERVAL_PROP,
+			DEF_LAG_INTERVAL);
+		fLagAlerts = new CopyOnWriteArrayList<ILagAlert>();
+		fAlertCount = new AtomicLong();
+
+		fSenders = new CopyOnWriteArrayList<ActivitySender>();
+		fRegistered = new ArrayList<ObjectName>();
+	}
+
+	/**
+	 * @return start time to pass to record, 0 if timing is disabled
+	 */
+	public long start()
+	{
+		return fEnabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Records the time since the given start.
+	 *
+	 * @param stage stage that was timed
+	 * @param event name of the event, null if unknown at this stage
+	 * @param verb verb of the activity, null if unknown at this stage
+	 * @param start value returned by start
+	 */
+	public void record(Stage stage, String event, String verb, long start)
+	{
+		if(fEnabled)
+		{
+			fTimers[stage.ordinal()].record(event, verb,
+				System.nanoTime() - start);
+		}
+	}
+
+	private static long getLong(Map<String, String> properties, String key,
+		long def)
+	{
+		final String value = properties.get(key);
+		if(value == null || value.isEmpty())
+		{
+			return def;
+		}
+
+		try
+		{
+			return Long.parseLong(value.trim());
+		}
+		catch(NumberFormatException e)
+		{
+			return def;
+		}
+	}
+
+	/**
+	 * Records the time from the earliest event behind a delivered activity
+	 * to now, under its path or as retried if it failed before.
+	 *
+	 * @param delivery successfully delivered activity
+	 */
+	public void recordLag(Delivery delivery)
+	{
+		//recovered from the outbox or not created from events
+		if(!fEnabled || delivery.getEventTime() <= 0
+			|| delivery.getPath() == null)
+		{
+			return;
+		}
+
+		final LagPath path = delivery.getAttempts() > 0 ? LagPath.RETRIED
+			: delivery.getPath();
+		final long lag = Math.max(0, System.currentTimeMillis()
+			- delivery.getEventTime());
+
+		fLags[path.ordinal()].record(null, delivery.getVerb(),
+			TimeUnit.MILLISECONDS.toNanos(lag));
+
+		if(fLagAlert > 0 && lag > fLagAlert)
+		{
+			alert(path, delivery.getVerb(), lag);
+		}
+	}
+
+	private void alert(LagPath path, String verb, long lag)
+	{
+		fAlertCount.incrementAndGet();
+
+		//one alert per path and interval, count the rest
+		final AtomicLong last = fLastAlerts[path.ordinal()];
+		final long now = System.currentTimeMillis();
+		final long previous = last.get();
+		if(now - previous < fLagInterval
+			|| !last.compareAndSet(previous, now))
+		{
+			fSuppressed[path.ordinal()].incrementAndGet();
+			return;
+		}
+
+		final int suppressed = fSuppressed[path.ordinal()].getAndSet(0);
+		for(ILagAlert alert : fLagAlerts)
+		{
+			try
+			{
+				alert.lagExceeded(path, verb, lag, suppressed);
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public boolean isEnabled()
+	{
+		return fEnabled;
+	}
+
+	public StageTimer getTimer(Stage stage)
+	{
+		return fTimers[stage.ordinal()];
+	}
+
+	public StageTimer getLag(LagPath path)
+	{
+		return fLags[path.ordinal()];
+	}
+
+	public void addLagAlert(ILagAlert alert)
+	{
+		fLagAlerts.add(alert);
+	}
+
+	public void removeLagAlert(ILagAlert alert)
+	{
+		fLagAlerts.remove(alert);
+	}
+
+	/**
+	 * @return number of deliveries later than the alert limit
+	 */
+	public long getLagAlertCount()
+	{
+		return fAlertCount.get();
+	}
+
+	public void addSender(ActivitySender sender)
+	{
+		fSenders.add(sender);
+	}
+
+	public void removeSender(ActivitySender sender)
+	{
+		fSenders.remove(sender);
+	}
+
+	/**
+	 * @return senders that have not been shut down
+	 */
+	public List<ActivitySender> getSenders()
+	{
+		return fSenders;
+	}
+
+	/**
+	 * Publishes the pipeline statistics and one MBean per stage and delivery
+	 * path on the platform MBean server.
+	 */
+	public synchronized void registerMBeans()
+	{
+		if(!fRegistered.isEmpty())
+		{
+			return;
+		}
+
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			register(server, new ObjectName(DOMAIN + ":type=Pipeline"),
+				new PipelineStats(this));
+
+			for(StageTimer timer : fTimers)
+			{
+				register(server, new ObjectName(DOMAIN + ":type=Stage,name="
+					+ timer.getName()), timer);
+			}
+
+			for(StageTimer lag : fLags)
+			{
+				register(server, new ObjectName(DOMAIN + ":type=Lag,name="
+					+ lag.getName()), lag);
+			}
+		}
+		catch(Exception e)
+		{
+			//statistics are optional, keep running without them
+			e.printStackTrace();
+		}
+	}
+
+	private void register(MBeanServer server, ObjectName name, Object bean)
+		throws Exception
+	{
+		//left over from a previous deployment
+		if(server.isRegistered(name))
+		{
+			server.unregisterMBean(name);
+		}
+
+		server.registerMBean(bean, name);
+		fRegistered.add(name);
+	}
+
+	public synchronized void unregisterMBeans()
+	{
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for(ObjectName name : fRegistered)
+		{
+			try
+			{
+				server.unregisterMBean(name);
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+		fRegistered.clear();
+	}
+}
@@ -0,0 +1,412 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.stats;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import de.hofuniversity.iisys.nuxeo.activitystreams.ActivitySender;
+import de.hofuniversity.iisys.nuxeo.activitystreams.CapturePolicy;
+import de.hofuniversity.iisys.nuxeo.activitystreams.UserNameCache;
+import de.hofuniversity.iisys.nuxeo.activitystreams.route.RoutingRule;
+import de.hofuniversity.iisys.nuxeo.activitystreams.send.ShindigClient;
+
+/**
+ * Reads the statistics of the filter, routing, logger, capture policy,
+ * collapser, aggregation windows, delivery queue and HTTP client of all
+ * live senders.
+ * Settings shared by all senders are taken from the first one and changed
+ * on all of them.
+ */
+public class PipelineStats implements PipelineMXBean
+{
+	private final PipelineMetrics fMetrics;
+
+	public PipelineStats(PipelineMetrics metrics)
+	{
+		fMetrics = metrics;
+	}
+
+	private ActivitySender getFirst()
+	{
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			return sender;
+		}
+		return null;
+	}
+
+	private static void add(Map<String, Long> sums, Map<String, Long> counts)
+	{
+		for(Entry<String, Long> entry : counts.entrySet())
+		{
+			final Long sum = sums.get(entry.getKey());
+			sums.put(entry.getKey(), sum != null
+				? sum + entry.getValue() : entry.getValue());
+		}
+	}
+
+	@Override
+	public long getEventCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getEventCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getFilterAcceptedCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getEventFilter().getAcceptedCount();
+		}
+		return count;
+	}
+
+	@Override
+	public Map<String, Long> getFilterDroppedCounts()
+	{
+		final Map<String, Long> counts = new TreeMap<String, Long>();
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			add(counts, sender.getEventFilter().getDroppedCounts());
+		}
+		return counts;
+	}
+
+	@Override
+	public int getRouteCount()
+	{
+		final ActivitySender sender = getFirst();
+		return sender != null
+			? sender.getRouter().getTable().getRouteCount() : 0;
+	}
+
+	@Override
+	public Map<String, Long> getRuleHitCounts()
+	{
+		final Map<String, Long> counts = new TreeMap<String, Long>();
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			final Map<String, Long> hits = new TreeMap<String, Long>();
+			for(RoutingRule rule : sender.getRouter().getTable().getRules())
+			{
+				hits.put(rule.toString(), rule.getHitCount());
+			}
+			add(counts, hits);
+		}
+		return counts;
+	}
+
+	@Override
+	public long getRouteReloadCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getRouter().getReloadCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getRouteFailedReloadCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getRouter().getFailedReloadCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getLoggerWrittenCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getActivityLogger().getWrittenCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getLoggerDroppedCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getActivityLogger().getDroppedCount();
+		}
+		return count;
+	}
+
+	@Override
+	public String getCaptureLevel()
+	{
+		final ActivitySender sender = getFirst();
+		return sender != null ? sender.getActivityLogger().getPolicy()
+			.getLevel().name() : null;
+	}
+
+	@Override
+	public void setCaptureLevel(String level)
+	{
+		final CapturePolicy.Level value =
+			CapturePolicy.Level.valueOf(level.trim().toUpperCase());
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			sender.getActivityLogger().getPolicy().setLevel(value);
+		}
+	}
+
+	@Override
+	public double getCaptureRate()
+	{
+		final ActivitySender sender = getFirst();
+		return sender != null ? sender.getActivityLogger().getPolicy()
+			.getDefaultRate() : 0;
+	}
+
+	@Override
+	public void setCaptureRate(double rate)
+	{
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			sender.getActivityLogger().getPolicy().setDefaultRate(rate);
+		}
+	}
+
+	@Override
+	public void setEventCaptureRate(String eventName, double rate)
+	{
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			sender.getActivityLogger().getPolicy().setRate(eventName, rate);
+		}
+	}
+
+	@Override
+	public long getCaptureSampledCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getActivityLogger().getPolicy().getSampledCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getCaptureSkippedCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getActivityLogger().getPolicy().getSkippedCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getCaptureReloadCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getActivityLogger().getPolicy().getReloadCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getBundleCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getEventCollapser().getBundleCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getBundleEventCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getEventCollapser().getEventCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getCollapsedCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getEventCollapser().getCollapsedCount();
+		}
+		return count;
+	}
+
+	@Override
+	public Map<String, Long> getWindowFlushCounts()
+	{
+		final Map<String, Long> counts = new TreeMap<String, Long>();
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			add(counts, sender.getAggregator().getWindows().getFlushCounts());
+		}
+		return counts;
+	}
+
+	@Override
+	public int getQueueDepth()
+	{
+		int depth = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			depth += sender.getDeliveryQueue().getDepth();
+		}
+		return depth;
+	}
+
+	@Override
+	public long getEnqueuedCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getDeliveryQueue().getEnqueuedCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getDeliveredCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getDeliveryQueue().getDeliveredCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getFailedCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getDeliveryQueue().getFailedCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getDroppedCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getDeliveryQueue().getDroppedCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getRetriedCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getDeliveryQueue().getRetriedCount();
+		}
+		return count;
+	}
+
+	@Override
+	public double getUserCacheHitRate()
+	{
+		//shared by all senders
+		final UserNameCache cache = UserNameCache.getInstance();
+		return cache != null ? cache.getHitRate() : 0;
+	}
+
+	@Override
+	public long getHttpRequestCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getHttpClient().getRequestCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getHttpConnectionCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getHttpClient().getConnectionCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getHttpHandshakeCount()
+	{
+		long count = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			count += sender.getHttpClient().getHandshakeCount();
+		}
+		return count;
+	}
+
+	@Override
+	public double getHttpReuseRatio()
+	{
+		long requests = 0;
+		long connections = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			final ShindigClient client = sender.getHttpClient();
+			requests += client.getSecureRequestCount();
+			connections += client.getConnectionCount();
+		}
+		return requests > 0
+			? Math.max(0, 1 - (double) connections / requests) : 0;
+	}
+
+	@Override
+	public double getHttpUtilization()
+	{
+		int leased = 0;
+		int max = 0;
+		for(ActivitySender sender : fMetrics.getSenders())
+		{
+			final ShindigClient client = sender.getHttpClient();
+			leased += client.getLeasedConnections();
+			max += client.getMaxConnections();
+		}
+		return max > 0 ? (double) leased / max : 0;
+	}
+
+	@Override
+	public long getLagAlertCount()
+	{
+		return fMetrics.getLagAlertCount();
+	}
+}
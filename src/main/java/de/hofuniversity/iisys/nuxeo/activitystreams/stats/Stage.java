@@ -0,0 +1,28 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.stats;
+
+/**
+ * Timed steps of turning an event into a delivered activity.
+ */
+public enum Stage
+{
+	/** routing and filtering of the event */
+	FILTER,
+	/** loading the document and building its activity object */
+	RESOLVE,
+	/** looking up the user's display name */
+	USER,
+	/** encoding the activity as JSON */
+	JSON,
+	/** handing the activity to the aggregation */
+	AGGREGATE,
+	/** posting to Shindig, per request */
+	SEND;
+
+	/**
+	 * @return lower case name used for MBeans
+	 */
+	public String getLabel()
+	{
+		return name().toLowerCase();
+	}
+}
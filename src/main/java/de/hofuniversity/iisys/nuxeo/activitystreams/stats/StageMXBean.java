@@ -0,0 +1,36 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.stats;
+
+import java.util.Map;
+
+/**
+ * Timings of one pipeline stage or delivery lags of one path, all durations
+ * in microseconds.
+ */
+public interface StageMXBean
+{
+	public long getCount();
+
+	/**
+	 * @return calls per second since the start or the last reset
+	 */
+	public double getThroughput();
+
+	public double getMean();
+
+	public long getP50();
+
+	public long getP90();
+
+	public long getP99();
+
+	public long getP999();
+
+	public long getMax();
+
+	/**
+	 * @return timings by event type and verb
+	 */
+	public Map<String, HistogramSnapshot> getBreakdown();
+
+	public void reset();
+}
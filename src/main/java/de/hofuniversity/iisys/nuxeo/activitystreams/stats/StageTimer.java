@@ -0,0 +1,164 @@
+package de.hofuniversity.iisys.nuxeo.activitystreams.stats;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durations of one stage or delivery path, in total and by event type and
+ * verb.
+ */
+public class StageTimer implements StageMXBean
+{
+	//guards against unbounded keys, e.g. from custom events
+	private static final int MAX_KEYS = 256;
+	private static final String OTHER = "other";
+
+	private final String fName;
+
+	private final LatencyHistogram fTotal;
+	private final ConcurrentMap<String, LatencyHistogram> fByKey;
+
+	private volatile long fStart;
+
+	/**
+	 * @param name name of the stage or path
+	 */
+	public StageTimer(String name)
+	{
+		fName = name;
+
+		fTotal = new LatencyHistogram();
+		fByKey = new ConcurrentHashMap<String, LatencyHistogram>();
+
+		fStart = System.nanoTime();
+	}
+
+	/**
+	 * @param event name of the event, null if unknown at this stage
+	 * @param verb verb of the activity, null if unknown at this stage
+	 * @param nanos duration in nanoseconds
+	 */
+	public void record(String event, String verb, long nanos)
+	{
+		final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		fTotal.record(micros);
+
+		final String key;
+		if(event == null)
+		{
+			key = verb;
+		}
+		else if(verb == null)
+		{
+			key = event;
+		}
+		else
+		{
+			key = event + " " + verb;
+		}
+
+		if(key != null)
+		{
+			getHistogram(key).record(micros);
+		}
+	}
+
+	private LatencyHistogram getHistogram(String key)
+	{
+		LatencyHistogram histogram = fByKey.get(key);
+		if(histogram == null)
+		{
+			if(fByKey.size() >= MAX_KEYS)
+			{
+				key = OTHER;
+			}
+
+			final LatencyHistogram created = new LatencyHistogram();
+			histogram = fByKey.putIfAbsent(key, created);
+			if(histogram == null)
+			{
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+
+	public String getName()
+	{
+		return fName;
+	}
+
+	@Override
+	public long getCount()
+	{
+		return fTotal.getCount();
+	}
+
+	@Override
+	public double getThroughput()
+	{
+		final long elapsed = System.nanoTime() - fStart;
+		return elapsed > 0 ? fTotal.getCount() * 1e9 / elapsed : 0;
+	}
+
+	@Override
+	public double getMean()
+	{
+		return fTotal.getMean();
+	}
+
+	@Override
+	public long getP50()
+	{
+		return fTotal.getPercentile(0.5);
+	}
+
+	@Override
+	public long getP90()
+	{
+		return fTotal.getPercentile(0.9);
+	}
+
+	@Override
+	public long getP99()
+	{
+		return fTotal.getPercentile(0.99);
+	}
+
+	@Override
+	public long getP999()
+	{
+		return fTotal.getPercentile(0.999);
+	}
+
+	@Override
+	public long getMax()
+	{
+		return fTotal.getMax();
+	}
+
+	@Override
+	public Map<String, HistogramSnapshot> getBreakdown()
+	{
+		final Map<String, HistogramSnapshot> breakdown =
+			new TreeMap<String, HistogramSnapshot>();
+		for(Entry<String, LatencyHistogram> entry : fByKey.entrySet())
+		{
+			breakdown.put(entry.getKey(), new HistogramSnapshot(
+				entry.getValue()));
+		}
+		return breakdown;
+	}
+
+	@Override
+	public void reset()
+	{
+		fTotal.reset();
+		fByKey.clear();
+		fStart = System.nanoTime();
+	}
+}